@@ -0,0 +1,158 @@
+package edu.knowitall.browser.lucene
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.Weigher
+import com.google.common.util.concurrent.ExecutionError
+import com.google.common.util.concurrent.UncheckedExecutionException
+
+import org.slf4j.LoggerFactory
+
+/**
+ * A result cache in front of another GroupFetcher.
+ *
+ * Results are keyed on the canonicalized QuerySpec and bounded by their estimated size in bytes,
+ * evicting least-recently-used results first. Before every lookup the current reader generation is
+ * compared with the generation the cache was filled under, and the whole cache is dropped if
+ * the underlying searchers have moved on to a new reader.
+ *
+ * By default only Success results are cached, since Limited and Timeout results depend on load.
+ * Concurrent misses on the same query share one call to the underlying fetcher, whether or not
+ * its result ends up cached.
+ */
+class CachingGroupFetcher(
+  val underlying: GroupFetcher,
+  val currentGeneration: () => Seq[Long],
+  val maxBytes: Long,
+  val isCacheable: ResultSet => Boolean = CachingGroupFetcher.successOnly) extends GroupFetcher {
+
+  import CachingGroupFetcher.NotCacheable
+  import CachingGroupFetcher.resultWeigher
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  private val cache: Cache[QuerySpec, ResultSet] =
+    CacheBuilder.newBuilder()
+      .maximumWeight(maxBytes)
+      .weigher[QuerySpec, ResultSet](resultWeigher)
+      .recordStats()
+      .build[QuerySpec, ResultSet]()
+
+  private val cachedGeneration = new AtomicReference[Seq[Long]](currentGeneration())
+  private val invalidations = new AtomicLong(0)
+
+  def getGroups(querySpec: QuerySpec): ResultSet = {
+
+    // identity queries and other subclasses carry state that isn't part of the QuerySpec fields
+    if (querySpec.getClass != classOf[QuerySpec]) return underlying.getGroups(querySpec)
+
+    val generation = checkGeneration()
+    val key = QuerySpec.canonicalize(querySpec)
+
+    val load = new Callable[ResultSet] {
+      override def call(): ResultSet = {
+        val resultSet = underlying.getGroups(querySpec)
+        // don't insert results computed against a reader that was replaced in the meantime
+        if (isCacheable(resultSet) && generation == cachedGeneration.get) resultSet
+        else throw new NotCacheable(resultSet)
+      }
+    }
+
+    // a failed load isn't cached, but the queries waiting on it still get its result
+    try {
+      cache.get(key, load)
+    } catch {
+      case e: ExecutionException => e.getCause match {
+        case NotCacheable(resultSet) => resultSet
+        case cause => throw cause
+      }
+      case e: UncheckedExecutionException => throw e.getCause
+      case e: ExecutionError => throw e.getCause
+    }
+  }
+
+  /** Answers what it can from the cache and passes the rest to the underlying fetcher as one batch. */
+  override def getGroupsBatch(querySpecs: Seq[QuerySpec]): Seq[ResultSet] = {
+
+    val generation = checkGeneration()
+    val keys = querySpecs.map { querySpec =>
+      if (querySpec.getClass != classOf[QuerySpec]) None else Some(QuerySpec.canonicalize(querySpec))
+    }
+    val cached = keys.map(_.flatMap(key => Option(cache.getIfPresent(key))))
+
+    val missIndexes = cached.indices.filter(i => cached(i).isEmpty)
+    val computed = if (missIndexes.isEmpty) Nil else underlying.getGroupsBatch(missIndexes.map(querySpecs))
+    for ((i, resultSet) <- missIndexes.zip(computed); key <- keys(i)) {
+      if (isCacheable(resultSet) && generation == cachedGeneration.get) cache.put(key, resultSet)
+    }
+
+    val computedByIndex = missIndexes.zip(computed).toMap
+    cached.indices.map(i => cached(i).getOrElse(computedByIndex(i)))
+  }
+
+  // drops all cached results if the reader generation changed, returning the current generation.
+  private def checkGeneration(): Seq[Long] = {
+    val generation = currentGeneration()
+    val previous = cachedGeneration.get
+    if (generation != previous && cachedGeneration.compareAndSet(previous, generation)) {
+      logger.info("Reader generation changed from %s to %s, invalidating %d cached results".format(previous, generation, cache.size))
+      cache.invalidateAll()
+      invalidations.incrementAndGet()
+    }
+    generation
+  }
+
+  def invalidateAll(): Unit = cache.invalidateAll()
+
+  def stats: CachingGroupFetcher.Stats = {
+    val guavaStats = cache.stats
+    CachingGroupFetcher.Stats(guavaStats.hitCount, guavaStats.missCount, guavaStats.evictionCount, invalidations.get, cache.size)
+  }
+}
+
+object CachingGroupFetcher {
+
+  val defaultMaxBytes = 256L * 1024 * 1024
+
+  case class Stats(hits: Long, misses: Long, evictions: Long, invalidations: Long, size: Long) {
+    def hitRate = if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses)
+    override def toString = "hits: %d, misses: %d, hit rate: %.3f, evictions: %d, invalidations: %d, cached results: %d".format(hits, misses, hitRate, evictions, invalidations, size)
+  }
+
+  // thrown out of a cache load to hand back a result without caching it
+  private case class NotCacheable(resultSet: ResultSet) extends Exception {
+    override def fillInStackTrace(): Throwable = this
+  }
+
+  val successOnly: ResultSet => Boolean = {
+    case Success(_) => true
+    case _ => false
+  }
+
+  def apply(fetcher: ExtractionGroupFetcher, maxBytes: Long): CachingGroupFetcher =
+    new CachingGroupFetcher(fetcher, () => Seq(fetcher.readerVersion), maxBytes)
+
+  def apply(fetcher: ParallelExtractionGroupFetcher, maxBytes: Long): CachingGroupFetcher =
+    new CachingGroupFetcher(fetcher, () => fetcher.readerVersions, maxBytes)
+
+  // rough in-memory footprint of a decoded group and of each decoded instance
+  private val groupOverheadBytes = 512
+  private val instanceBytes = 2048
+
+  /** A rough estimate of the heap held by a result set once all of its instances are decoded. */
+  def estimateBytes(resultSet: ResultSet): Long = {
+    resultSet.results.map { group =>
+      val normChars = group.arg1.norm.length + group.rel.norm.length + group.arg2.norm.length
+      groupOverheadBytes + 2L * normChars + instanceBytes.toLong * group.instances.size
+    }.sum
+  }
+
+  private val resultWeigher = new Weigher[QuerySpec, ResultSet] {
+    override def weigh(key: QuerySpec, resultSet: ResultSet): Int = math.min(estimateBytes(resultSet), Int.MaxValue).toInt
+  }
+}
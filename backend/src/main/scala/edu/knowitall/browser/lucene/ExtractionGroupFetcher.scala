@@ -1,9 +1,16 @@
 package edu.knowitall.browser.lucene
 
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
 import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.atomic.AtomicReference
 
 import scala.collection.JavaConversions._
+import scala.concurrent.duration._
 
 import scala.util.matching.Regex
 import scala.io.Source
@@ -19,7 +26,9 @@ import org.apache.lucene.search.SortField
 import org.apache.lucene.search.TimeLimitingCollector
 import org.apache.lucene.search.TopScoreDocCollector
 import org.apache.lucene.util.Counter
+import org.apache.lucene.store.AlreadyClosedException
 import org.apache.lucene.store.Directory
+import org.apache.lucene.document.Document
 import org.apache.lucene.store.FSDirectory
 import org.apache.lucene.index.IndexReader
 
@@ -33,6 +42,8 @@ import org.apache.lucene.search.ScoreDoc
 import scopt.OptionParser
 
 import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.FbidDictionary
+import edu.knowitall.openie.models.FbidSet
 import edu.knowitall.openie.models.ReVerbExtraction
 import edu.knowitall.openie.models.ReVerbExtractionGroup
 import edu.knowitall.openie.models.InstanceDeduplicator
@@ -46,11 +57,13 @@ import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 class ExtractionGroupFetcher(
-  protected[lucene] val searcherManager: SearcherManager,
+  initialSearcherManager: SearcherManager,
   val searchMaxGroups: Int,
   val readMaxInstances: Int,
   val timeoutMillis: Long,
-  val fbidStoplist: Set[String]) extends GroupFetcher {
+  val fbidStoplist: Set[String],
+  val refreshIntervalMillis: Long,
+  val metricsScope: String) extends GroupFetcher {
 
   private val searchGroupTolerance = searchMaxGroups / 20 // we can be low by this much
   private val readInstanceTolerance = readMaxInstances / 20
@@ -59,61 +72,149 @@ class ExtractionGroupFetcher(
 
   logger.info("new ExtractionGroupFetcher, maxGroups:%d, maxInstances:%d, timeout:%d".format(searchMaxGroups, readMaxInstances, timeoutMillis))
 
-  def this(indexPath: String, searchMaxResults: Int, readMaxInstances: Int, timeoutMillis: Long, stoplist: Boolean = true) =
-    this(ExtractionGroupFetcher.loadSearcherManager(indexPath, doWarmups=true), searchMaxResults, readMaxInstances, timeoutMillis, { if (stoplist) ExtractionGroupFetcher.entityStoplist else Set.empty[String] })
+  def this(searcherManager: SearcherManager, searchMaxGroups: Int, readMaxInstances: Int, timeoutMillis: Long, fbidStoplist: Set[String]) =
+    this(searcherManager, searchMaxGroups, readMaxInstances, timeoutMillis, fbidStoplist, ExtractionGroupFetcher.defaultRefreshIntervalMillis, ExtractionGroupFetcher.defaultMetricsScope)
 
-  def indexSearcher: IndexSearcher = searcherManager.acquire
+  def this(indexPath: String, searchMaxResults: Int, readMaxInstances: Int, timeoutMillis: Long, stoplist: Boolean = true,
+      refreshIntervalMillis: Long = ExtractionGroupFetcher.defaultRefreshIntervalMillis, directoryType: IndexDirectory.Type = IndexDirectory.Auto, preload: Boolean = false,
+      metricsScope: String = ExtractionGroupFetcher.defaultMetricsScope) =
+    this(ExtractionGroupFetcher.loadSearcherManager(indexPath, doWarmups=true, refreshIntervalMillis, directoryType, preload), searchMaxResults, readMaxInstances, timeoutMillis, { if (stoplist) ExtractionGroupFetcher.entityStoplist else Set.empty[String] }, refreshIntervalMillis, metricsScope)
 
-  // A lower-level implementation of getGroups. Returns a ResultSet for query given the constraints.
-  private def getGroupsHelper(query: Query, maxGroups: Int, maxInstances: Int, totalTimeoutMillis: Long): ResultSet = {
+  /** Where this fetcher records its stage latencies, as metricsScope.stage (see QueryTimings). */
+  val metrics: MetricsRegistry = MetricsRegistry.default
 
-    val topDocsCollector = TopScoreDocCollector.create(maxGroups, true)
-    val timeLimitCollector = new TimeLimitingCollector(topDocsCollector, TimeLimitingCollector.getGlobalCounter, totalTimeoutMillis)
-    val searchwatch = new Stopwatch().start()
+  // an index's searcher manager and sentence store. The store is looked up once, when the index
+  // is opened, rather than on every query
+  private class SearchedIndex(val manager: SearcherManager) {
+    val sentences = ExtractionGroupFetcher.sentenceStore(manager)
+  }
+
+  // replaced wholesale by swapIndex
+  private val currentIndex = new AtomicReference[SearchedIndex](new SearchedIndex(initialSearcherManager))
+
+  protected[lucene] def searcherManager: SearcherManager = currentIndex.get.manager
+
+  /**
+   * Runs f with a searcher acquired from the current index, releasing it afterwards.
+   * f must not hold on to the searcher, or to lazily loaded fields of its documents.
+   */
+  def withSearcher[T](f: IndexSearcher => T): T = withIndex((searcher, sentences) => f(searcher))
+
+  // as withSearcher, also passing f the index's sentence store
+  private def withIndex[T](f: (IndexSearcher, Option[SentenceStore]) => T): T = {
+    val (index, searcher) = acquireSearcher()
+    try {
+      f(searcher, index.sentences)
+    } finally {
+      index.manager.release(searcher)
+    }
+  }
+
+  // returns the index along with the searcher, since the searcher must go back to the manager it came from
+  private def acquireSearcher(): (SearchedIndex, IndexSearcher) = {
+    val index = currentIndex.get
     try {
-      indexSearcher.search(query, timeLimitCollector)
-      // now materialize results
+      (index, index.manager.acquire)
     } catch {
-      case timeout: TimeExceededException => {
-        // Timeout has precedence, so make sure the result is a Timeout:
-        val remainingMillis = totalTimeoutMillis - searchwatch.elapsed(MILLISECONDS)
-        return Timeout.empty.combineWith(readResultSet(topDocsCollector.topDocs(), maxInstances, remainingMillis))
-      }
+      // the index was swapped, and the old manager closed, between the get and the acquire
+      case e: AlreadyClosedException if currentIndex.get ne index => acquireSearcher()
     }
-    val remainingMillis = totalTimeoutMillis - searchwatch.elapsed(MILLISECONDS)
-    readResultSet(topDocsCollector.topDocs(), maxInstances, remainingMillis)
   }
 
-  private def readResultSet(topDocs: TopDocs, maxInstances: Int, readTimeout: Long): ResultSet = {
+  /** Version of the currently searchable index reader. Changes whenever the searcher is refreshed onto a new commit. */
+  def readerVersion: Long = withSearcher(_.getIndexReader.getVersion)
+
+  /**
+   * Atomically replaces the index this fetcher searches with the one at indexPath. The new index is
+   * opened and warmed on the calling thread; queries keep running against the old index until the
+   * switch, and queries already in flight finish on it. The old reader is closed once the last of them
+   * releases it. The new index is refreshed every refreshIntervalMillis, as the old one was.
+   */
+  def swapIndex(indexPath: String, directoryType: IndexDirectory.Type = IndexDirectory.Auto, preload: Boolean = false): Unit = {
+    if (preload) IndexDirectory.preload(indexPath)
+    swapIndex(IndexDirectory.open(indexPath, directoryType), doWarmups = true, refreshIntervalMillis)
+  }
+
+  def swapIndex(dir: Directory, doWarmups: Boolean, refreshIntervalMillis: Long): Unit = synchronized {
+    val (nsLoad, newIndex) = Timing.time {
+      new SearchedIndex(ExtractionGroupFetcher.loadSearcherManager(dir, doWarmups, refreshIntervalMillis))
+    }
+    val oldIndex = currentIndex.getAndSet(newIndex)
+    logger.info("Swapped index to %s (opened in %s)".format(dir, Timing.Milliseconds.format(nsLoad)))
+    ExtractionGroupFetcher.retire(oldIndex.manager)
+  }
+
+  // Searches query once, collecting the top maxGroups hits in each size bucket.
+  // Returns the collector and whether the search ran out of time (in which case the collector holds partial results).
+  private def collectBuckets(searcher: IndexSearcher, query: Query, buckets: Seq[SizeBucket], maxGroups: Int, timeoutMillis: Long): (SizeBucketCollector, Boolean) = {
+
+    val bucketCollector = new SizeBucketCollector(buckets.toIndexedSeq, maxGroups)
+    val timeLimitCollector = new TimeLimitingCollector(bucketCollector, TimeLimitingCollector.getGlobalCounter, timeoutMillis)
+    try {
+      searcher.search(query, timeLimitCollector)
+      (bucketCollector, false)
+    } catch {
+      case timeout: TimeExceededException => (bucketCollector, true)
+    }
+  }
+
+  // Reads groups for topDocs in order until maxInstances or readTimeout is exceeded.
+  // The first group that doesn't fit in what's left of maxInstances is read partially, just its most
+  // confident instances, so large groups still show up; the results are then Limited.
+  // The first minGroups groups are read in full regardless of the instances budget.
+  private def readResultSet(hits: HitReader, topDocs: TopDocs, maxInstances: Int, readTimeout: Long, timer: StageTimer, minGroups: Int = 0): ResultSet = {
     val hitCount = topDocs.totalHits
-    val groupIterator = topDocs.scoreDocs.sortBy(-_.score).iterator.map(scoreDoc => docNumToGroup(scoreDoc.doc))
+    val hitIterator = topDocs.scoreDocs.sortBy(-_.score).iterator
     val stopwatch = new Stopwatch().start()
+    val resultList = scala.collection.mutable.ListBuffer.empty[ExtractionGroup[ReVerbExtraction]]
     var instancesCount = 0
     var timedOut = false
     var limited = false
-    val resultList = groupIterator.takeWhile { group =>
-      if (stopwatch.elapsed(MILLISECONDS) >= readTimeout) {
-        timedOut = true
-        false
-      } else {
-        var numInstances = group.instances.size
-        instancesCount += numInstances
-        if (instancesCount > maxInstances) {
-          instancesCount -= numInstances // want to report the number returned, which doesn't include this group
+    while (!timedOut && !limited && hitIterator.hasNext) {
+      if (stopwatch.elapsed(MILLISECONDS) >= readTimeout) timedOut = true
+      else {
+        val hit = hits.read(hitIterator.next().doc, timer)
+        val remaining = maxInstances - instancesCount
+        if (hit.storedSize <= remaining || resultList.size < minGroups) {
+          instancesCount += hit.storedSize
+          resultList += hit.group
+        } else {
           limited = true
-          false
-        } else true
+          if (remaining > 0) {
+            instancesCount += remaining
+            resultList += truncate(hit.group, remaining)
+          }
+        }
       }
-    }.toList
-    if (timedOut) Timeout(resultList, hitCount)
-    else if (limited) Limited(resultList, hitCount)
-    else Success(resultList)
+    }
+    if (timedOut) Timeout(resultList.toList, hitCount)
+    else if (limited) Limited(resultList.toList, hitCount)
+    else Success(resultList.toList)
+  }
+
+  private def truncate(group: ExtractionGroup[ReVerbExtraction], maxInstances: Int): ExtractionGroup[ReVerbExtraction] = group.instances match {
+    case lazySet: LazyInstanceSet => group.copy(instances = lazySet.truncated(maxInstances))
+    case instances => group.copy(instances = instances.toSeq.sortBy(-_.confidence).take(maxInstances).toSet)
+  }
+
+  private case class Hit(val storedSize: Int, val group: ExtractionGroup[ReVerbExtraction])
+
+  // Turns hit doc ids into groups. Only the header fields are read up front, so the instances
+  // budget can be checked against the stored size; instances are decoded when a caller first touches them.
+  private class HitReader(val searcher: IndexSearcher, sentences: Option[SentenceStore]) {
+    def read(docId: Int, timer: StageTimer): Hit = {
+      import QueryTimings.{StoredFields, Decode, Stoplist}
+      val doc = timer.time(StoredFields)(searcher.doc(docId, ReVerbDocumentConverter.lazyInstancesSelector))
+      val rawGroup = timer.time(Decode)(ReVerbDocumentConverter.fromDocumentLazily(doc, sentences))
+      val filtered = timer.time(Stoplist)(filterGroup(rawGroup))
+      Hit(ReVerbDocumentConverter.storedSize(doc), filtered)
+    }
   }
 
-  private def docNumToGroup(docNum: Int): ExtractionGroup[ReVerbExtraction] = {
-    val rawGroup = ReVerbDocumentConverter.fromDocument(indexSearcher.doc(docNum))
-    val filtered = filterGroup(rawGroup)
-    filtered
+  // Reads each doc at most once, so queries in a batch that hit the same doc share one group (and one decode).
+  private class SharedHitReader(searcher: IndexSearcher, sentences: Option[SentenceStore]) extends HitReader(searcher, sentences) {
+    private val hits = scala.collection.mutable.HashMap.empty[Int, Hit]
+    override def read(docId: Int, timer: StageTimer): Hit = hits.getOrElseUpdate(docId, super.read(docId, timer))
   }
 
   private def filterGroup(group: ExtractionGroup[ReVerbExtraction]): ExtractionGroup[ReVerbExtraction] = {
@@ -138,29 +239,176 @@ class ExtractionGroupFetcher(
     case Timeout(_, _) => "%s, Timeout: %d groups, %d instances in %d ms".format(prefix, resultSet.numGroups, resultSet.numInstances, elapsedMillis)
   }
 
-  def getGroups(querySpec: QuerySpec): ResultSet = {
+  def getGroups(querySpec: QuerySpec): ResultSet = getGroups(querySpec, timeoutMillis)
+
+  /** Like getGroups(querySpec), but gives up after at most timeLimitMillis (or this fetcher's own timeout, if shorter). */
+  override def getGroups(querySpec: QuerySpec, timeLimitMillis: Long): ResultSet = {
+
+    val timeLimit = min(timeoutMillis, timeLimitMillis)
+    if (timeLimit <= 0) return finish(Timeout.empty, new StageTimer())
+
+    val start = System.nanoTime
+    val deadline = timeLimit.millis.fromNow
+    val timer = new StageTimer()
+    val resultSet =
+      if (!tag(querySpec, deadline, timer)) Timeout.empty
+      else withIndex((searcher, sentences) => searchAndRead(new HitReader(searcher, sentences), querySpec, parse(querySpec, timer), max(deadline.timeLeft.toMillis, 1), timer))
+    timer.add(QueryTimings.Total, System.nanoTime - start)
+    finish(resultSet, timer)
+  }
+
+  // tags and stems the query's text, unless no tagger frees up before deadline
+  private def tag(querySpec: QuerySpec, deadline: Deadline, timer: StageTimer): Boolean =
+    timer.time(QueryTimings.Tagging)(querySpec.normalizeBefore(deadline))
 
+  // forces the query's lazily tagged and parsed forms, timing each
+  private def parse(querySpec: QuerySpec, timer: StageTimer): Query = {
+    timer.time(QueryTimings.Tagging)(querySpec.luceneQueryString)
+    timer.time(QueryTimings.Parsing)(querySpec.luceneQuery)
+  }
+
+  // records the query's stage times and outcome, and attaches the times to its results
+  private def finish(resultSet: ResultSet, timer: StageTimer, scope: String = metricsScope): ResultSet = {
+    val timings = timer.timings
+    metrics.record(scope, timings)
+    metrics.increment(scope + "." + ExtractionGroupFetcher.outcome(resultSet))
+    resultSet.withTimings(timings)
+  }
+
+  /**
+   * Results for each of querySpecs, in order, as getGroups would return them, with the whole batch sharing
+   * this fetcher's time limit. Query text is tagged and stemmed in one pass, all queries run against the same
+   * searcher, identical Lucene queries are run once, and a doc hit by several queries is read and decoded once.
+   */
+  override def getGroupsBatch(querySpecs: Seq[QuerySpec]): Seq[ResultSet] = getGroupsBatch(querySpecs, timeoutMillis)
+
+  def getGroupsBatch(querySpecs: Seq[QuerySpec], timeLimitMillis: Long): Seq[ResultSet] = {
+
+    val batchWatch = new Stopwatch().start()
+    val timeLimit = min(timeoutMillis, timeLimitMillis)
+
+    val deadline = timeLimit.millis.fromNow
+    QuerySpec.normalizeAll(querySpecs.flatMap(_.textToNormalize), deadline)
+
+    withIndex { (searcher, sentences) =>
+      val hits = new SharedHitReader(searcher, sentences)
+      val results = scala.collection.mutable.HashMap.empty[(Query, Seq[SizeBucket]), ResultSet]
+      querySpecs.map { querySpec =>
+        val start = System.nanoTime
+        val timer = new StageTimer()
+        if (!tag(querySpec, deadline, timer)) finish(Timeout.empty, timer)
+        else {
+          val query = parse(querySpec, timer)
+          results.getOrElseUpdate((query, querySpec.sizeBuckets), {
+            val remainingTime = timeLimit - batchWatch.elapsed(MILLISECONDS)
+            val resultSet = if (remainingTime > 0) searchAndRead(hits, querySpec, query, remainingTime, timer) else Timeout.empty
+            timer.add(QueryTimings.Total, System.nanoTime - start)
+            finish(resultSet, timer)
+          })
+        }
+      }
+    }
+  }
+
+  private def searchAndRead(hits: HitReader, querySpec: QuerySpec, query: Query, timeLimit: Long, timer: StageTimer): ResultSet = {
+
+    val searcher = hits.searcher
+    val buckets = querySpec.sizeBuckets
+    val resultWatch = new Stopwatch().start()
+
+    // one pass over the query fills every size bucket
+    val (collector, searchTimedOut) = timer.time(QueryTimings.Search)(collectBuckets(searcher, query, buckets, searchMaxGroups, timeLimit))
+    logger.info("searched %d size buckets in %d ms%s for query: %s".format(buckets.size, resultWatch.elapsed(MILLISECONDS), if (searchTimedOut) " (timed out)" else "", query))
+
+    // then read buckets largest first, as long as the group and instance budgets allow
     var remainingMaxGroups = searchMaxGroups
     var remainingMaxInstances = readMaxInstances
-    var remainingTime = timeoutMillis
-    val resultWatch = new Stopwatch().start()
-    var allResults: ResultSet = Success.empty
-    for (query <- querySpec.lowLevelLuceneQueries) {
+    var allResults: ResultSet = if (searchTimedOut) Timeout.empty else Success.empty
+    for ((bucket, i) <- buckets.zipWithIndex) {
+      val remainingTime = timeLimit - resultWatch.elapsed(MILLISECONDS)
       if (remainingMaxGroups > searchGroupTolerance && remainingMaxInstances > readInstanceTolerance && remainingTime > 0) {
-        val resultSet = getGroupsHelper(query, remainingMaxGroups, remainingMaxInstances, remainingTime)
+        val readWatch = new Stopwatch().start()
+        val resultSet = readResultSet(hits, collector.topDocs(i, remainingMaxGroups), remainingMaxInstances, remainingTime, timer)
         remainingMaxGroups -= resultSet.numGroups
-        remainingMaxInstances -= resultSet.numInstances
-        remainingTime -= resultWatch.elapsed(MILLISECONDS)
-        logger.info("%d groups, %d instances in %d ms, (remaining %d ms) for query: %s".format(resultSet.numGroups, resultSet.numInstances, resultWatch.elapsed(MILLISECONDS), remainingTime, query))
-        resultWatch.reset
-        resultWatch.start
+        remainingMaxInstances -= resultSet.numInstancesRead
+        logger.info("%d groups, %d instances in %d ms, (remaining %d ms) for size bucket: %s".format(resultSet.numGroups, resultSet.numInstances, readWatch.elapsed(MILLISECONDS), timeLimit - resultWatch.elapsed(MILLISECONDS), bucket))
         allResults = allResults.combineWith(resultSet)
       }
     }
     return allResults
   }
 
-  def close() = searcherManager.close()
+  /**
+   * Returns up to pageSize groups for querySpec, resuming after cursor, along with the cursor for the next page.
+   * Groups come in the same order as getGroups: size buckets largest first, then by score. Each page costs
+   * one pass over the query no matter how deep it is, since only pageSize hits per bucket are kept.
+   */
+  def getGroupsPage(querySpec: QuerySpec, cursor: PageCursor, pageSize: Int): (ResultSet, PageCursor) = {
+    val shardPage = getShardPage(querySpec, cursor.shard(0), pageSize, timeoutMillis)
+    (shardPage.resultSet, PageCursor(IndexedSeq(shardPage.endPosition)))
+  }
+
+  private[lucene] def getShardPage(querySpec: QuerySpec, start: ShardPosition, pageSize: Int, timeLimitMillis: Long): ShardPage =
+    withIndex((searcher, sentences) => getShardPage(searcher, sentences, querySpec, start, pageSize, timeLimitMillis))
+
+  private def getShardPage(searcher: IndexSearcher, sentences: Option[SentenceStore], querySpec: QuerySpec, start: ShardPosition, pageSize: Int, timeLimitMillis: Long): ShardPage = {
+
+    val readerVersion = searcher.getIndexReader.getVersion
+    val buckets = querySpec.sizeBuckets.toIndexedSeq
+    val timeLimit = min(timeoutMillis, timeLimitMillis)
+
+    if (start.exhausted || start.bucket >= buckets.size) return ShardPage(Success.empty, Nil, ShardPosition.exhausted(readerVersion))
+    if (start.after.isDefined && start.readerVersion != readerVersion) {
+      logger.warn("Paging cursor was taken from reader version %d, now %d. Results may skip or repeat groups.".format(start.readerVersion, readerVersion))
+    }
+
+    val resultWatch = new Stopwatch().start()
+    val timer = new StageTimer()
+    // without tags there is no query to run, so the page is a Timeout that stays where it started
+    if (!tag(querySpec, timeLimit.millis.fromNow, timer)) return ShardPage(finish(Timeout.empty, timer, metricsScope + ".page"), Nil, start)
+    val query = parse(querySpec, timer)
+    val remainingBuckets = buckets.drop(start.bucket)
+    val collector = new SizeBucketCollector(remainingBuckets, pageSize, start.after)
+    val timeLimitCollector = new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter, timeLimit)
+    val searchTimedOut = timer.time(QueryTimings.Search) {
+      try {
+        searcher.search(query, timeLimitCollector)
+        false
+      } catch {
+        case timeout: TimeExceededException => true
+      }
+    }
+
+    var hits = List.empty[PageHit]
+    var remainingGroups = pageSize
+    var remainingInstances = readMaxInstances
+    var complete = !searchTimedOut
+    var allResults: ResultSet = if (searchTimedOut) Timeout.empty else Success.empty
+    for (i <- remainingBuckets.indices; if remainingGroups > 0 && complete) {
+      val topDocs = collector.topDocs(i, remainingGroups)
+      val remainingTime = timeLimit - resultWatch.elapsed(MILLISECONDS)
+      // always read at least one group, so a single huge group can't stall paging
+      val resultSet = readResultSet(new HitReader(searcher, sentences), topDocs, remainingInstances, remainingTime, timer, minGroups = if (hits.isEmpty) 1 else 0)
+      val bucketHits = resultSet.results.zip(topDocs.scoreDocs).map { case (group, scoreDoc) =>
+        PageHit(group, ShardPosition(readerVersion, start.bucket + i, scoreDoc.score, scoreDoc.doc))
+      }
+      hits = hits ++ bucketHits
+      remainingGroups -= resultSet.numGroups
+      remainingInstances -= resultSet.numInstancesRead
+      if (!resultSet.isInstanceOf[Success]) complete = false
+      allResults = allResults.combineWith(resultSet)
+    }
+
+    // if every bucket was read to the end, there is nothing left in this shard
+    val endPosition =
+      if (complete && remainingGroups > 0) ShardPosition.exhausted(readerVersion)
+      else hits.lastOption.map(_.position).getOrElse(start)
+
+    timer.add(QueryTimings.Total, resultWatch.elapsed(NANOSECONDS))
+    ShardPage(finish(allResults, timer, metricsScope + ".page"), hits, endPosition)
+  }
+
+  def close() = ExtractionGroupFetcher.retire(searcherManager)
 }
 
 object ExtractionGroupFetcher {
@@ -172,34 +420,110 @@ object ExtractionGroupFetcher {
 
   val defaultMaxResults = 750
 
-  def loadSearcherManager(path: String, doWarmups: Boolean): SearcherManager = {
-    val fsDir = FSDirectory.open(new File(path))
-    loadSearcherManager(fsDir, doWarmups)
+  val defaultRefreshIntervalMillis = 1000L * 60 * 60 * 24 // one day
+
+  val defaultMetricsScope = "shard"
+
+  /** Counter name for how a query ended. */
+  def outcome(resultSet: ResultSet): String = resultSet match {
+    case Success(_) => "success"
+    case Limited(_, _) => "limited"
+    case Timeout(_, _) => "timeout"
+  }
+
+  def loadSearcherManager(path: String, doWarmups: Boolean): SearcherManager =
+    loadSearcherManager(path, doWarmups, defaultRefreshIntervalMillis)
+
+  def loadSearcherManager(path: String, doWarmups: Boolean, refreshIntervalMillis: Long): SearcherManager =
+    loadSearcherManager(path, doWarmups, refreshIntervalMillis, IndexDirectory.Auto, preload = false)
+
+  /**
+   * Opens the index at path with the given Directory implementation. If preload is set, the index's
+   * postings and stored-field index are first read into the page cache (see IndexDirectory.preload),
+   * so that the first queries don't go to disk; warmups only exercise the postings of a few queries.
+   */
+  def loadSearcherManager(path: String, doWarmups: Boolean, refreshIntervalMillis: Long, directoryType: IndexDirectory.Type, preload: Boolean): SearcherManager = {
+    if (preload) IndexDirectory.preload(path)
+    loadSearcherManager(IndexDirectory.open(path, directoryType), doWarmups, refreshIntervalMillis)
   }
 
-  def loadSearcherManager(dir: Directory, doWarmups: Boolean): SearcherManager = {
+  def loadSearcherManager(dir: Directory, doWarmups: Boolean): SearcherManager =
+    loadSearcherManager(dir, doWarmups, defaultRefreshIntervalMillis)
+
+  /**
+   * Opens (and optionally warms) a searcher over dir, then checks for new commits every refreshIntervalMillis.
+   * Refreshed searchers are opened and warmed on the refresh thread, not on the request path.
+   * A refreshIntervalMillis of zero or less turns refreshing off.
+   */
+  def loadSearcherManager(dir: Directory, doWarmups: Boolean, refreshIntervalMillis: Long): SearcherManager = {
     val searcherFactory = if (doWarmups) warmupSearcherFactory else new SearcherFactory()
     val searcherManager = new SearcherManager(dir, searcherFactory)
     logger.info("ExtractionGroupFetcher loading SearcherManager for %s".format(dir))
 
-    val refresher = new Runnable() {
-      override def run() = {
-        val sleepTime = 1000 * 60 * 60 * 24 // one day
-        while (true) {
-          try { Thread.sleep(sleepTime) }
-          catch { case ie: InterruptedException => ie.printStackTrace }
+    if (refreshIntervalMillis > 0) {
+      val refresher = new Runnable() {
+        override def run() = {
           logger.info("Refreshing Searcher: %s".format(dir))
-          searcherManager.maybeRefresh
+          // an exception would cancel all later refreshes
+          try { searcherManager.maybeRefresh }
+          catch { case e: Exception => logger.error("Failed to refresh searcher for %s".format(dir), e) }
         }
       }
+      val task = refreshTimer.scheduleWithFixedDelay(refresher, refreshIntervalMillis, refreshIntervalMillis, MILLISECONDS)
+      refreshTasks.put(searcherManager, task)
     }
-    val refresherThread = new Thread(refresher, dir.toString + " refresher")
-    refresherThread.setDaemon(true)
-    refresherThread.start()
 
     searcherManager
   }
 
+  // one thread refreshes every searcher manager
+  private val refreshTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    override def newThread(runnable: Runnable) = {
+      val thread = new Thread(runnable, "searcher-refresher")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  private val refreshTasks = new ConcurrentHashMap[SearcherManager, ScheduledFuture[_]]
+
+  // sentence stores by the directory of the index they belong to. Keyed weakly, so a swapped out
+  // index's store goes once its last reader does, and stays for queries still running on it until then.
+  private val sentenceStores = new java.util.WeakHashMap[Directory, Option[SentenceStore]]
+
+  /** The sentence store of the index searcherManager searches, if it has one. */
+  def sentenceStore(searcherManager: SearcherManager): Option[SentenceStore] = {
+    val searcher = searcherManager.acquire
+    try {
+      sentenceStore(searcher)
+    } finally {
+      searcherManager.release(searcher)
+    }
+  }
+
+  /** The sentence store of the index searcher reads (see SentenceStore), if it has one. */
+  def sentenceStore(searcher: IndexSearcher): Option[SentenceStore] = {
+    val dir = try { searcher.getIndexReader.directory } catch { case e: UnsupportedOperationException => null }
+    dir match {
+      case fsDir: FSDirectory => sentenceStores.synchronized {
+        Option(sentenceStores.get(fsDir)).getOrElse {
+          val store = SentenceStore.forIndex(fsDir.getDirectory.getPath)
+          store.foreach(s => logger.info("Opened sentence store %s with %d sentences".format(s.file, s.numSentences)))
+          sentenceStores.put(fsDir, store)
+          store
+        }
+      }
+      case _ => None
+    }
+  }
+
+  // Stops refreshing searcherManager and drops its reference to the current searcher.
+  // Searchers still acquired from it stay open until they are released.
+  private def retire(searcherManager: SearcherManager): Unit = {
+    Option(refreshTasks.remove(searcherManager)).foreach(_.cancel(false))
+    searcherManager.close()
+  }
+
   // A searcher factory that runs warmup queries on top of the default implementation.
   // Doesn't actually materialize the data from disk (but that would be "warming" the IO cache anyway, which doesn't cool off between searchers)
   private val warmupSearcherFactory = new SearcherFactory() {
@@ -222,4 +546,7 @@ object ExtractionGroupFetcher {
     logger.info("Loaded entity blacklist of size %d in %s".format(stopList.size, Timing.Milliseconds.format(nsLoad)))
     stopList
   }
+
+  /** entityStoplist as ids in the global FbidDictionary, if there is one. */
+  lazy val entityStoplistIds: Option[FbidSet] = FbidDictionary.global.map(FbidSet(entityStoplist, _))
 }
@@ -0,0 +1,150 @@
+package edu.knowitall.browser.lucene
+
+import scala.collection.mutable
+import scala.reflect.ClassTag
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.Instance
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup.REG
+
+/**
+ * The keys a group is regrouped by for the frontend (see ReVerbExtractionGroup.indexGroupingToFrontendGrouping).
+ * frontendKey is the frontendGroupingKey of the group's extractions; entityKey is frontendKey with
+ * each linked argument replaced by its fbid, so groups linked to the same entities come together.
+ */
+case class GroupingKeys(val frontendKey: GroupingKeys.Key, val entityKey: GroupingKeys.Key)
+
+object GroupingKeys {
+
+  type Key = (String, String, String)
+
+  def entityKey(frontendKey: Key, group: REG): Key = (
+    group.arg1.entity.map(_.fbid).getOrElse(frontendKey._1),
+    frontendKey._2,
+    group.arg2.entity.map(_.fbid).getOrElse(frontendKey._3))
+
+  /** Computes group's keys from its first instance, which re-stems the extraction. */
+  def of(group: REG): GroupingKeys = {
+    val frontendKey = group.instances.head.extraction.frontendGroupingKey
+    GroupingKeys(frontendKey, entityKey(frontendKey, group))
+  }
+
+  /**
+   * group's keys from its stored frontend key if it was read from an index that has one, or else its computed keys.
+   * The entity key always comes from the group's current links, which can be dropped after indexing, e.g. by the entity stoplist.
+   */
+  def forGroup(group: REG): GroupingKeys = group.instances match {
+    case lazySet: LazyInstanceSet => lazySet.frontendKey match {
+      case Some(frontendKey) => GroupingKeys(frontendKey, entityKey(frontendKey, group))
+      case None => of(group)
+    }
+    case _ => of(group)
+  }
+
+  // norms never contain tabs, since groups are serialized tab delimited
+  def serializeKey(key: Key): String = Seq(key._1, key._2, key._3).mkString("\t")
+
+  def deserializeKey(str: String): Key = str.split("\t", -1) match {
+    case Array(arg1, rel, arg2) => (arg1, rel, arg2)
+    case _ => throw new IllegalArgumentException("Not a grouping key: " + str)
+  }
+}
+
+/**
+ * The union of several groups' instances, which aren't touched until the union is.
+ * The groups must have distinct index keys, so that no instance is in two of them,
+ * which lets size be the sum of their sizes.
+ */
+class MergedInstanceSet(val parts: Seq[Set[Instance[ReVerbExtraction]]]) extends Set[Instance[ReVerbExtraction]] {
+
+  type REI = Instance[ReVerbExtraction]
+
+  private lazy val merged: Set[REI] = parts.foldLeft(Set.empty[REI])(_ ++ _)
+
+  override val size = parts.map(_.size).sum
+
+  override def isEmpty = size == 0
+
+  override def contains(inst: REI): Boolean = parts.exists(_.contains(inst))
+
+  override def iterator: Iterator[REI] = parts.iterator.flatMap(_.iterator)
+
+  override def +(inst: REI): Set[REI] = merged + inst
+
+  override def -(inst: REI): Set[REI] = merged - inst
+
+  // size counts partial parts in full (see LazyInstanceSet), so size the array by what iterates
+  override def toArray[B >: REI: ClassTag]: Array[B] = iterator.toArray[B]
+}
+
+/**
+ * Converts groups with index keys to groups with frontend keys, as
+ * ReVerbExtractionGroup.indexGroupingToFrontendGrouping does, in one pass and without
+ * decoding instances: keys come from the index (see GroupingKeys.forGroup), and merged groups'
+ * instances are MergedInstanceSets that aren't decoded until something reads them.
+ *
+ * Groups with the same entity key are merged. Then, among groups with the same frontend key,
+ * if at most one is linked to an entity they are all merged; otherwise the unlinked ones are
+ * merged with each other and the linked ones are left alone. Every group comes out with
+ * its frontend key as its norms.
+ *
+ * Not thread safe.
+ */
+class FrontendRegrouper {
+
+  import GroupingKeys.Key
+
+  // the groups with one entity key, and the one whose entities and types the merged group gets
+  private class Entry(first: REG) {
+    val groups = mutable.ArrayBuffer(first)
+    var entityGroup = first
+    def isLinked = entityGroup.arg1.entity.isDefined || entityGroup.arg2.entity.isDefined
+    def add(group: REG): Unit = {
+      if (!isLinked && (group.arg1.entity.isDefined || group.arg2.entity.isDefined)) entityGroup = group
+      groups += group
+    }
+  }
+
+  private val entries = mutable.HashMap.empty[Key, Entry]
+  // entries by the frontend key of their first group, in the order they were first seen
+  private val buckets = mutable.LinkedHashMap.empty[Key, mutable.ArrayBuffer[Entry]]
+
+  def add(group: REG): Unit = {
+    val keys = GroupingKeys.forGroup(group)
+    entries.get(keys.entityKey) match {
+      case Some(entry) => entry.add(group)
+      case None => {
+        val entry = new Entry(group)
+        entries(keys.entityKey) = entry
+        buckets.getOrElseUpdate(keys.frontendKey, mutable.ArrayBuffer.empty) += entry
+      }
+    }
+  }
+
+  def ++=(groups: TraversableOnce[REG]): this.type = {
+    groups.foreach(add)
+    this
+  }
+
+  /** The regrouped groups, built as the iterator is consumed. */
+  def groups: Iterator[REG] = buckets.iterator.flatMap { case (frontendKey, bucketEntries) =>
+    val (linked, unlinked) = bucketEntries.partition(_.isLinked)
+    if (linked.size <= 1) Iterator(merge(frontendKey, bucketEntries))
+    else (if (unlinked.isEmpty) Iterator.empty else Iterator(merge(frontendKey, unlinked))) ++ linked.iterator.map(entry => merge(frontendKey, Seq(entry)))
+  }
+
+  private def merge(key: Key, mergeEntries: Seq[Entry]): REG = {
+    val entityGroup = mergeEntries.find(_.isLinked).getOrElse(mergeEntries.head).entityGroup
+    val members = mergeEntries.flatMap(_.groups)
+    val instances = if (members.size == 1) members.head.instances else new MergedInstanceSet(members.map(_.instances))
+    new ExtractionGroup(key._1, key._2, key._3,
+      entityGroup.arg1.entity, entityGroup.arg2.entity, entityGroup.arg1.types, entityGroup.arg2.types,
+      instances)
+  }
+}
+
+object FrontendRegrouper {
+
+  def regroup(groups: TraversableOnce[REG]): Iterator[REG] = (new FrontendRegrouper() ++= groups).groups
+}
@@ -8,4 +8,16 @@ trait GroupFetcher {
   }
 
   def getGroups(querySpec: QuerySpec): ResultSet
-}
\ No newline at end of file
+
+  /**
+   * Like getGroups(querySpec), but answers within about timeLimitMillis (or the fetcher's own timeout, if shorter).
+   * Fetchers without a finer-grained limit just use their own timeout.
+   */
+  def getGroups(querySpec: QuerySpec, timeLimitMillis: Long): ResultSet = getGroups(querySpec)
+
+  /**
+   * Results for each of querySpecs, in the same order, with the same meaning as calling getGroups on each.
+   * Fetchers that can share work between related queries override this.
+   */
+  def getGroupsBatch(querySpecs: Seq[QuerySpec]): Seq[ResultSet] = querySpecs.map(getGroups)
+}
@@ -12,17 +12,21 @@ import org.apache.lucene.document.Document
 import org.apache.lucene.util.Version
 import org.apache.lucene.analysis.WhitespaceAnalyzer
 
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
 import edu.knowitall.openie.models.ReVerbExtractionGroup
 
 import scopt.OptionParser
 
 /**
  * An index builder creates new indexes and appends to existing indexes, but does not modify existing documents within an index.
+ * If the documents refer to a sentence store, pass it as sentenceStore, so that it is flushed before each commit.
  */
 class IndexBuilder(
   val indexWriter: IndexWriter,
   val inputLineConverter: String => Iterable[Document],
-  val linesPerCommit: Int) {
+  val linesPerCommit: Int,
+  val sentenceStore: Option[SentenceStore.Writer] = None) {
 
   var linesIndexed = 0
   var groupsIndexed = 0
@@ -42,6 +46,8 @@ class IndexBuilder(
   private def indexAndCommit(input: Iterable[String]): Unit = {
 
     indexLines(input)
+    // a committed document must never refer to a sentence that a crash could lose
+    sentenceStore.foreach(_.flush())
     indexWriter.commit
     indexWriter.message("Lines indexed: %s, Groups indexed: %s".format(linesIndexed.toString, groupsIndexed.toString))
   }
@@ -69,11 +75,16 @@ object ReVerbIndexBuilder {
     conf
   }
 
-  private def regroupingInputLineConverter(line: String): Iterable[Document] = {
+  private def toDocument(group: ExtractionGroup[ReVerbExtraction], sentences: Option[SentenceStore.Writer]): Document = sentences match {
+    case Some(store) => ReVerbDocumentConverter.toDocument(group, store)
+    case None => ReVerbDocumentConverter.toDocument(group)
+  }
+
+  private def regroupingInputLineConverter(sentences: Option[SentenceStore.Writer])(line: String): Iterable[Document] = {
     try {
       val groupOption = ReVerbExtractionGroup.deserializeFromString(line)
       groupOption match {
-        case Some(group) => group.reNormalize.map(newGroup => ReVerbDocumentConverter.toDocument(newGroup))
+        case Some(group) => group.reNormalize.map(newGroup => toDocument(newGroup, sentences))
         case None => Set.empty
       }
     } catch {
@@ -84,26 +95,29 @@ object ReVerbIndexBuilder {
     }
   }
 
-  private def standardInputLineConverter(line: String): Iterable[Document] = {
+  private def standardInputLineConverter(sentences: Option[SentenceStore.Writer])(line: String): Iterable[Document] = {
     val groupOption = ReVerbExtractionGroup.deserializeFromString(line)
-    groupOption.map(group => ReVerbDocumentConverter.toDocument(group))
+    groupOption.map(group => toDocument(group, sentences))
   }
 
-  def inputLineConverter(regroup: Boolean) = regroup match {
-    case true => regroupingInputLineConverter _
-    case false => standardInputLineConverter _
+  /** Converts input lines to documents. If sentences is given, the documents' instances refer to sentences added to it. */
+  def inputLineConverter(regroup: Boolean, sentences: Option[SentenceStore.Writer] = None): String => Iterable[Document] = regroup match {
+    case true => regroupingInputLineConverter(sentences) _
+    case false => standardInputLineConverter(sentences) _
   }
 
   def main(args: Array[String]): Unit = {
 
     var indexPath = ""
     var regroup = false
+    var sentenceStore = false
 
     val optionParser = new OptionParser() {
       arg("path", "Path to index", { str => indexPath = str })
       opt("linesPerCommit", "Lines added between each IndexWriter.commit", { str => linesPerCommit = str.toInt })
       opt("ramBufferMB", "Size of ram buffer, (e.g. IndexWriterConfig.setRAMBufferSizeMB)", { str => ramBufferMB = str.toInt })
       opt("regroup", "For each group individually re-group based on the current index grouping key", { regroup = true })
+      opt("sentenceStore", "Keep sentences once, in the index's sentence store, and have instances refer to them", { sentenceStore = true })
     }
 
     // bail if the args are bad
@@ -112,12 +126,15 @@ object ReVerbIndexBuilder {
     val indexWriter = new IndexWriter(FSDirectory.open(new File(indexPath)), indexWriterConfig(ramBufferMB))
     indexWriter.setInfoStream(System.err)
 
-    val lineConverter = inputLineConverter(regroup)
+    val sentences = if (sentenceStore) Some(new SentenceStore.Writer(new File(indexPath, SentenceStore.fileName))) else None
+
+    val lineConverter = inputLineConverter(regroup, sentences)
 
-    val indexBuilder = new IndexBuilder(indexWriter, lineConverter, linesPerCommit)
+    val indexBuilder = new IndexBuilder(indexWriter, lineConverter, linesPerCommit, sentences)
 
     indexBuilder.indexAll(Source.fromInputStream(System.in).getLines)
 
+    sentences.foreach(_.close())
     indexWriter.close
   }
 }
@@ -0,0 +1,91 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+import java.io.FileInputStream
+
+import org.apache.lucene.store.Directory
+import org.apache.lucene.store.FSDirectory
+import org.apache.lucene.store.MMapDirectory
+import org.apache.lucene.store.NIOFSDirectory
+import org.apache.lucene.store.SimpleFSDirectory
+
+import org.slf4j.LoggerFactory
+
+import edu.knowitall.common.Resource.using
+import edu.knowitall.common.Timing
+
+/**
+ * Opening index directories with a chosen Directory implementation, and
+ * preloading index files into the OS page cache.
+ */
+object IndexDirectory {
+
+  val logger = LoggerFactory.getLogger(this.getClass)
+
+  sealed abstract class Type(val name: String)
+  /** Whatever FSDirectory.open picks for this platform. */
+  case object Auto extends Type("auto")
+  case object MMap extends Type("mmap")
+  case object Nio extends Type("nio")
+  case object Simple extends Type("simple")
+
+  val types = Seq(Auto, MMap, Nio, Simple)
+
+  def typeNamed(name: String): Type = types.find(_.name == name.toLowerCase).getOrElse {
+    throw new IllegalArgumentException("Unknown directory type: %s (expected one of %s)".format(name, types.map(_.name).mkString(", ")))
+  }
+
+  def open(path: String, dirType: Type): Directory = {
+    val file = new File(path)
+    dirType match {
+      case Auto => FSDirectory.open(file)
+      case MMap => new MMapDirectory(file)
+      case Nio => new NIOFSDirectory(file)
+      case Simple => new SimpleFSDirectory(file)
+    }
+  }
+
+  // term dictionary and index, postings and positions, the stored fields index, and compound segments.
+  // Stored field data (fdt) is the bulk of the index, so it is left out unless asked for. A compound
+  // segment (cfs) holds all of its files, stored field data included, but the default merge policy only
+  // makes compound files of segments under a tenth of the index, and leaving them out would leave those
+  // segments' postings cold.
+  val defaultPreloadExtensions = Set("tii", "tis", "frq", "prx", "fdx", "cfs")
+
+  private val preloadBufferBytes = 1 << 20
+  private val progressIntervalBytes = 256L << 20
+
+  /**
+   * Reads every file under path with one of the given extensions from start to end, so that
+   * the first queries after a reboot find them in the page cache. Returns the number of bytes read.
+   */
+  def preload(path: String, extensions: Set[String] = defaultPreloadExtensions): Long = {
+
+    val files = Option(new File(path).listFiles).getOrElse(Array.empty[File])
+      .filter(file => file.isFile && extensions.contains(file.getName.split('.').last))
+      .sortBy(_.getName)
+    val totalBytes = files.map(_.length).sum
+    logger.info("Preloading %d files (%d MB) from %s".format(files.size, totalBytes >> 20, path))
+
+    val buffer = new Array[Byte](preloadBufferBytes)
+    var bytesRead = 0L
+    var nextProgress = progressIntervalBytes
+    val (ns, _) = Timing.time {
+      files.foreach { file =>
+        using(new FileInputStream(file)) { input =>
+          var n = input.read(buffer)
+          while (n >= 0) {
+            bytesRead += n
+            if (bytesRead >= nextProgress) {
+              logger.info("Preloaded %d of %d MB from %s".format(bytesRead >> 20, totalBytes >> 20, path))
+              nextProgress += progressIntervalBytes
+            }
+            n = input.read(buffer)
+          }
+        }
+      }
+    }
+    logger.info("Preloaded %d MB from %s in %s".format(bytesRead >> 20, path, Timing.Seconds.format(ns)))
+    bytesRead
+  }
+}
@@ -0,0 +1,332 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import scala.collection.JavaConversions._
+
+import org.apache.lucene.document.Document
+import org.apache.lucene.document.MapFieldSelector
+import org.apache.lucene.index.IndexNotFoundException
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.Directory
+import org.apache.lucene.store.FSDirectory
+
+import com.google.common.util.concurrent.RateLimiter
+
+import edu.knowitall.common.Timing
+
+import scopt.OptionParser
+
+/**
+ * Copies the live documents of the source shards to a new set of target shards, of any number,
+ * then force merges each target down to maxSegments segments. Deleted documents are left behind,
+ * so this also compacts shards that have been updated many times. The sources must not change
+ * while it runs.
+ *
+ * Documents go to targets by strategy: by a ShardPlacement of their keys, or Balanced, which
+ * evens out the targets' document and instance counts. Instances are the bulk of a document, so
+ * instance counts stand in for bytes, and planning doesn't need to read instance blobs.
+ *
+ * Sources are read in slices of sliceSize documents, by up to threads threads at once. Each target
+ * commits every docsPerCommit documents, recording in its commit user data how far into each slice
+ * it has all its documents. If a run is interrupted, running it again with the same arguments
+ * picks each target up from its last commit, without losing or repeating any document.
+ *
+ * readMBPerSec, if positive, limits how fast instance blobs are copied. Merge writes can be
+ * limited with FSDirectory.setMaxMergeWriteMBPerSec on the targets (see main).
+ */
+class IndexResharder(
+    val sources: Seq[Directory],
+    val targets: Seq[Directory],
+    val strategy: IndexResharder.Strategy,
+    val threads: Int = Runtime.getRuntime.availableProcessors,
+    val maxSegments: Int = 1,
+    val docsPerCommit: Int = 100000,
+    val ramBufferMB: Int = 250,
+    val readMBPerSec: Double = 0.0,
+    val sourceSentences: Seq[Option[SentenceStore]] = Nil) {
+
+  import IndexResharder._
+
+  require(!sources.isEmpty && !targets.isEmpty, "need at least one source and one target")
+
+  private val readLimiter = if (readMBPerSec > 0) Some(RateLimiter.create(readMBPerSec * 1024)) else None // permits are KB
+
+  private case class Slice(val id: Int, val source: Int, val start: Int, val end: Int) {
+    def key = sliceKeyPrefix + id
+  }
+
+  /** Copies whatever the targets don't have yet, then force merges them. */
+  def run(): Unit = {
+
+    val readers = sources.map(dir => IndexReader.open(dir))
+    try {
+      val slices = readers.zipWithIndex.flatMap { case (reader, source) =>
+        (0 until reader.maxDoc by sliceSize).map(start => (source, start, math.min(start + sliceSize, reader.maxDoc)))
+      }.zipWithIndex.map { case ((source, start, end), id) => Slice(id, source, start, end) }.toIndexedSeq
+
+      val signature = "%d->%d %s slices of %d: %s".format(sources.size, targets.size, strategy, sliceSize, readers.map(_.maxDoc).mkString(","))
+      val checkpoints = targets.map(dir => readCheckpoint(dir, signature, slices)).toIndexedSeq
+
+      if (checkpoints.forall(_.complete)) {
+        System.err.println("Resharding is already complete.")
+        return
+      }
+
+      val assign = assignment(readers, slices)
+      val writers = targets.map(dir => new IndexWriter(dir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB)))
+      var finished = false
+      try {
+        // how far into each slice its thread has gone; every target has all its documents before this point
+        val sliceProgress = new AtomicIntegerArray(slices.size)
+        slices.foreach(slice => sliceProgress.set(slice.id, checkpoints.map(_.resumeAt(slice)).min))
+        val targetWriters = writers.zipWithIndex.map { case (writer, t) => new Target(t, writer, checkpoints(t), signature, slices, sliceProgress) }
+
+        val progress = new Progress(slices.map(slice => slice.end - sliceProgress.get(slice.id)).sum)
+        val pool = Executors.newFixedThreadPool(threads)
+        try {
+          val tasks = slices.map { slice =>
+            pool.submit(new Callable[Unit]() {
+              override def call() = copySlice(readers(slice.source), slice, assign, targetWriters, sliceProgress, progress)
+            })
+          }
+          tasks.foreach(_.get())
+        } finally {
+          pool.shutdownNow()
+          progress.stop()
+        }
+
+        targetWriters.foreach(_.commit(complete = false))
+        val (nsMerge, _) = Timing.time {
+          inParallel(targetWriters) { target =>
+            target.writer.forceMerge(maxSegments)
+            target.commit(complete = true)
+          }
+        }
+        System.err.println("Merged targets to %d segments in %s".format(maxSegments, Timing.Seconds.format(nsMerge)))
+        finished = true
+      } finally {
+        // closing would commit documents past the last checkpoint, which a resumed run would add again
+        if (finished) inParallel(writers)(_.close()) else writers.foreach(_.rollback())
+      }
+    } finally {
+      readers.foreach(_.close())
+    }
+  }
+
+  private def copySlice(reader: IndexReader, slice: Slice, assign: (Slice, Int, Document) => Int, targetWriters: Seq[Target], sliceProgress: AtomicIntegerArray, progress: Progress): Unit = {
+    val sentences = sourceSentences.lift(slice.source).flatten
+    var docNum = sliceProgress.get(slice.id)
+    while (docNum < slice.end) {
+      if (Thread.interrupted) throw new InterruptedException()
+      if (reader.isDeleted(docNum)) sliceProgress.set(slice.id, docNum + 1)
+      else {
+        val doc = reader.document(docNum)
+        val target = targetWriters(assign(slice, docNum, doc))
+        if (docNum < target.checkpoint.resumeAt(slice)) sliceProgress.set(slice.id, docNum + 1) // already in its last commit
+        else {
+          readLimiter.foreach(_.acquire(1 + Option(doc.getBinaryValue("instances")).map(_.length / 1024).getOrElse(0)))
+          // rebuilt from the group, since the fields that are indexed but not stored can't be copied
+          val group = sentences match {
+            case Some(store) => ReVerbDocumentConverter.fromDocument(doc, store)
+            case None => ReVerbDocumentConverter.fromDocument(doc)
+          }
+          target.add(slice, docNum, ReVerbDocumentConverter.toDocument(group))
+        }
+      }
+      progress.advance()
+      docNum += 1
+    }
+  }
+
+  // Which target each document goes to. Balanced plans every assignment up front, so it is the same on every run.
+  private def assignment(readers: Seq[IndexReader], slices: Seq[Slice]): (Slice, Int, Document) => Int = strategy match {
+    case ByPlacement(placement) => (slice, docNum, doc) => placement.shard(doc, targets.size)
+    case Balanced => {
+      val plan = balancedPlan(readers, slices)
+      (slice, docNum, doc) => plan(slice.id)(docNum - slice.start)
+    }
+  }
+
+  // greedily gives each document to the target it leaves least loaded, counting documents and instances equally
+  private def balancedPlan(readers: Seq[IndexReader], slices: Seq[Slice]): IndexedSeq[Array[Short]] = {
+    require(targets.size <= Short.MaxValue, "too many targets to balance")
+    val sizeSelector = new MapFieldSelector("size")
+    val sizes = slices.map { slice =>
+      val reader = readers(slice.source)
+      (slice.start until slice.end).map(docNum => if (reader.isDeleted(docNum)) -1 else ReVerbDocumentConverter.storedSize(reader.document(docNum, sizeSelector))).toArray
+    }
+    val totalDocs = math.max(1.0, sizes.map(_.count(_ >= 0)).sum.toDouble)
+    val totalInstances = math.max(1.0, sizes.map(_.filter(_ > 0).map(_.toLong).sum).sum.toDouble)
+    val docCounts = new Array[Double](targets.size)
+    val instanceCounts = new Array[Double](targets.size)
+    sizes.map { sliceSizes =>
+      sliceSizes.map { size =>
+        if (size < 0) 0.toShort
+        else {
+          var best = 0
+          var bestLoad = Double.MaxValue
+          var t = 0
+          while (t < targets.size) {
+            val load = (docCounts(t) + 1) / totalDocs + (instanceCounts(t) + size) / totalInstances
+            if (load < bestLoad) { best = t; bestLoad = load }
+            t += 1
+          }
+          docCounts(best) += 1
+          instanceCounts(best) += size
+          best.toShort
+        }
+      }
+    }.toIndexedSeq
+  }
+
+  // A target shard. Adds hold the read lock, and commits take the write lock just long enough to
+  // prepare the commit, so the progress a commit records is exactly what it contains.
+  private class Target(val index: Int, val writer: IndexWriter, val checkpoint: Checkpoint, signature: String, slices: Seq[Slice], sliceProgress: AtomicIntegerArray) {
+
+    private val lock = new ReentrantReadWriteLock()
+    private val sinceCommit = new AtomicInteger(0)
+
+    def add(slice: Slice, docNum: Int, doc: Document): Unit = {
+      lock.readLock.lock()
+      try {
+        writer.addDocument(doc)
+        sliceProgress.set(slice.id, docNum + 1)
+      } finally {
+        lock.readLock.unlock()
+      }
+      if (sinceCommit.incrementAndGet() >= docsPerCommit) commit(complete = false)
+    }
+
+    def commit(complete: Boolean): Unit = synchronized {
+      sinceCommit.set(0)
+      lock.writeLock.lock()
+      try {
+        val userData = slices.map(slice => (slice.key, math.max(sliceProgress.get(slice.id), checkpoint.resumeAt(slice)).toString)).toMap +
+          (signatureKey -> signature) ++ (if (complete) Map(completeKey -> "true") else Map.empty[String, String])
+        writer.prepareCommit(userData)
+      } finally {
+        lock.writeLock.unlock()
+      }
+      writer.commit()
+    }
+  }
+
+  private case class Checkpoint(val userData: Map[String, String]) {
+    def complete = userData.contains(completeKey)
+    def resumeAt(slice: Slice): Int = userData.get(slice.key).map(_.toInt).getOrElse(slice.start)
+  }
+
+  private def readCheckpoint(dir: Directory, signature: String, slices: Seq[Slice]): Checkpoint = {
+    val userData = try { IndexReader.getCommitUserData(dir).toMap } catch { case e: IndexNotFoundException => Map.empty[String, String] }
+    userData.get(signatureKey) match {
+      case Some(sig) if sig != signature => throw new IllegalArgumentException("%s is part of a different reshard: %s".format(dir, sig))
+      case Some(_) => Checkpoint(userData)
+      case None => {
+        val numDocs = try { val reader = IndexReader.open(dir); try reader.maxDoc finally reader.close() } catch { case e: IndexNotFoundException => 0 }
+        if (numDocs > 0) throw new IllegalArgumentException("Target %s already has documents".format(dir))
+        Checkpoint(Map.empty)
+      }
+    }
+  }
+
+  private def inParallel[T](items: Seq[T])(f: T => Unit): Unit = {
+    val pool = Executors.newFixedThreadPool(math.max(1, math.min(threads, items.size)))
+    try {
+      items.map(item => pool.submit(new Callable[Unit]() { override def call() = f(item) })).foreach(_.get())
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  // reports docs copied every reportSeconds
+  private class Progress(total: Long) {
+    private val done = new AtomicLong(0)
+    private val start = System.nanoTime
+    private val reporter = Executors.newSingleThreadScheduledExecutor()
+    reporter.scheduleAtFixedRate(new Runnable() { override def run() = report() }, reportSeconds, reportSeconds, SECONDS)
+
+    def advance(): Unit = done.incrementAndGet()
+
+    def report(): Unit = {
+      val count = done.get
+      val seconds = (System.nanoTime - start) / 1e9
+      val rate = count / math.max(seconds, 1e-3)
+      val eta = if (rate > 0) ((total - count) / rate).toLong else 0L
+      System.err.println("Resharded %d of %d docs (%.1f%%), %.0f docs/s, about %d s left".format(count, total, 100.0 * count / math.max(total, 1L), rate, eta))
+    }
+
+    def stop(): Unit = {
+      reporter.shutdownNow()
+      report()
+    }
+  }
+}
+
+object IndexResharder {
+
+  sealed abstract class Strategy
+  case class ByPlacement(val placement: ShardPlacement) extends Strategy {
+    override def toString = if (placement == ShardPlacement.Hashed) "hashed" else placement.getClass.getName
+  }
+  case object Balanced extends Strategy {
+    override def toString = "balanced"
+  }
+
+  val sliceSize = 1000000
+
+  private val reportSeconds = 30L
+
+  private val sliceKeyPrefix = "reshard.slice."
+  private val signatureKey = "reshard.signature"
+  private val completeKey = "reshard.complete"
+
+  def main(args: Array[String]): Unit = {
+
+    var sourcePaths: Seq[String] = Nil
+    var targetPaths: Seq[String] = Nil
+    var strategy: Strategy = ByPlacement(ShardPlacement.default)
+    var threads = Runtime.getRuntime.availableProcessors
+    var maxSegments = 1
+    var docsPerCommit = 100000
+    var ramBufferMB = 250
+    var readMBPerSec = 0.0
+    var mergeMBPerSec = 0.0
+
+    val optionParser = new OptionParser() {
+      arg("sourcePaths", "Colon-delimited list of paths to the shards to read", { str => sourcePaths = str.split(":") })
+      arg("targetPaths", "Colon-delimited list of paths to the shards to write, which must be new or from an interrupted run", { str => targetPaths = str.split(":") })
+      opt("balanced", "Balance targets by documents and instances, instead of placing groups by the hash of their key", { strategy = Balanced })
+      intOpt("threads", "Threads copying documents", { i => threads = i })
+      intOpt("maxSegments", "Segments to force merge each target to", { i => maxSegments = i })
+      intOpt("docsPerCommit", "Documents added to a target between its commits", { i => docsPerCommit = i })
+      intOpt("ramBufferMB", "Size of ram buffer per target, (e.g. IndexWriterConfig.setRAMBufferSizeMB)", { i => ramBufferMB = i })
+      opt("readMBPerSec", "Limit on the rate instances are copied at", { str => readMBPerSec = str.toDouble })
+      opt("mergeMBPerSec", "Limit on the rate each target writes merged segments at", { str => mergeMBPerSec = str.toDouble })
+    }
+
+    if (!optionParser.parse(args)) return
+
+    require((sourcePaths.map(new File(_).getCanonicalPath).toSet & targetPaths.map(new File(_).getCanonicalPath).toSet).isEmpty, "sources and targets must differ")
+
+    val targets = targetPaths.map { path =>
+      val dir = FSDirectory.open(new File(path))
+      if (mergeMBPerSec > 0) dir.setMaxMergeWriteMBPerSec(mergeMBPerSec)
+      dir
+    }
+
+    val resharder = new IndexResharder(sourcePaths.map(path => FSDirectory.open(new File(path))), targets, strategy,
+      threads, maxSegments, docsPerCommit, ramBufferMB, readMBPerSec, sourcePaths.map(SentenceStore.forIndex))
+
+    val (nsTotal, _) = Timing.time(resharder.run())
+    System.err.println("Resharded %d shards into %d in %s".format(sourcePaths.size, targetPaths.size, Timing.Seconds.format(nsTotal)))
+  }
+}
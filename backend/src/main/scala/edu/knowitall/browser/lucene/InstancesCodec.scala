@@ -0,0 +1,337 @@
+package edu.knowitall.browser.lucene
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+
+import scala.collection.mutable
+
+import edu.knowitall.collection.immutable.Interval
+import edu.knowitall.openie.models.Instance
+import edu.knowitall.openie.models.ReVerbExtraction
+
+/**
+ * Binary format for the "instances" stored field of a ReVerb group document.
+ *
+ * Layout (version 2):
+ *   magic byte, version byte,
+ *   string table (corpora, postags and chunk tags, each stored once per blob),
+ *   instance count, chunk size, chunk count, byte length of each chunk,
+ *   then the instances, most confident first, chunk size to a chunk (the last may be short). Each is:
+ *     corpus index, confidence, token count, tokens (length-prefixed UTF-8),
+ *     postag indices, chunk tag indices, arg1/rel/arg2 interval bounds, source url.
+ *
+ * Version 1 is the same without the chunk size, count and lengths, and in no particular order.
+ * Version 3 is version 2 for an index with a sentence store (see SentenceStore): each instance
+ * is just corpus index, confidence, sentence id (8 bytes) and interval bounds, and the string table
+ * holds only corpora. Decoding it needs the shard's store.
+ * All counts, indices, lengths and interval bounds are unsigned varints.
+ *
+ * Because instances are sorted, a reader that shows only the top K of a large group can decode just
+ * the first K (decodeFirst), and the chunk lengths let it skip straight to any chunk (decodeChunk).
+ *
+ * Documents written before this format existed hold a Java-serialized Stream of instances.
+ * A Java serialization stream always begins with 0xACED, which can never be mistaken for
+ * our magic byte, so decode transparently reads either format.
+ */
+object InstancesCodec {
+
+  type REI = Instance[ReVerbExtraction]
+
+  val magic: Byte = 0x52 // 'R'
+  val currentVersion: Byte = 2
+
+  val sentenceStoreVersion: Byte = 3
+
+  val defaultChunkSize = 32
+
+  private val javaStreamMagic0 = 0xAC.toByte
+  private val javaStreamMagic1 = 0xED.toByte
+
+  def isLegacy(bytes: Array[Byte]): Boolean = {
+    bytes.length >= 2 && bytes(0) == javaStreamMagic0 && bytes(1) == javaStreamMagic1
+  }
+
+  def encode(instances: Iterable[REI], chunkSize: Int = defaultChunkSize): Array[Byte] = encodeChunks(instances, chunkSize, None)
+
+  /** Writes the instances' sentences to sentences, and a blob that refers to them by id. */
+  def encode(instances: Iterable[REI], sentences: SentenceStore.Writer): Array[Byte] = encodeChunks(instances, defaultChunkSize, Some(sentences))
+
+  private def encodeChunks(instances: Iterable[REI], chunkSize: Int, sentences: Option[SentenceStore.Writer]): Array[Byte] = {
+
+    require(chunkSize > 0, "chunk size must be positive: " + chunkSize)
+
+    val instSeq = instances.toIndexedSeq.sortBy(-_.confidence)
+
+    // build the string table
+    val table = new StringTable
+    instSeq.foreach { inst =>
+      table.add(inst.corpus)
+      if (sentences.isEmpty) {
+        inst.extraction.sentenceTokens.foreach { token =>
+          table.add(token.postag)
+          table.add(token.chunk)
+        }
+      }
+    }
+
+    // encode the chunks first, since the header holds their lengths
+    val chunks = instSeq.grouped(chunkSize).map { chunk =>
+      val chunkOutput = new ByteArrayOutputStream(64 * chunk.size)
+      val out = new DataOutputStream(chunkOutput)
+      chunk.foreach(writeInstance(out, table, sentences, _))
+      out.flush()
+      chunkOutput.toByteArray
+    }.toIndexedSeq
+
+    val byteOutput = new ByteArrayOutputStream(chunks.map(_.length).sum + 16 * chunks.size + 16)
+    val out = new DataOutputStream(byteOutput)
+
+    out.writeByte(magic)
+    out.writeByte(if (sentences.isDefined) sentenceStoreVersion else currentVersion)
+
+    writeVarInt(out, table.strings.size)
+    table.strings.foreach(writeString(out, _))
+
+    writeVarInt(out, instSeq.size)
+    writeVarInt(out, chunkSize)
+    writeVarInt(out, chunks.size)
+    chunks.foreach(chunk => writeVarInt(out, chunk.length))
+    chunks.foreach(chunk => out.write(chunk))
+
+    out.flush()
+    byteOutput.toByteArray
+  }
+
+  /** All the instances. sentences is the shard's sentence store, needed only for blobs that refer to it. */
+  def decode(bytes: Array[Byte], sentences: Option[SentenceStore] = None): Seq[REI] = decodeFirst(bytes, Int.MaxValue, sentences)
+
+  /**
+   * The limit most confident instances. Only those are decoded from chunked blobs;
+   * older blobs are decoded in full, then sorted.
+   */
+  def decodeFirst(bytes: Array[Byte], limit: Int, sentences: Option[SentenceStore] = None): Seq[REI] = {
+    if (isLegacy(bytes)) takeMostConfident(decodeLegacy(bytes), limit)
+    else {
+      val in = new DataInputStream(new ByteArrayInputStream(bytes))
+      readVersion(in) match {
+        case 1 => takeMostConfident(decodeV1(in), limit)
+        case version => {
+          val header = readHeaderV2(in)
+          readInstances(in, header.table, math.min(limit, header.numInstances), sentenceResolver(version, sentences))
+        }
+      }
+    }
+  }
+
+  /** The instances in chunk number chunk of a chunked blob, skipping the chunks before it. */
+  def decodeChunk(bytes: Array[Byte], chunk: Int, sentences: Option[SentenceStore] = None): Seq[REI] = {
+    val in = new DataInputStream(new ByteArrayInputStream(bytes))
+    readVersion(in) match {
+      case 1 => throw new IllegalArgumentException("Instances encoding version 1 has no chunks")
+      case version => {
+        val header = readHeaderV2(in)
+        require(chunk >= 0 && chunk < header.chunkLengths.length, "no chunk %d of %d".format(chunk, header.chunkLengths.length))
+        in.skipBytes(header.chunkLengths.take(chunk).sum)
+        val numInstances = math.min(header.chunkSize, header.numInstances - chunk * header.chunkSize)
+        readInstances(in, header.table, numInstances, sentenceResolver(version, sentences))
+      }
+    }
+  }
+
+  /** True if bytes refer to sentences in a sentence store. */
+  def usesSentenceStore(bytes: Array[Byte]): Boolean = !isLegacy(bytes) && bytes.length >= 2 && bytes(0) == magic && bytes(1) == sentenceStoreVersion
+
+  // how instances of a blob of version get their sentences: inline (None), or from the store
+  private def sentenceResolver(version: Int, sentences: Option[SentenceStore]): Option[SentenceStore] = {
+    if (version != sentenceStoreVersion) None
+    else if (sentences.isEmpty) throw new IllegalStateException("These instances refer to a sentence store, but none was given")
+    else sentences
+  }
+
+  /** The number of chunks in a blob, or 1 if it isn't chunked. */
+  def numChunks(bytes: Array[Byte]): Int = {
+    if (isLegacy(bytes)) 1
+    else {
+      val in = new DataInputStream(new ByteArrayInputStream(bytes))
+      readVersion(in) match {
+        case 1 => 1
+        case _ => readHeaderV2(in).chunkLengths.length
+      }
+    }
+  }
+
+  private def takeMostConfident(instances: Seq[REI], limit: Int): Seq[REI] = {
+    if (limit >= instances.size) instances else instances.sortBy(-_.confidence).take(limit)
+  }
+
+  private def readVersion(in: DataInputStream): Int = {
+    val readMagic = in.readByte()
+    if (readMagic != magic) throw new IllegalArgumentException("Unrecognized instances encoding, magic byte: " + readMagic)
+    val version = in.readByte()
+    if (version < 1 || version > sentenceStoreVersion) throw new IllegalArgumentException("Unsupported instances encoding version: " + version)
+    version
+  }
+
+  private case class HeaderV2(val table: Array[String], val numInstances: Int, val chunkSize: Int, val chunkLengths: Array[Int])
+
+  private def readHeaderV2(in: DataInputStream): HeaderV2 = {
+    val tableSize = readVarInt(in)
+    val table = Array.fill(tableSize)(readString(in))
+    val numInstances = readVarInt(in)
+    val chunkSize = readVarInt(in)
+    val numChunks = readVarInt(in)
+    val chunkLengths = Array.fill(numChunks)(readVarInt(in))
+    HeaderV2(table, numInstances, chunkSize, chunkLengths)
+  }
+
+  private def decodeV1(in: DataInputStream): Seq[REI] = {
+
+    val tableSize = readVarInt(in)
+    val table = Array.fill(tableSize)(readString(in))
+
+    readInstances(in, table, readVarInt(in), None)
+  }
+
+  private def readInstances(in: DataInputStream, table: Array[String], numInstances: Int, sentences: Option[SentenceStore]): Seq[REI] = {
+    val instances = new Array[REI](numInstances)
+    var i = 0
+    while (i < numInstances) {
+      instances(i) = sentences match {
+        case Some(store) => readStoredInstance(in, table, store)
+        case None => readInstance(in, table)
+      }
+      i += 1
+    }
+    instances
+  }
+
+  private def writeInstance(out: DataOutputStream, table: StringTable, sentences: Option[SentenceStore.Writer], inst: REI): Unit = {
+    val extr = inst.extraction
+    writeVarInt(out, table.indexOf(inst.corpus))
+    out.writeDouble(inst.confidence)
+    sentences match {
+      case Some(store) => {
+        out.writeLong(store.add(extr))
+        writeInterval(out, extr.arg1Interval)
+        writeInterval(out, extr.relInterval)
+        writeInterval(out, extr.arg2Interval)
+      }
+      case None => {
+        writeVarInt(out, extr.sentenceTokens.size)
+        extr.sentenceTokens.foreach(token => writeString(out, token.string))
+        extr.sentenceTokens.foreach(token => writeVarInt(out, table.indexOf(token.postag)))
+        extr.sentenceTokens.foreach(token => writeVarInt(out, table.indexOf(token.chunk)))
+        writeInterval(out, extr.arg1Interval)
+        writeInterval(out, extr.relInterval)
+        writeInterval(out, extr.arg2Interval)
+        writeString(out, extr.sourceUrl)
+      }
+    }
+  }
+
+  private def readStoredInstance(in: DataInputStream, table: Array[String], sentences: SentenceStore): REI = {
+    val corpus = table(readVarInt(in))
+    val confidence = in.readDouble()
+    val sentence = sentences.sentence(in.readLong())
+    val arg1Interval = readInterval(in)
+    val relInterval = readInterval(in)
+    val arg2Interval = readInterval(in)
+    Instance(sentence.extraction(arg1Interval, relInterval, arg2Interval), corpus, confidence)
+  }
+
+  private def readInstance(in: DataInputStream, table: Array[String]): REI = {
+    val corpus = table(readVarInt(in))
+    val confidence = in.readDouble()
+    val numTokens = readVarInt(in)
+    val tokens = IndexedSeq.fill(numTokens)(readString(in))
+    val postags = IndexedSeq.fill(numTokens)(table(readVarInt(in)))
+    val chunkTags = IndexedSeq.fill(numTokens)(table(readVarInt(in)))
+    val arg1Interval = readInterval(in)
+    val relInterval = readInterval(in)
+    val arg2Interval = readInterval(in)
+    val sourceUrl = readString(in)
+    val sentenceTokens = ReVerbExtraction.chunkedTokensFromLayers(tokens, postags, chunkTags).toIndexedSeq
+    val extr = new ReVerbExtraction(sentenceTokens, arg1Interval, relInterval, arg2Interval, sourceUrl)
+    Instance(extr, corpus, confidence)
+  }
+
+  /** The format used before this codec existed: a Java-serialized Stream of instances. */
+  def encodeLegacy(instances: Iterable[REI]): Array[Byte] = {
+    val byteOutput = new ByteArrayOutputStream
+    val oos = new ObjectOutputStream(byteOutput)
+    oos.writeObject(instances.toSeq.toStream)
+    oos.close()
+    byteOutput.toByteArray()
+  }
+
+  def decodeLegacy(bytes: Array[Byte]): Seq[REI] = {
+    val objectInput = new ObjectInputStream(new ByteArrayInputStream(bytes))
+    try {
+      objectInput.readObject().asInstanceOf[Stream[REI]].toList
+    } finally {
+      objectInput.close()
+    }
+  }
+
+  private class StringTable {
+    val strings = new mutable.ArrayBuffer[String]
+    private val indices = new mutable.HashMap[String, Int]
+    def add(string: String): Unit = {
+      if (!indices.contains(string)) {
+        indices.put(string, strings.size)
+        strings += string
+      }
+    }
+    def indexOf(string: String): Int = indices(string)
+  }
+
+  // we write Interval.open(start, end), just as Chill does
+  private def writeInterval(out: DataOutputStream, interval: Interval): Unit = {
+    writeVarInt(out, interval.start)
+    writeVarInt(out, interval.end)
+  }
+
+  private def readInterval(in: DataInputStream): Interval = {
+    val start = readVarInt(in)
+    val end = readVarInt(in)
+    Interval.open(start, end)
+  }
+
+  private[lucene] def writeString(out: DataOutputStream, string: String): Unit = {
+    val bytes = string.getBytes("UTF-8")
+    writeVarInt(out, bytes.length)
+    out.write(bytes)
+  }
+
+  private[lucene] def readString(in: DataInputStream): String = {
+    val bytes = new Array[Byte](readVarInt(in))
+    in.readFully(bytes)
+    new String(bytes, "UTF-8")
+  }
+
+  private[lucene] def writeVarInt(out: DataOutputStream, value: Int): Unit = {
+    require(value >= 0, "varints must be non-negative: " + value)
+    var v = value
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80)
+      v >>>= 7
+    }
+    out.writeByte(v)
+  }
+
+  private[lucene] def readVarInt(in: DataInputStream): Int = {
+    var b = in.readByte()
+    var value = b & 0x7F
+    var shift = 7
+    while ((b & 0x80) != 0) {
+      b = in.readByte()
+      value |= (b & 0x7F) << shift
+      shift += 7
+    }
+    value
+  }
+}
@@ -0,0 +1,75 @@
+package edu.knowitall.browser.lucene
+
+import scala.reflect.ClassTag
+
+import edu.knowitall.openie.models.Instance
+import edu.knowitall.openie.models.ReVerbExtraction
+
+/**
+ * An immutable set of instances backed by an encoded "instances" blob (see InstancesCodec).
+ * The blob is decoded the first time the set's contents are touched. size and isEmpty
+ * are answered from the group's stored "size" field, so callers that only count
+ * instances (e.g. ResultSet.numInstances) never pay for decoding. frontendKey is the group's
+ * stored frontend grouping key, if its document has one.
+ *
+ * If readLimit is less than the stored size, the set is a partial view: it holds only the
+ * readLimit most confident instances, and only those are decoded, but size still reports how
+ * many the group has in all. numRead is how many it holds; toArray holds just those.
+ *
+ * sentences is the sentence store of the blob's index, needed if the blob refers to it.
+ */
+class LazyInstanceSet(bytes: Array[Byte], storedSize: Int, val frontendKey: Option[GroupingKeys.Key] = None, val readLimit: Int = Int.MaxValue,
+  sentences: Option[SentenceStore] = None) extends Set[Instance[ReVerbExtraction]] {
+
+  type REI = Instance[ReVerbExtraction]
+
+  @volatile private var decodedFlag = false
+
+  private lazy val decoded: Set[REI] = {
+    val start = System.nanoTime
+    val instances = InstancesCodec.decodeFirst(bytes, readLimit, sentences).toSet
+    MetricsRegistry.default.record(QueryTimings.InstanceDecode, System.nanoTime - start)
+    decodedFlag = true
+    instances
+  }
+
+  /** True once the underlying blob has been decoded. */
+  def isDecoded = decodedFlag
+
+  def isPartial = readLimit < storedSize
+
+  def numRead = math.min(readLimit, storedSize)
+
+  /** A view of just the limit most confident instances. */
+  def truncated(limit: Int): LazyInstanceSet = new LazyInstanceSet(bytes, storedSize, frontendKey, math.min(limit, readLimit), sentences)
+
+  override def size = storedSize
+
+  override def isEmpty = storedSize == 0
+
+  override def contains(inst: REI): Boolean = decoded.contains(inst)
+
+  override def iterator: Iterator[REI] = decoded.iterator
+
+  override def +(inst: REI): Set[REI] = decoded + inst
+
+  override def -(inst: REI): Set[REI] = decoded - inst
+
+  // the default sizes the array by size, which would leave a partial view's tail null
+  override def toArray[B >: REI: ClassTag]: Array[B] = decoded.toArray[B]
+
+  // a partial view would otherwise equal the full set, having the same size and being a subset of it
+  override def equals(that: Any): Boolean = if (isPartial) this eq that.asInstanceOf[AnyRef] else super.equals(that)
+
+  override def hashCode: Int = super.hashCode
+}
+
+object LazyInstanceSet {
+
+  /** How many of instances were actually read: fewer than its size if it is or includes a partial view. */
+  def numRead(instances: Set[Instance[ReVerbExtraction]]): Int = instances match {
+    case lazySet: LazyInstanceSet => lazySet.numRead
+    case merged: MergedInstanceSet => merged.parts.map(numRead).sum
+    case _ => instances.size
+  }
+}
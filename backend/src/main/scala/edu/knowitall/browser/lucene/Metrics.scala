@@ -0,0 +1,266 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.io.PrintWriter
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+import javax.management.ObjectName
+import javax.management.StandardMBean
+
+import scala.collection.JavaConversions._
+import scala.collection.immutable.SortedMap
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/**
+ * A lock-free latency histogram. Buckets are a quarter of a power of two wide, so percentiles
+ * are accurate to within about 20%, and recording is a few atomic increments.
+ */
+class LatencyHistogram {
+
+  import LatencyHistogram._
+
+  private val counts = new AtomicLongArray(numBuckets)
+  private val count = new AtomicLong(0)
+  private val sumNanos = new AtomicLong(0)
+  private val maxNanos = new AtomicLong(0)
+
+  def record(nanos: Long): Unit = {
+    val n = math.max(nanos, 0L)
+    counts.incrementAndGet(bucket(n))
+    count.incrementAndGet()
+    sumNanos.addAndGet(n)
+    var max = maxNanos.get
+    while (n > max && !maxNanos.compareAndSet(max, n)) max = maxNanos.get
+  }
+
+  def snapshot: LatencyHistogram.Snapshot = {
+    val bucketCounts = Array.tabulate(numBuckets)(counts.get)
+    // count the buckets rather than reading count, so the snapshot is consistent with itself
+    Snapshot(bucketCounts.sum, sumNanos.get, maxNanos.get, bucketCounts)
+  }
+}
+
+object LatencyHistogram {
+
+  private val subBucketBits = 2
+  private val subBuckets = 1 << subBucketBits
+  private val numBuckets = 64 * subBuckets
+
+  // values below subBuckets get a bucket each; above that, subBuckets buckets per power of two
+  private[lucene] def bucket(nanos: Long): Int = {
+    if (nanos < subBuckets) nanos.toInt
+    else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(nanos)
+      val sub = ((nanos >>> (exponent - subBucketBits)) & (subBuckets - 1)).toInt
+      (exponent - subBucketBits + 1) * subBuckets + sub
+    }
+  }
+
+  // the largest value that falls in bucket b
+  private[lucene] def upperBound(b: Int): Long = {
+    if (b < subBuckets) b
+    else {
+      val exponent = b / subBuckets + subBucketBits - 1
+      val sub = b % subBuckets
+      (((subBuckets + sub + 1).toLong) << (exponent - subBucketBits)) - 1
+    }
+  }
+
+  case class Snapshot(val count: Long, val sumNanos: Long, val maxNanos: Long, private val counts: Array[Long]) {
+
+    def meanNanos: Double = if (count == 0) 0.0 else sumNanos.toDouble / count
+
+    /** An upper bound on the p'th quantile (0 < p <= 1) of the recorded values, or 0 if there are none. */
+    def percentileNanos(p: Double): Long = {
+      if (count == 0) return 0
+      val rank = math.max(math.ceil(p * count).toLong, 1L)
+      var seen = 0L
+      var b = 0
+      while (b < counts.length) {
+        seen += counts(b)
+        if (seen >= rank) return math.min(upperBound(b), maxNanos)
+        b += 1
+      }
+      maxNanos
+    }
+
+    def p50Nanos = percentileNanos(0.5)
+    def p99Nanos = percentileNanos(0.99)
+  }
+}
+
+/**
+ * Named latency histograms and counters for the query path. Names are dotted, scope first,
+ * e.g. "shard2.search" or "query.total"; the stages are listed in QueryTimings.
+ * Everything in this JVM records into MetricsRegistry.default unless told otherwise.
+ */
+class MetricsRegistry {
+
+  private val histograms = new ConcurrentHashMap[String, LatencyHistogram]
+  private val counters = new ConcurrentHashMap[String, AtomicLong]
+
+  def histogram(name: String): LatencyHistogram = histograms.get(name) match {
+    case null => {
+      val histogram = new LatencyHistogram()
+      Option(histograms.putIfAbsent(name, histogram)).getOrElse(histogram)
+    }
+    case histogram => histogram
+  }
+
+  def counter(name: String): AtomicLong = counters.get(name) match {
+    case null => {
+      val counter = new AtomicLong(0)
+      Option(counters.putIfAbsent(name, counter)).getOrElse(counter)
+    }
+    case counter => counter
+  }
+
+  def record(name: String, nanos: Long): Unit = histogram(name).record(nanos)
+
+  /** Records each stage of timings under scope.stage. */
+  def record(scope: String, timings: QueryTimings): Unit = {
+    timings.stageNanos.foreach { case (stage, nanos) => record(scope + "." + stage, nanos) }
+  }
+
+  def increment(name: String): Unit = counter(name).incrementAndGet()
+
+  def snapshot: MetricsRegistry.Snapshot = MetricsRegistry.Snapshot(
+    SortedMap(histograms.toSeq.map { case (name, histogram) => (name, histogram.snapshot) }: _*),
+    SortedMap(counters.toSeq.map { case (name, counter) => (name, counter.get) }: _*))
+
+  /** Hands reporter a snapshot every periodMillis, on a shared daemon thread. Cancel the returned future to stop. */
+  def reportEvery(reporter: MetricsReporter, periodMillis: Long): ScheduledFuture[_] = {
+    val task = new Runnable() {
+      override def run() = {
+        // an exception would cancel all later reports
+        try { reporter.report(snapshot) }
+        catch { case e: Exception => MetricsRegistry.logger.error("Failed to report metrics to " + reporter, e) }
+      }
+    }
+    MetricsRegistry.reportTimer.scheduleAtFixedRate(task, periodMillis, periodMillis, MILLISECONDS)
+  }
+}
+
+object MetricsRegistry {
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  val default = new MetricsRegistry()
+
+  case class Snapshot(val histograms: SortedMap[String, LatencyHistogram.Snapshot], val counters: SortedMap[String, Long])
+
+  private val reportTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    override def newThread(runnable: Runnable) = {
+      val thread = new Thread(runnable, "metrics-reporter")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+}
+
+/** Somewhere to send metrics snapshots, see MetricsRegistry.reportEvery. */
+trait MetricsReporter {
+  def report(snapshot: MetricsRegistry.Snapshot): Unit
+}
+
+object MetricsReporter {
+
+  private def millis(nanos: Double) = nanos / 1000000.0
+
+  /** A reporter from a command line spec: log, jmx, or file:<path>. */
+  def named(spec: String): MetricsReporter = spec.split(":", 2) match {
+    case Array("log") => new LogReporter()
+    case Array("jmx") => new JmxReporter(MetricsRegistry.default)
+    case Array("file", path) => new FileReporter(new File(path))
+    case _ => throw new IllegalArgumentException("Unknown metrics reporter: " + spec + ", expected log, jmx or file:<path>")
+  }
+
+  /** Logs one line per histogram and one for all the counters. */
+  class LogReporter(logger: Logger = LoggerFactory.getLogger("edu.knowitall.browser.lucene.metrics")) extends MetricsReporter {
+    override def report(snapshot: MetricsRegistry.Snapshot) = {
+      snapshot.histograms.foreach { case (name, histogram) =>
+        logger.info("%s: count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms".format(name, histogram.count,
+          millis(histogram.meanNanos), millis(histogram.p50Nanos), millis(histogram.p99Nanos), millis(histogram.maxNanos)))
+      }
+      if (!snapshot.counters.isEmpty) logger.info(snapshot.counters.map { case (name, count) => name + "=" + count }.mkString(" "))
+    }
+  }
+
+  /**
+   * Appends tab separated lines to file, for graphing:
+   *   time millis, name, count, mean ms, p50 ms, p99 ms, max ms    (histograms)
+   *   time millis, name, count                                    (counters)
+   */
+  class FileReporter(val file: File) extends MetricsReporter {
+    override def report(snapshot: MetricsRegistry.Snapshot) = synchronized {
+      val now = System.currentTimeMillis
+      val writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"))
+      try {
+        snapshot.histograms.foreach { case (name, histogram) =>
+          writer.println(Seq(now, name, histogram.count, millis(histogram.meanNanos), millis(histogram.p50Nanos), millis(histogram.p99Nanos), millis(histogram.maxNanos)).mkString("\t"))
+        }
+        snapshot.counters.foreach { case (name, count) => writer.println(Seq(now, name, count).mkString("\t")) }
+      } finally {
+        writer.close()
+      }
+    }
+  }
+
+  /**
+   * Registers an MXBean per histogram and counter under domain, as they appear. The beans read the
+   * registry live, so a JMX client sees current values between reports.
+   */
+  class JmxReporter(registry: MetricsRegistry, domain: String = "edu.knowitall.browser.lucene") extends MetricsReporter {
+
+    private val server = ManagementFactory.getPlatformMBeanServer
+
+    override def report(snapshot: MetricsRegistry.Snapshot) = synchronized {
+      snapshot.histograms.keys.foreach { name =>
+        register("latency", name, new StandardMBean(new LatencyStats(registry.histogram(name)), classOf[LatencyStatsMXBean], true))
+      }
+      snapshot.counters.keys.foreach { name =>
+        register("counter", name, new StandardMBean(new CounterStats(registry.counter(name)), classOf[CounterStatsMXBean], true))
+      }
+    }
+
+    private def register(kind: String, name: String, bean: StandardMBean) = {
+      val objectName = new ObjectName("%s:type=%s,name=%s".format(domain, kind, ObjectName.quote(name)))
+      if (!server.isRegistered(objectName)) server.registerMBean(bean, objectName)
+    }
+  }
+
+  trait LatencyStatsMXBean {
+    def getCount: Long
+    def getMeanMillis: Double
+    def getP50Millis: Double
+    def getP99Millis: Double
+    def getMaxMillis: Double
+  }
+
+  class LatencyStats(histogram: LatencyHistogram) extends LatencyStatsMXBean {
+    override def getCount = histogram.snapshot.count
+    override def getMeanMillis = millis(histogram.snapshot.meanNanos)
+    override def getP50Millis = millis(histogram.snapshot.p50Nanos)
+    override def getP99Millis = millis(histogram.snapshot.p99Nanos)
+    override def getMaxMillis = millis(histogram.snapshot.maxNanos)
+  }
+
+  trait CounterStatsMXBean {
+    def getCount: Long
+  }
+
+  class CounterStats(counter: AtomicLong) extends CounterStatsMXBean {
+    override def getCount = counter.get
+  }
+}
@@ -0,0 +1,85 @@
+package edu.knowitall.browser.lucene
+
+import java.lang.Float.floatToIntBits
+import java.lang.Float.intBitsToFloat
+
+import com.google.common.base.Charsets
+import com.google.common.io.BaseEncoding
+
+import org.apache.lucene.search.ScoreDoc
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+
+/**
+ * Where paging stopped within one shard: the size bucket being read, and the (score, doc)
+ * of the last hit returned from it, searchAfter-style. afterDoc is -1 at the start of a bucket.
+ *
+ * Doc ids are only stable while the shard's reader is unchanged, so the position also records
+ * the reader version it was taken from.
+ */
+case class ShardPosition(val readerVersion: Long, val bucket: Int, val afterScore: Float, val afterDoc: Int) {
+
+  def exhausted = bucket == ShardPosition.exhaustedBucket
+
+  def after: Option[ScoreDoc] = if (afterDoc < 0) None else Some(new ScoreDoc(afterDoc, afterScore))
+}
+
+object ShardPosition {
+  val exhaustedBucket = Int.MaxValue
+
+  val initial = ShardPosition(-1L, 0, Float.NaN, -1)
+
+  def exhausted(readerVersion: Long) = ShardPosition(readerVersion, exhaustedBucket, Float.NaN, -1)
+}
+
+/**
+ * An opaque position in a paged query, with one ShardPosition per shard.
+ * Pass PageCursor.start for the first page, then the cursor returned with each page.
+ */
+case class PageCursor(val shards: IndexedSeq[ShardPosition]) {
+
+  def shard(i: Int): ShardPosition = if (i < shards.size) shards(i) else ShardPosition.initial
+
+  /** True once every shard has returned all of its hits. */
+  def exhausted = !shards.isEmpty && shards.forall(_.exhausted)
+
+  def encode: String = {
+    val plain = shards.map { pos =>
+      Seq(pos.readerVersion, pos.bucket, floatToIntBits(pos.afterScore), pos.afterDoc).mkString(",")
+    }.mkString(";")
+    BaseEncoding.base64Url.encode(plain.getBytes(Charsets.UTF_8))
+  }
+}
+
+object PageCursor {
+
+  val start = PageCursor(IndexedSeq.empty)
+
+  def decode(encoded: String): PageCursor = {
+    try {
+      val plain = new String(BaseEncoding.base64Url.decode(encoded), Charsets.UTF_8)
+      val shards = plain.split(";").filter(!_.isEmpty).map { shardString =>
+        shardString.split(",") match {
+          case Array(version, bucket, scoreBits, doc) => ShardPosition(version.toLong, bucket.toInt, intBitsToFloat(scoreBits.toInt), doc.toInt)
+          case _ => throw new IllegalArgumentException("Malformed shard position: " + shardString)
+        }
+      }
+      PageCursor(shards.toIndexedSeq)
+    } catch {
+      case e: NumberFormatException => throw new IllegalArgumentException("Malformed page cursor: " + encoded, e)
+    }
+  }
+}
+
+/** A group returned by a page, along with the shard position that resumes right after it. */
+case class PageHit(val group: ExtractionGroup[ReVerbExtraction], val position: ShardPosition) {
+  def bucket = position.bucket
+  def score = position.afterScore
+}
+
+/**
+ * One shard's contribution to a page. resultSet holds the status (Success, Limited or Timeout) of the read,
+ * hits are in reading order, and endPosition resumes after the last hit.
+ */
+case class ShardPage(val resultSet: ResultSet, val hits: Seq[PageHit], val endPosition: ShardPosition)
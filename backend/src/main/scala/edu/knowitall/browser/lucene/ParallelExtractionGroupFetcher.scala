@@ -1,13 +1,22 @@
 package edu.knowitall.browser.lucene
 
 import java.io.File
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.FutureTask
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 import scala.util.matching.Regex
 import scala.io.Source
 import scala.concurrent._
 import scala.concurrent.duration._
-import scala.concurrent.ExecutionContext.Implicits.global
+import scala.math.max
 
 import org.apache.lucene.analysis.WhitespaceAnalyzer
 import org.apache.lucene.search.IndexSearcher
@@ -33,20 +42,80 @@ import org.slf4j.LoggerFactory
 
 import com.google.common.base.Stopwatch
 
-class ParallelExtractionGroupFetcher(val simpleFetchers: Seq[ExtractionGroupFetcher]) extends GroupFetcher {
+class ParallelExtractionGroupFetcher(
+  val simpleFetchers: Seq[ExtractionGroupFetcher],
+  val shardThreads: Int,
+  val shardQueueCapacity: Int) extends GroupFetcher {
 
   require(!simpleFetchers.isEmpty)
 
+  import ParallelExtractionGroupFetcher.{deadlineTimer, rankOrdering, shardScope}
+
   val logger = LoggerFactory.getLogger(this.getClass)
 
-  def this(indexPaths: Seq[String], searchMaxGroups: Int, readMaxInstances: Int, timeoutMillis: Long, stoplist: Boolean = true) =
-    this(indexPaths.map(path => new ExtractionGroupFetcher(path, searchMaxGroups/indexPaths.size, readMaxInstances/indexPaths.size, timeoutMillis, stoplist)))
+  def this(simpleFetchers: Seq[ExtractionGroupFetcher]) =
+    this(simpleFetchers, simpleFetchers.size * ParallelExtractionGroupFetcher.threadsPerShard, simpleFetchers.size * ParallelExtractionGroupFetcher.queuedTasksPerShard)
+
+  def this(indexPaths: Seq[String], searchMaxGroups: Int, readMaxInstances: Int, timeoutMillis: Long, stoplist: Boolean = true,
+      refreshIntervalMillis: Long = ExtractionGroupFetcher.defaultRefreshIntervalMillis, directoryType: IndexDirectory.Type = IndexDirectory.Auto, preload: Boolean = false) =
+    this(indexPaths.zipWithIndex.map { case (path, i) =>
+      new ExtractionGroupFetcher(path, searchMaxGroups/indexPaths.size, readMaxInstances/indexPaths.size, timeoutMillis, stoplist, refreshIntervalMillis, directoryType, preload,
+        ParallelExtractionGroupFetcher.shardScope(i))
+    })
+
+  val metrics: MetricsRegistry = MetricsRegistry.default
+
+  /**
+   * How groups were placed on the shards, if the shards were built (or migrated, see ShardMigrator)
+   * with a ShardPlacement. Identity queries then go to just the shard their key is on.
+   */
+  @volatile var placement: Option[ShardPlacement] = None
 
-  def getGroups(querySpec: QuerySpec): ResultSet = {
+  /** The shards that can have results for querySpec. */
+  def shardsFor(querySpec: QuerySpec): Seq[Int] = (placement, QuerySpec.identityKey(querySpec)) match {
+    case (Some(shardPlacement), Some(key)) => Seq(shardPlacement.shard(key, simpleFetchers.size))
+    case _ => simpleFetchers.indices
+  }
+
+  /** Deadline for getGroups, measured from when the query arrives. */
+  val timeoutMillis = simpleFetchers.map(_.timeoutMillis).max
+
+  // shard searches run here rather than on the global ExecutionContext, so a slow or blocked
+  // shard can only tie up this fetcher's threads. Work beyond the queue capacity is rejected.
+  private val shardExecutor = {
+    val threadCount = new AtomicInteger(0)
+    val threadFactory = new ThreadFactory() {
+      override def newThread(runnable: Runnable) = {
+        val thread = new Thread(runnable, "shard-fetcher-" + threadCount.incrementAndGet())
+        thread.setDaemon(true)
+        thread
+      }
+    }
+    val executor = new ThreadPoolExecutor(shardThreads, shardThreads, 60000L, MILLISECONDS, new ArrayBlockingQueue[Runnable](shardQueueCapacity), threadFactory)
+    executor.allowCoreThreadTimeOut(true)
+    executor
+  }
+
+  def getGroups(querySpec: QuerySpec): ResultSet = getGroups(querySpec, timeoutMillis)
+
+  override def getGroups(querySpec: QuerySpec, timeLimitMillis: Long): ResultSet = {
     val parallelwatch = new Stopwatch().start()
-    logger.info("Parallel lucene query: %s".format(querySpec.luceneQueryString))
-    val allResults = simpleFetchers.map(fetcher => future { fetcher.getGroups(querySpec) }).map(Await.result(_, 60 seconds))
-    val combinedResults = allResults.reduceOption(_.combineWith(_)).getOrElse(Success.empty)
+    val start = System.nanoTime
+    val timer = new StageTimer()
+    val timeLimit = math.min(timeoutMillis, timeLimitMillis)
+    val deadline = timeLimit.millis.fromNow
+    // tag and parse once here, rather than on the first shard to get to it
+    val tagged = timer.time(QueryTimings.Tagging)(querySpec.normalizeBefore(deadline))
+    val shardResults = if (!tagged) Timeout.empty else {
+      timer.time(QueryTimings.Parsing)(querySpec.luceneQuery)
+      logger.info("Parallel lucene query: %s".format(querySpec.luceneQueryString))
+      // the deadline timer always completes the future, the extra second is just a safety margin
+      Await.result(getGroupsAsync(querySpec, deadline), (timeLimit + 1000).millis)
+    }
+    timer.add(QueryTimings.Total, System.nanoTime - start)
+    metrics.record(ParallelExtractionGroupFetcher.queryScope, timer.timings)
+    metrics.increment(ParallelExtractionGroupFetcher.queryScope + "." + ExtractionGroupFetcher.outcome(shardResults))
+    val combinedResults = shardResults.withTimings(timer.timings ++ shardResults.timings)
 
     logger.info("Parallel %s yields %s groups, %s instances in %s ms"
         .format(
@@ -58,11 +127,240 @@ class ParallelExtractionGroupFetcher(val simpleFetchers: Seq[ExtractionGroupFetc
     combinedResults
   }
 
-  def close() = simpleFetchers.foreach(_.close())
+  /**
+   * Queries all shards in parallel (or just the one, see placement). The returned future completes when every shard has answered,
+   * or at the deadline, whichever comes first. At the deadline, shard searches that haven't started
+   * are cancelled, and the future completes with a Timeout holding the shards that did finish.
+   * Shards that are still running see the deadline as their own time limit, so they stop shortly after.
+   */
+  def getGroupsAsync(querySpec: QuerySpec, deadline: Deadline): Future[ResultSet] = {
+
+    val numShards = simpleFetchers.size
+    val shards = shardsFor(querySpec)
+    val promise = Promise[ResultSet]()
+    val shardResults = new AtomicReferenceArray[ResultSet](numShards)
+    val shardsRemaining = new AtomicInteger(shards.size)
+    val tasks = new Array[FutureTask[Unit]](numShards)
+
+    // the shards that have finished so far, in shard order
+    def finishedResults = (0 until numShards).flatMap(i => Option(shardResults.get(i)).map((i, _)))
+
+    def shardFinished(): Unit = {
+      if (shardsRemaining.decrementAndGet() == 0) promise.trySuccess(combineShards(finishedResults))
+    }
+
+    val timer = deadlineTimer.schedule(new Runnable() {
+      override def run() = {
+        if (!promise.isCompleted) {
+          tasks.filter(_ != null).foreach(_.cancel(false))
+          val finished = finishedResults
+          val finishedShards = finished.map(_._1).toSet
+          shards.filterNot(finishedShards).foreach(i => metrics.increment(shardScope(i) + ".missedDeadline"))
+          promise.trySuccess(combineShards(finished, Seq(Timeout.empty)))
+        }
+      }
+    }, max(deadline.timeLeft.toMillis, 0), MILLISECONDS)
+
+    shards.foreach { i =>
+      val fetcher = simpleFetchers(i)
+      val task = new FutureTask[Unit](new Callable[Unit]() {
+        override def call(): Unit = {
+          try {
+            val remainingMillis = deadline.timeLeft.toMillis
+            val result = if (remainingMillis > 0) fetcher.getGroups(querySpec, remainingMillis) else Timeout.empty
+            shardResults.set(i, result)
+            shardFinished()
+          } catch {
+            case e: Throwable => promise.tryFailure(e)
+          }
+        }
+      })
+      tasks(i) = task
+      try {
+        shardExecutor.execute(task)
+      } catch {
+        case e: RejectedExecutionException => {
+          logger.warn("Shard executor is saturated, skipping shard %d for %s".format(i, querySpec))
+          metrics.increment(shardScope(i) + ".rejected")
+          shardResults.set(i, Timeout.empty)
+          shardFinished()
+        }
+      }
+    }
+
+    val future = promise.future
+    future.onComplete(_ => timer.cancel(false))(ParallelExtractionGroupFetcher.sameThread)
+    future
+  }
+
+  // combines shard results, in shard order, with each shard's stage times scoped by shard
+  private def combineShards(shardResults: Seq[(Int, ResultSet)], extra: Seq[ResultSet] = Nil): ResultSet = {
+    val combined = ResultSet.combineAll(extra ++ shardResults.map(_._2))
+    combined.withTimings(QueryTimings.merge(shardResults.map { case (i, resultSet) => resultSet.timings.scoped(shardScope(i)) }))
+  }
+
+  private val shardExecutionContext = ExecutionContext.fromExecutorService(shardExecutor)
+
+  /**
+   * Runs the whole batch on every shard in parallel, each shard sharing one searcher and one set of
+   * decoded docs across the batch, then combines the shard results query by query. A shard that
+   * doesn't answer by the deadline contributes a Timeout to every query.
+   */
+  override def getGroupsBatch(querySpecs: Seq[QuerySpec]): Seq[ResultSet] = {
+
+    val batchWatch = new Stopwatch().start()
+    val deadline = timeoutMillis.millis.fromNow
+
+    // tag once here, rather than once per shard
+    QuerySpec.normalizeAll(querySpecs.flatMap(_.textToNormalize), deadline)
+
+    def allTimedOut = querySpecs.map(_ => Timeout.empty)
+
+    val shardFutures = simpleFetchers.zipWithIndex.map { case (fetcher, i) =>
+      try {
+        Future {
+          fetcher.getGroupsBatch(querySpecs, deadline.timeLeft.toMillis)
+        }(shardExecutionContext)
+      } catch {
+        case e: RejectedExecutionException => {
+          logger.warn("Shard executor is saturated, skipping shard %d for batch of %d queries".format(i, querySpecs.size))
+          metrics.increment(shardScope(i) + ".rejected")
+          Future.successful(allTimedOut)
+        }
+      }
+    }
+    val shardResults = shardFutures.zipWithIndex.map { case (future, i) =>
+      try {
+        Await.result(future, max(deadline.timeLeft.toMillis, 0).millis)
+      } catch {
+        case e: TimeoutException => {
+          metrics.increment(shardScope(i) + ".missedDeadline")
+          allTimedOut
+        }
+      }
+    }
+
+    val combined = querySpecs.indices.map(i => combineShards(shardResults.zipWithIndex.map { case (results, shard) => (shard, results(i)) }))
+    logger.info("Parallel batch of %d queries yields %d groups, %d instances in %d ms".format(
+        querySpecs.size, combined.map(_.numGroups).sum, combined.map(_.numInstances).sum, batchWatch.elapsed(MILLISECONDS)))
+    combined
+  }
+
+  /**
+   * Returns up to pageSize groups for querySpec across all shards (or just the one, see placement), resuming after cursor,
+   * along with the cursor for the next page. Each shard reads at most pageSize hits past its
+   * own position, the shard hits are merged in (size bucket, score) order, and each shard's
+   * position advances only past the hits that made it onto the page. A shard that is rejected
+   * by the saturated executor or misses the deadline contributes a Timeout and keeps its position.
+   * If a shard's page is Limited or Timeout, the whole page is too, and it ends at that shard's last hit,
+   * so no group of that shard ranked between its last hit and the end of the page is skipped or comes late.
+   */
+  def getGroupsPage(querySpec: QuerySpec, cursor: PageCursor, pageSize: Int): (ResultSet, PageCursor) = {
+
+    val deadline = timeoutMillis.millis.fromNow
+    val shards = shardsFor(querySpec).toSet
+
+    def timedOut(i: Int) = ShardPage(Timeout.empty, Nil, cursor.shard(i))
+
+    val shardFutures = simpleFetchers.zipWithIndex.map { case (fetcher, i) =>
+      if (!shards(i)) {
+        // placement rules out any hits here
+        Future.successful(ShardPage(Success.empty, Nil, ShardPosition.exhausted(cursor.shard(i).readerVersion)))
+      } else try {
+        Future {
+          fetcher.getShardPage(querySpec, cursor.shard(i), pageSize, deadline.timeLeft.toMillis)
+        }(shardExecutionContext)
+      } catch {
+        case e: RejectedExecutionException => {
+          logger.warn("Shard executor is saturated, skipping shard %d for page of %s".format(i, querySpec))
+          metrics.increment(shardScope(i) + ".rejected")
+          Future.successful(timedOut(i))
+        }
+      }
+    }
+    // shards stop by the deadline on their own, the extra second is just a safety margin
+    val awaitDeadline = deadline + 1.second
+    val shardPages = shardFutures.zipWithIndex.map { case (future, i) =>
+      try {
+        Await.result(future, max(awaitDeadline.timeLeft.toMillis, 0).millis)
+      } catch {
+        case e: TimeoutException => {
+          metrics.increment(shardScope(i) + ".missedDeadline")
+          timedOut(i)
+        }
+      }
+    }.toIndexedSeq
+
+    // merge in the order a single shard would return them: largest buckets first, then by score
+    def rank(hit: PageHit, shard: Int) = (hit.bucket, -hit.score, shard, hit.position.afterDoc)
+    val taggedHits = shardPages.zipWithIndex.flatMap { case (page, shard) => page.hits.map(hit => (hit, shard)) }
+    // a shard that didn't read its page to the end may have unread hits ranked right after where it stopped,
+    // so the page stops there too, and hits from other shards ranked after that wait for a later page
+    val stops = shardPages.zipWithIndex.filter { case (page, _) => !page.resultSet.isInstanceOf[Success] && !page.endPosition.exhausted }
+    def beforeStops(hit: PageHit, shard: Int) = stops.forall { case (page, stopShard) =>
+      val stop = page.endPosition
+      if (hit.bucket != stop.bucket) hit.bucket < stop.bucket
+      else stop.afterDoc >= 0 && rankOrdering.lteq(rank(hit, shard), (stop.bucket, -stop.afterScore, stopShard, stop.afterDoc))
+    }
+    val pageHits = taggedHits.sortBy { case (hit, shard) => rank(hit, shard) }.takeWhile { case (hit, shard) => beforeStops(hit, shard) }.take(pageSize)
+
+    val nextPositions = shardPages.zipWithIndex.map { case (page, shard) =>
+      val consumed = pageHits.filter(_._2 == shard).map(_._1)
+      if (consumed.size == page.hits.size) page.endPosition
+      else consumed.lastOption.map(_.position).getOrElse(cursor.shard(shard))
+    }
+
+    val pageGroups = pageHits.map(_._1.group).toList
+    val pageResults = ResultSet.combineAll(shardPages.map(_.resultSet)) match {
+      case Success(_) => Success(pageGroups)
+      case Limited(_, totalGroups) => Limited(pageGroups, totalGroups)
+      case Timeout(_, totalGroups) => Timeout(pageGroups, totalGroups)
+    }
+
+    (pageResults, PageCursor(nextPositions))
+  }
+
+  /** Replaces shard i with the index at indexPath, without interrupting queries. See ExtractionGroupFetcher.swapIndex. */
+  def swapShard(i: Int, indexPath: String): Unit = simpleFetchers(i).swapIndex(indexPath)
+
+  /** Reader versions of each shard, in shard order. */
+  def readerVersions: Seq[Long] = simpleFetchers.map(_.readerVersion)
+
+  def close() = {
+    shardExecutor.shutdown()
+    simpleFetchers.foreach(_.close())
+  }
 }
 
 object ParallelExtractionGroupFetcher {
 
+  // orders page hit ranks: (bucket, -score, shard, doc)
+  private val rankOrdering = implicitly[Ordering[(Int, Float, Int, Int)]]
+
+  val threadsPerShard = 4
+  val queuedTasksPerShard = 64
+
+  /** Metrics scope of the whole query, see MetricsRegistry. */
+  val queryScope = "query"
+
+  /** Metrics scope of shard i, given to the fetchers of the shards this opens. */
+  def shardScope(i: Int) = "shard" + i
+
+  // fires the deadlines of all in-flight parallel queries
+  private val deadlineTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    override def newThread(runnable: Runnable) = {
+      val thread = new Thread(runnable, "parallel-fetcher-deadlines")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  // for cheap callbacks that don't need a thread of their own
+  private val sameThread = new ExecutionContext {
+    override def execute(runnable: Runnable) = runnable.run()
+    override def reportFailure(t: Throwable) = t.printStackTrace()
+  }
+
   private val whiteSpaceSplitter = "\\s+".r
 
   val defaultIndexes = "/scratch/common/openie-demo/index-1.0.4:/scratch2/common/openie-demo/index-1.0.4:/scratch3/common/openie-demo/index-1.0.4:/scratch4/common/openie-demo/index-1.0.4"
@@ -73,6 +371,7 @@ object ParallelExtractionGroupFetcher {
     var searchMaxGroups = 1000
     var readMaxInstances = 1000
     var deduplicate = false
+    var nearDuplicateMinSize = Int.MaxValue
     var frontendGroup = false
     var timeoutMillis = 10000L
     var stem = true
@@ -90,6 +389,8 @@ object ParallelExtractionGroupFetcher {
     var corpora: Option[String]    = None
     var noInst = false
     var entityStoplist = false
+    var directoryType: IndexDirectory.Type = IndexDirectory.Auto
+    var preload = false
 
     val optionParser = new OptionParser() {
       opt("paths", "paths to browser indexes to query, default=%s".format(defaultIndexes), { str => indexPaths = str.split(":") })
@@ -109,15 +410,16 @@ object ParallelExtractionGroupFetcher {
       opt("maxInstances", "Max instances to read in total", { str => readMaxInstances = str.toInt })
       opt("noInst", "Do not list instances, only show Tuple line", { noInst = true })
       opt("entityStoplist", "Use an entity stoplist to reduce systematic linker errors", { entityStoplist = true })
+      opt("directory", "index Directory implementation: %s".format(IndexDirectory.types.map(_.name).mkString(", ")), { str => directoryType = IndexDirectory.typeNamed(str) })
+      opt("preload", "read postings and stored field indexes into the page cache before querying", { preload = true })
       opt("d", "deduplicate instances", { deduplicate = true })
+      opt("nearDupMinSize", "with -d, remove near-duplicate sentences instead in groups with at least this many instances", { str => nearDuplicateMinSize = str.toInt })
       opt("g", "re-group to frontend grouping", { frontendGroup = true })
       opt("ns", "do not stem query", { stem = false })
 
       opt("tabOutput", "Use tab-delimited ReVerbExtractionGroup format (less human readable)", { prettyPrint = false })
     }
 
-    def dedupOpt(group: ExtractionGroup[ReVerbExtraction]) = if (deduplicate) InstanceDeduplicator.deduplicate(group) else group
-
     if (!optionParser.parse(args)) return
 
     if (Seq(arg1, rel, arg2, arg1Entity, arg2Entity, arg1Types, arg2Types, arg1Fbid, arg2Fbid).flatten.length == 0) {
@@ -125,7 +427,7 @@ object ParallelExtractionGroupFetcher {
       return
     }
 
-    val parFetcher = new ParallelExtractionGroupFetcher(indexPaths, searchMaxGroups, readMaxInstances, timeoutMillis, stoplist = entityStoplist)
+    val parFetcher = new ParallelExtractionGroupFetcher(indexPaths, searchMaxGroups, readMaxInstances, timeoutMillis, stoplist = entityStoplist, directoryType = directoryType, preload = preload)
 
     val querySpec = QuerySpec(arg1, rel, arg2, arg1Entity, arg2Entity, arg1Types, arg2Types, corpora, stem, true, arg1Fbid, arg2Fbid)
     val results = parFetcher.getGroups(querySpec)
@@ -172,8 +474,9 @@ object ParallelExtractionGroupFetcher {
     }
 
     def processResults(results: Seq[ExtractionGroup[ReVerbExtraction]], resultType: String): Unit = {
-      val processedResults = if (frontendGroup) ReVerbExtractionGroup.indexGroupingToFrontendGrouping(results).toSeq else results
-      val finalResults = processedResults.map(dedupOpt(_)).sortBy(-_.instances.size)
+      val processedResults = if (frontendGroup) FrontendRegrouper.regroup(results).toSeq else results
+      val dedupedResults = if (deduplicate) InstanceDeduplicator.deduplicateAll(processedResults, nearDuplicateMinSize) else processedResults
+      val finalResults = dedupedResults.sortBy(-_.instances.size)
       if (prettyPrint) prettyPrintResults(finalResults, resultType)
       else tabPrintResults(finalResults, resultType)
     }
@@ -1,14 +1,25 @@
 package edu.knowitall.browser.lucene
 
 import java.io.File
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 
+import scala.collection.JavaConversions._
+import scala.collection.mutable
 import scala.io.Source
 import scala.concurrent._
 import scala.concurrent.duration._
 import scala.concurrent.ExecutionContext.Implicits.global
 
+import org.apache.lucene.index.IndexNotFoundException
+import org.apache.lucene.index.IndexReader
 import org.apache.lucene.index.IndexWriter
 import org.apache.lucene.index.IndexWriterConfig
+import org.apache.lucene.store.Directory
 import org.apache.lucene.store.FSDirectory
 import org.apache.lucene.analysis.Analyzer
 import org.apache.lucene.document.Document
@@ -20,52 +31,226 @@ import edu.knowitall.openie.models._
 import scopt.OptionParser
 
 /**
- * Note that this implementation doesn't contain any explicit parallelism - we rely instead
- * on parallelism within indexWriters and within the OS. Doing it this way should make it easier
- * to reason about how to proceed in the event that this indexer crashes after indexing k lines.
+ * Builds indexes in a pipeline: the calling thread reads lines into batches, numWorkers threads
+ * convert them to documents, and one thread per index adds its documents and commits.
+ * Queues between the stages are bounded, so a slow stage holds back the ones before it, and at most
+ * maxBatchesInFlight batches are read ahead of the slowest index, so the batches that a slow worker
+ * keeps the indexes waiting for can't let the others' finished batches pile up without limit.
  *
- * For example, you can just skip k lines and start up this process again. If everything was
- * actually in a separate thread, it would be more difficult to resume each separate thread where
- * it left off.
+ * Documents go to the index placement picks for their key (see ShardPlacement), so lookups and
+ * updates that share the placement only need to touch that index. Each index's writer adds
+ * documents in input order. Each commit records, in its commit user data, the number of
+ * input lines the index has all its documents for. If the build crashes, running it again with
+ * the same input and resume set skips each index ahead to where its last commit left off, so no
+ * document is lost or added twice. Indexes commit independently, every linesPerCommit lines,
+ * so none of them waits for the others.
  */
 class ParallelIndexBuilder(
     val indexWriters: Seq[IndexWriter],
     val inputLineConverter: String => Iterable[Document],
-    val linesPerCommit: Int) {
-
-  var linesIndexed = 0
-  var groupsIndexed = 0
-  private def indexLines(input: Iterable[String]): Unit = {
-
-    input.par.flatMap{ line =>
-      linesIndexed += 1
-      inputLineConverter(line)
-    }.toStream.grouped(indexWriters.size).foreach { docs =>
-      indexWriters.zip(docs).foreach { case (indexWriter, doc) =>
-        indexWriter.addDocument(doc)
-        groupsIndexed += 1
-      }
+    val linesPerCommit: Int,
+    val numWorkers: Int = Runtime.getRuntime.availableProcessors,
+    val resume: Boolean = false,
+    val placement: ShardPlacement = ShardPlacement.default) {
+
+  import ParallelIndexBuilder._
+
+  private val linesCounter = new AtomicLong(0)
+  private val groupsCounter = new AtomicLong(0)
+
+  def linesIndexed: Long = linesCounter.get
+  def groupsIndexed: Long = groupsCounter.get
+
+  /** For each index, the number of input lines it already has all its documents for. */
+  val committedLines: IndexedSeq[Long] = indexWriters.map(writer => if (resume) committedLine(writer.getDirectory) else 0L).toIndexedSeq
+
+  // the first exception thrown by any stage, which stops the others
+  private val failure = new AtomicReference[Throwable]()
+
+  private def checkFailure(): Unit = {
+    val e = failure.get
+    if (e != null) throw new RuntimeException("Index build failed", e)
+  }
+
+  private def put[T](queue: BlockingQueue[T], item: T): Unit = {
+    while (!queue.offer(item, pollMillis, MILLISECONDS)) checkFailure()
+  }
+
+  private def acquire(semaphore: Semaphore): Unit = {
+    while (!semaphore.tryAcquire(pollMillis, MILLISECONDS)) checkFailure()
+  }
+
+  private def take[T](queue: BlockingQueue[T]): T = {
+    var item = queue.poll(pollMillis, MILLISECONDS)
+    while (item == null) {
+      checkFailure()
+      item = queue.poll(pollMillis, MILLISECONDS)
+    }
+    item
+  }
+
+  // hands a stage its end marker, unless the stages have already stopped after a failure
+  private def stop[T](queue: BlockingQueue[T], item: T): Unit = {
+    while (failure.get == null && !queue.offer(item, pollMillis, MILLISECONDS)) {}
+  }
+
+  private def stage(name: String)(body: => Unit): Thread = {
+    val thread = new Thread(name) {
+      override def run() = try { body } catch { case e: Throwable => failure.compareAndSet(null, e) }
     }
+    thread.start()
+    thread
   }
 
-  private def indexAndCommit(input: Iterable[String]): Unit = {
+  // Adds one index's documents in batch order, whatever order the workers finish batches in.
+  private class ShardWriter(shard: Int) {
+
+    val queue = new ArrayBlockingQueue[ShardBatch](queueBatches)
+
+    // a permit for each batch read but not yet added here, which bounds pending
+    val inFlight = new Semaphore(maxBatchesInFlight)
+
+    private val writer = indexWriters(shard)
+    private val pending = mutable.HashMap.empty[Long, ShardBatch]
+    private var nextBatch = 0L
+    private var endLine = committedLines(shard)
+    private var commitLine = endLine
 
-    indexLines(input)
-    indexWriters.map(writer => future { writer.commit() }).foreach(Await.result(_, 60 seconds))
-    System.err.println("Lines indexed: %s, Groups indexed: %s".format(linesIndexed.toString, groupsIndexed.toString))
+    val thread = stage("index-writer-" + shard) {
+      var done = false
+      while (!done) {
+        val batch = take(queue)
+        if (batch eq endOfInput) done = true
+        else {
+          pending(batch.batchNum) = batch
+          while (pending.contains(nextBatch)) {
+            add(pending.remove(nextBatch).get)
+            nextBatch += 1
+          }
+        }
+      }
+      commit()
+    }
+
+    private def add(batch: ShardBatch): Unit = {
+      batch.docs.foreach { doc =>
+        writer.addDocument(doc)
+        groupsCounter.incrementAndGet()
+      }
+      endLine = math.max(endLine, batch.endLine)
+      if (endLine - commitLine >= linesPerCommit) commit()
+      inFlight.release()
+    }
+
+    private def commit(): Unit = {
+      writer.commit(Map(committedLineKey -> endLine.toString))
+      commitLine = endLine
+      System.err.println("Index %d committed through line %d. Lines indexed: %s, Groups indexed: %s".format(shard, endLine, linesIndexed.toString, groupsIndexed.toString))
+    }
   }
 
+  /**
+   * Indexes input, which must start at the first line of the build's input. If resuming, lines
+   * that every index has already committed are skipped without being converted.
+   */
   def indexAll(input: Iterator[String]): Unit = {
 
-    input.grouped(linesPerCommit).foreach(group => indexAndCommit(group))
+    val startLine = if (committedLines.isEmpty) 0L else committedLines.min
+    val batches = new ArrayBlockingQueue[Batch](queueBatches)
+    val shardWriters = indexWriters.indices.map(new ShardWriter(_))
+
+    val workers = (0 until numWorkers).map { i =>
+      stage("index-converter-" + i) {
+        var done = false
+        while (!done) {
+          val batch = take(batches)
+          if (batch eq endOfBatches) done = true
+          else convert(batch, shardWriters)
+        }
+      }
+    }
+
+    try {
+      var line = 0L
+      var batchNum = 0L
+      input.grouped(batchSize).foreach { lines =>
+        // lines every index has committed are skipped, but still numbered
+        val firstLine = line
+        line += lines.size
+        if (line > startLine) {
+          // batches are numbered in the order they take permits, so the one every index waits for always has one
+          shardWriters.foreach(shardWriter => acquire(shardWriter.inFlight))
+          put(batches, Batch(batchNum, firstLine, lines.toIndexedSeq))
+          batchNum += 1
+        }
+        checkFailure()
+      }
+    } finally {
+      // stop the workers, then the writers once every batch has been handed to them
+      workers.foreach(_ => stop(batches, endOfBatches))
+      workers.foreach(_.join())
+      shardWriters.foreach(shardWriter => stop(shardWriter.queue, endOfInput))
+      shardWriters.foreach(_.thread.join())
+    }
+    checkFailure()
+  }
+
+  // converts batch, and gives every index its share of the documents, even if it is none, so it can move on to the next batch
+  private def convert(batch: Batch, shardWriters: Seq[ShardWriter]): Unit = {
+    val shardDocs = IndexedSeq.fill(indexWriters.size)(mutable.ArrayBuffer.empty[Document])
+    batch.lines.zipWithIndex.foreach { case (line, i) =>
+      val lineNum = batch.firstLine + i
+      inputLineConverter(line).foreach { doc =>
+        val shard = placement.shard(doc, indexWriters.size)
+        if (lineNum >= committedLines(shard)) shardDocs(shard) += doc
+      }
+      linesCounter.incrementAndGet()
+    }
+    val endLine = batch.firstLine + batch.lines.size
+    shardWriters.zip(shardDocs).foreach { case (shardWriter, docs) =>
+      put(shardWriter.queue, ShardBatch(batch.batchNum, endLine, docs))
+    }
   }
 
   def close() = indexWriters.map(writer => future(writer.close())).foreach(Await.result(_, 60 seconds))
 }
 
+object ParallelIndexBuilder {
+
+  /** Commit user data key for the number of input lines an index has all its documents for. */
+  val committedLineKey = "inputLine"
+
+  val batchSize = 1000
+
+  // batches in each queue between stages
+  private val queueBatches = 64
+
+  // batches read but not yet added by every index: in the queues, being converted, or waiting to be added in order
+  private val maxBatchesInFlight = 2 * queueBatches
+
+  private val pollMillis = 100L
+
+  private case class Batch(val batchNum: Long, val firstLine: Long, val lines: IndexedSeq[String])
+
+  private case class ShardBatch(val batchNum: Long, val endLine: Long, val docs: Seq[Document])
+
+  private val endOfBatches = Batch(-1L, -1L, IndexedSeq.empty)
+
+  private val endOfInput = ShardBatch(-1L, -1L, Seq.empty)
+
+  /** The number of input lines the last commit of the index in dir recorded, or 0 if it has none. */
+  def committedLine(dir: Directory): Long = {
+    try {
+      Option(IndexReader.getCommitUserData(dir).get(committedLineKey)).map(_.toLong).getOrElse(0L)
+    } catch {
+      case e: IndexNotFoundException => 0L
+    }
+  }
+}
+
 object ReVerbParallelIndexBuilder {
 
-  var linesPerCommit = 500000 // across all indexes
+  var linesPerCommit = 500000 // per index
   var ramBufferMB = 500 // per index
   val tabSplitter = "\t".r
 
@@ -74,13 +259,17 @@ object ReVerbParallelIndexBuilder {
     var indexPaths: Seq[String] = Nil
     var regroup = false
     var instanceLimit = -1;
+    var numWorkers = Runtime.getRuntime.availableProcessors
+    var resume = false
 
     val optionParser = new OptionParser() {
       arg("indexPaths", "Colon-delimited list of paths to indexes", { str => indexPaths = str.split(":") })
-      opt("linesPerCommit", "Lines added across all indexes between commits", { str => linesPerCommit = str.toInt })
+      opt("linesPerCommit", "Input lines between each index's commits", { str => linesPerCommit = str.toInt })
       opt("ramBufferMB", "Size of ram buffer per index, (e.g. IndexWriterConfig.setRAMBufferSizeMB)", { str => ramBufferMB = str.toInt })
       opt("regroup", "For each group individually re-group based on the current index grouping key", { regroup = true })
       intOpt("instanceLimit", "Limit the number of instances in each REG, mutex regroup option", { i => instanceLimit = i })
+      intOpt("workers", "Threads converting input lines to documents, default is one per core", { i => numWorkers = i })
+      opt("resume", "Continue a crashed build: give the same input, and each index skips the lines it already committed", { resume = true })
     }
 
     // bail if the args are bad
@@ -98,15 +287,17 @@ object ReVerbParallelIndexBuilder {
       (groupString: String) => {
         val groupOpt = ReVerbExtractionGroup.deserializeFromString(groupString)
         val groupLimited = groupOpt.map(group => group.copy(instances = group.instances.take(instanceLimit)))
-        groupLimited map ReVerbDocumentConverter.toDocument
+        groupLimited.map(group => ReVerbDocumentConverter.toDocument(group))
       }
     }
 
-    val parIndexBuilder = new ParallelIndexBuilder(indexWriters, ReVerbIndexBuilder.inputLineConverter(regroup), linesPerCommit)
+    val parIndexBuilder = new ParallelIndexBuilder(indexWriters, converter, linesPerCommit, numWorkers, resume)
+
+    if (resume) System.err.println("Resuming, indexes have committed through lines: " + parIndexBuilder.committedLines.mkString(", "))
 
     parIndexBuilder.indexAll(Source.fromInputStream(System.in).getLines)
 
     parIndexBuilder.close()
   }
 
-}
\ No newline at end of file
+}
@@ -13,23 +13,32 @@ import edu.knowitall.openie.models.ReVerbExtractionGroup
  */
 class ParallelIndexPrinter(val pegf: ParallelExtractionGroupFetcher) {
 
-  case class DocToFetch(val searcher: IndexSearcher, val docNum: Int) {
+  case class DocToFetch(val searcher: IndexSearcher, val docNum: Int, val sentences: Option[SentenceStore]) {
     def fetch = searcher.doc(docNum)
     def tryFetch = try { Some(fetch) } catch { case e: Throwable => None }
+    // documents of an index built with a sentence store can only be read along with it
+    def tryFetchGroup = tryFetch map { doc =>
+      sentences match {
+        case Some(store) => ReVerbDocumentConverter.fromDocument(doc, store)
+        case None => ReVerbDocumentConverter.fromDocument(doc)
+      }
+    }
   }
 
-  def getDocuments: Iterator[Document] = {
-    val docsToFetch = pegf.simpleFetchers.iterator.map(_.indexSearcher).flatMap { searcher =>
-      Iterator.from(0, searcher.getIndexReader().numDocs - 1).map(docNum => DocToFetch(searcher, docNum))
+  private def docsToFetch: Iterator[DocToFetch] = {
+    // the searchers are held until the printer is done with them, which is the life of the process
+    val docsToFetch = pegf.simpleFetchers.iterator.map(_.searcherManager.acquire).flatMap { searcher =>
+      val sentences = ExtractionGroupFetcher.sentenceStore(searcher)
+      Iterator.from(0, searcher.getIndexReader().numDocs - 1).map(docNum => DocToFetch(searcher, docNum, sentences))
     }
 
     val grouped = docsToFetch.grouped(pegf.simpleFetchers.size * 50)
-    val shuffled = grouped.flatMap { case grp => scala.util.Random.shuffle(grp) }
-
-    shuffled.grouped(100).flatMap { grp => grp.toSeq.par.flatMap(_.tryFetch) }
+    grouped.flatMap { case grp => scala.util.Random.shuffle(grp) }
   }
 
-  def getRegs = getDocuments map ReVerbDocumentConverter.fromDocument
+  def getDocuments: Iterator[Document] = docsToFetch.grouped(100).flatMap { grp => grp.toSeq.par.flatMap(_.tryFetch) }
+
+  def getRegs = docsToFetch.grouped(100).flatMap { grp => grp.toSeq.par.flatMap(_.tryFetchGroup) }
 }
 
 object ParallelIndexPrinter {
@@ -0,0 +1,326 @@
+package edu.knowitall.browser.lucene
+
+import java.net.InetSocketAddress
+import java.net.URLDecoder
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.Semaphore
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import net.liftweb.json.{compact, render}
+import net.liftweb.json.JsonAST.{JDouble, JField, JInt, JObject, JValue}
+import net.liftweb.json.JsonDSL._
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+
+import scopt.OptionParser
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+
+import org.slf4j.LoggerFactory
+
+/**
+ * Serves QuerySpecs over local HTTP, so many consumers can share one fetcher (and its searchers, taggers and stoplist).
+ *
+ *   GET /query?rel=...&arg1=...   any QuerySpec field by name, plus timeout (millis)
+ *   GET /stats
+ *   GET /metrics                  per-stage latency histograms and counters (see MetricsRegistry)
+ *
+ * At most maxInFlight queries run at once and at most maxQueued wait for a slot; anything beyond that is
+ * rejected with a 503 right away, as is a queued query that can't expect a slot before its deadline.
+ * Connections never wait for a handler thread: one that arrives when every thread is busy is answered
+ * with a 503 by the server's dispatcher thread.
+ * shutdown stops accepting queries and lets the admitted ones finish.
+ */
+class QueryServer(val fetcher: GroupFetcher, val port: Int, val maxInFlight: Int, val maxQueued: Int, val defaultTimeoutMillis: Long) {
+
+  require(maxInFlight > 0 && maxQueued >= 0)
+
+  import QueryServer._
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  // fair, so the queue is FIFO and draining queues up behind the queries already waiting
+  private val slots = new Semaphore(maxInFlight, true)
+
+  private val inFlightCount = new AtomicInteger(0)
+  private val queuedCount = new AtomicInteger(0)
+  private val completedCount = new AtomicLong(0)
+  private val rejectedCount = new AtomicLong(0)
+
+  // moving average of query latency, for guessing how long queued queries will wait
+  @volatile private var meanLatencyMillis = 0.0
+
+  @volatile private var accepting = true
+
+  // set while the dispatcher thread runs an exchange the handler threads had no room for
+  private val overloaded = new ThreadLocal[Boolean]() {
+    override def initialValue = false
+  }
+
+  // enough threads that every admitted query has one, plus a couple to turn queries away or answer stats;
+  // no queue, so a connection either gets a thread now or is rejected
+  private val handlerThreads = new ThreadPoolExecutor(maxInFlight + maxQueued + 2, maxInFlight + maxQueued + 2, 0L, MILLISECONDS,
+    new SynchronousQueue[Runnable](),
+    new ThreadFactory() {
+      val threadCount = new AtomicInteger(0)
+      override def newThread(runnable: Runnable) = {
+        val thread = new Thread(runnable, "query-server-" + threadCount.incrementAndGet())
+        thread.setDaemon(true)
+        thread
+      }
+    },
+    new RejectedExecutionHandler() {
+      // reading the request and writing the 503 is quick, so the dispatcher does it itself
+      override def rejectedExecution(runnable: Runnable, executor: ThreadPoolExecutor) = {
+        overloaded.set(true)
+        try runnable.run() finally overloaded.set(false)
+      }
+    })
+
+  private val server = {
+    val server = HttpServer.create(new InetSocketAddress("localhost", port), 0)
+    server.createContext("/query", handler(handleQuery))
+    server.createContext("/stats", handler(exchange => respond(exchange, 200, statsJson)))
+    server.createContext("/metrics", handler(exchange => respond(exchange, 200, metricsJson(MetricsRegistry.default.snapshot))))
+    server.setExecutor(handlerThreads)
+    server.start()
+    server
+  }
+
+  /** The port actually bound, e.g. when constructed with port 0. */
+  def boundPort: Int = server.getAddress.getPort
+
+  def inFlight = inFlightCount.get
+  def queued = queuedCount.get
+  def completed = completedCount.get
+  def rejected = rejectedCount.get
+  def isAccepting = accepting
+
+  def statsJson: JValue = {
+    ("inFlight" -> inFlight) ~ ("queued" -> queued) ~ ("completed" -> completed) ~ ("rejected" -> rejected) ~
+      ("meanLatencyMillis" -> meanLatencyMillis) ~ ("accepting" -> accepting)
+  }
+
+  private def handler(f: HttpExchange => Unit) = new HttpHandler() {
+    override def handle(exchange: HttpExchange) = {
+      try {
+        f(exchange)
+      } catch {
+        case e: Exception => {
+          logger.error("Error handling " + exchange.getRequestURI, e)
+          respond(exchange, 500, ("status" -> "Error") ~ ("reason" -> e.toString))
+        }
+      } finally {
+        exchange.close()
+      }
+    }
+  }
+
+  private def handleQuery(exchange: HttpExchange): Unit = {
+    val start = System.nanoTime
+    if (!accepting) return reject(exchange, "shutting down")
+    if (overloaded.get) return reject(exchange, "no handler thread free")
+
+    val params = queryParams(exchange.getRequestURI.getRawQuery)
+    val (querySpec, timeoutMillis) = try {
+      (toQuerySpec(params), toTimeoutMillis(params, defaultTimeoutMillis))
+    } catch {
+      case e: IllegalArgumentException => return respond(exchange, 400, ("status" -> "Error") ~ ("reason" -> e.getMessage))
+    }
+    def remainingMillis = timeoutMillis - (System.nanoTime - start) / 1000000
+
+    admit(remainingMillis) match {
+      case Some(reason) => reject(exchange, reason)
+      case None => {
+        inFlightCount.incrementAndGet()
+        val queryStart = System.nanoTime
+        val resultSet = try {
+          fetcher.getGroups(querySpec, math.max(remainingMillis, 1))
+        } finally {
+          inFlightCount.decrementAndGet()
+          slots.release()
+        }
+        recordLatency((System.nanoTime - queryStart) / 1000000.0)
+        completedCount.incrementAndGet()
+        respond(exchange, 200, resultJson(resultSet))
+      }
+    }
+  }
+
+  // takes a slot, or returns the reason it can't
+  private def admit(remainingMillis: => Long): Option[String] = {
+    val waitFailure = if (slots.tryAcquire()) None else waitForSlot(remainingMillis)
+    if (waitFailure.isDefined) waitFailure
+    else if (!accepting) {
+      slots.release()
+      Some("shutting down")
+    }
+    else None
+  }
+
+  private def waitForSlot(remainingMillis: => Long): Option[String] = {
+    if (queuedCount.incrementAndGet() > maxQueued) {
+      queuedCount.decrementAndGet()
+      return Some("queue full")
+    }
+    try {
+      // roughly one latency per wave of maxInFlight queries ahead of this one
+      val ahead = queuedCount.get - 1
+      val expectedWaitMillis = (ahead / maxInFlight + 1) * meanLatencyMillis
+      if (expectedWaitMillis >= remainingMillis) Some("deadline can't be met")
+      else if (!slots.tryAcquire(remainingMillis, MILLISECONDS)) Some("deadline passed while queued")
+      else None
+    } finally {
+      queuedCount.decrementAndGet()
+    }
+  }
+
+  private def recordLatency(millis: Double): Unit = synchronized {
+    meanLatencyMillis = if (meanLatencyMillis == 0.0) millis else (1 - latencyWeight) * meanLatencyMillis + latencyWeight * millis
+  }
+
+  private def reject(exchange: HttpExchange, reason: String): Unit = {
+    rejectedCount.incrementAndGet()
+    respond(exchange, 503, ("status" -> "Rejected") ~ ("reason" -> reason))
+  }
+
+  private def respond(exchange: HttpExchange, code: Int, json: JValue): Unit = {
+    val bytes = compact(render(json)).getBytes("UTF-8")
+    exchange.getResponseHeaders.set("Content-Type", "application/json; charset=utf-8")
+    exchange.sendResponseHeaders(code, bytes.length)
+    exchange.getResponseBody.write(bytes)
+  }
+
+  /**
+   * Stops accepting queries and waits up to drainMillis for in-flight and queued ones to finish,
+   * then stops the server. Returns whether everything finished in time.
+   */
+  def shutdown(drainMillis: Long): Boolean = {
+    accepting = false
+    logger.info("Draining query server: %d in flight, %d queued".format(inFlight, queued))
+    // queued queries are ahead of this in the fair queue, so this waits for them too
+    val drained = slots.tryAcquire(maxInFlight, drainMillis, MILLISECONDS)
+    if (drained) slots.release(maxInFlight) // so anything still waiting wakes up and is turned away
+    else logger.warn("Query server did not drain in %d ms".format(drainMillis))
+    server.stop(0)
+    handlerThreads.shutdown()
+    handlerThreads.awaitTermination(drainMillis, MILLISECONDS)
+    drained
+  }
+}
+
+object QueryServer {
+
+  val defaultPort = 9191
+  val defaultMaxQueued = 64
+  val defaultDrainMillis = 30000L
+
+  private val latencyWeight = 0.1
+
+  def queryParams(rawQuery: String): Map[String, String] = Option(rawQuery).toSeq.flatMap(_.split("&")).filter(!_.isEmpty).map { param =>
+    param.split("=", 2) match {
+      case Array(name, value) => (URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"))
+      case Array(name) => (URLDecoder.decode(name, "UTF-8"), "")
+    }
+  }.toMap
+
+  def toQuerySpec(params: Map[String, String]): QuerySpec = {
+    def param(name: String) = params.get(name).filter(!_.trim.isEmpty)
+    def flag(name: String, default: Boolean) = params.get(name).map(_.toBoolean).getOrElse(default)
+    val querySpec = QuerySpec(param("arg1"), param("rel"), param("arg2"), param("arg1Entity"), param("arg2Entity"),
+      param("arg1Types"), param("arg2Types"), param("corpora"), flag("stem", true), flag("and", true), param("arg1Fbid"), param("arg2Fbid"))
+    require(Seq(querySpec.arg1, querySpec.rel, querySpec.arg2, querySpec.arg1Entity, querySpec.arg2Entity, querySpec.arg1Types,
+      querySpec.arg2Types, querySpec.arg1Fbid, querySpec.arg2Fbid).flatten.length > 0, "Query on at least one of arg1, rel, arg2, arg1Entity, arg2Entity, arg1Types, arg2Types, arg1Fbid or arg2Fbid")
+    querySpec
+  }
+
+  /** The query's "timeout" parameter in milliseconds, or default if it has none. Throws IllegalArgumentException unless it is a positive number. */
+  def toTimeoutMillis(params: Map[String, String], default: Long): Long = params.get("timeout") match {
+    case Some(str) => {
+      val timeoutMillis = try str.trim.toLong catch {
+        case e: NumberFormatException => throw new IllegalArgumentException("Malformed timeout: " + str)
+      }
+      require(timeoutMillis > 0, "timeout must be positive: " + str)
+      timeoutMillis
+    }
+    case None => default
+  }
+
+  def resultJson(resultSet: ResultSet): JValue = {
+    val (status, totalGroups) = resultSet match {
+      case Success(groups) => ("Success", groups.size)
+      case Limited(_, totalGroups) => ("Limited", totalGroups)
+      case Timeout(_, totalGroups) => ("Timeout", totalGroups)
+    }
+    ("status" -> status) ~ ("totalGroups" -> totalGroups) ~ ("numInstances" -> resultSet.numInstances) ~ ("numInstancesRead" -> resultSet.numInstancesRead) ~
+      ("timingsMillis" -> JObject(resultSet.timings.stageMillis.toList.sortBy(_._1).map { case (stage, ms) => JField(stage, JDouble(ms)) })) ~
+      ("groups" -> resultSet.results.map(ReVerbExtractionGroup.serializeToString))
+  }
+
+  def metricsJson(snapshot: MetricsRegistry.Snapshot): JValue = {
+    def millis(nanos: Double) = nanos / 1000000.0
+    val histograms = snapshot.histograms.toList.map { case (name, histogram) =>
+      JField(name, ("count" -> histogram.count) ~ ("meanMillis" -> millis(histogram.meanNanos)) ~ ("p50Millis" -> millis(histogram.p50Nanos)) ~
+        ("p99Millis" -> millis(histogram.p99Nanos)) ~ ("maxMillis" -> millis(histogram.maxNanos)))
+    }
+    val counters = snapshot.counters.toList.map { case (name, count) => JField(name, JInt(count)) }
+    ("latencies" -> JObject(histograms)) ~ ("counters" -> JObject(counters))
+  }
+
+  def main(args: Array[String]): Unit = {
+
+    var indexPaths = ParallelExtractionGroupFetcher.defaultIndexes.split(":")
+    var port = defaultPort
+    var maxInFlight = Runtime.getRuntime.availableProcessors
+    var maxQueued = defaultMaxQueued
+    var searchMaxGroups = 1000
+    var readMaxInstances = 1000
+    var timeoutMillis = 10000L
+    var drainMillis = defaultDrainMillis
+    var entityStoplist = false
+    var directoryType: IndexDirectory.Type = IndexDirectory.Auto
+    var preload = false
+    var reporter: Option[MetricsReporter] = None
+    var reportMillis = 60000L
+
+    val optionParser = new OptionParser() {
+      opt("paths", "paths to browser indexes to serve, default=%s".format(ParallelExtractionGroupFetcher.defaultIndexes), { str => indexPaths = str.split(":") })
+      opt("port", "port to listen on (localhost only), default=%d".format(defaultPort), { str => port = str.toInt })
+      opt("maxInFlight", "max queries to run at once, default=number of cores", { str => maxInFlight = str.toInt })
+      opt("maxQueued", "max queries to wait for a slot, default=%d".format(defaultMaxQueued), { str => maxQueued = str.toInt })
+      opt("timeout", "default query timeout milliseconds", { str => timeoutMillis = str.toLong })
+      opt("drain", "milliseconds to let admitted queries finish on shutdown", { str => drainMillis = str.toLong })
+      opt("maxGroups", "Max docs to search for", { str => searchMaxGroups = str.toInt })
+      opt("maxInstances", "Max instances to read in total", { str => readMaxInstances = str.toInt })
+      opt("entityStoplist", "Use an entity stoplist to reduce systematic linker errors", { entityStoplist = true })
+      opt("directory", "index Directory implementation: %s".format(IndexDirectory.types.map(_.name).mkString(", ")), { str => directoryType = IndexDirectory.typeNamed(str) })
+      opt("preload", "read postings and stored field indexes into the page cache before serving", { preload = true })
+      opt("metrics", "also report per-stage latencies to log, jmx or file:<path>", { str => reporter = Some(MetricsReporter.named(str)) })
+      opt("metricsPeriod", "milliseconds between metrics reports, default=60000", { str => reportMillis = str.toLong })
+    }
+
+    if (!optionParser.parse(args)) return
+
+    val parFetcher = new ParallelExtractionGroupFetcher(indexPaths, searchMaxGroups, readMaxInstances, timeoutMillis, stoplist = entityStoplist, directoryType = directoryType, preload = preload)
+    val server = new QueryServer(parFetcher, port, maxInFlight, maxQueued, timeoutMillis)
+    reporter.foreach(MetricsRegistry.default.reportEvery(_, reportMillis))
+
+    Runtime.getRuntime.addShutdownHook(new Thread("query-server-shutdown") {
+      override def run() = {
+        server.shutdown(drainMillis)
+        parFetcher.close()
+      }
+    })
+
+    System.err.println("Serving %d indexes on localhost:%d".format(indexPaths.size, server.boundPort))
+    // the handler threads are daemons, so keep the JVM up until it is told to stop
+    Thread.currentThread.join()
+  }
+}
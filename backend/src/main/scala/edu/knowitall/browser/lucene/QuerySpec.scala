@@ -1,14 +1,18 @@
 package edu.knowitall.browser.lucene
 
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeoutException
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
 
 import scala.Array.canBuildFrom
 import scala.Option.option2Iterable
+import scala.concurrent.duration._
 
 import org.apache.lucene.analysis.WhitespaceAnalyzer
-import org.apache.lucene.index.Term
 import org.apache.lucene.queryParser.QueryParser
-import org.apache.lucene.search.{BooleanClause, BooleanQuery, NumericRangeQuery, Query, TermQuery}
+import org.apache.lucene.search.{BooleanClause, BooleanQuery, NumericRangeQuery, Query}
 import org.apache.lucene.util.Version
 import org.slf4j.LoggerFactory
 
@@ -17,7 +21,6 @@ import edu.knowitall.openie.models.{ExtractionGroup, ReVerbExtraction}
 import edu.knowitall.openie.models.ReVerbExtraction.strippedDeterminers
 import edu.knowitall.openie.models.util.TaggedStemmer
 import edu.knowitall.tool.postag.OpenNlpPostagger
-import edu.knowitall.tool.tokenize.OpenNlpTokenizer
 
 case class QuerySpec(
   val arg1: Option[String],
@@ -37,8 +40,9 @@ case class QuerySpec(
 
   import ReVerbExtraction.strippedDeterminers
 
+  /** The groups matching luceneQuery, split into size buckets, largest groups first. */
   lazy val lowLevelLuceneQueries: Seq[Query] = {
-    numericRangeQueries.map { rangeQuery =>
+    sizeBuckets.map(_.rangeQuery).map { rangeQuery =>
       val booleanQuery = new BooleanQuery(true)
       booleanQuery.add(luceneQuery, BooleanClause.Occur.MUST)
       booleanQuery.add(rangeQuery, BooleanClause.Occur.MUST)
@@ -61,26 +65,21 @@ case class QuerySpec(
   def relNorm = rel map stemAllTokens
 
   private def stemAllTokens(line: String) = {
-    QuerySpec.logger.debug("stem tokens: " + line)
-    val stemmer = TaggedStemmer.instance
-    val postagger = QuerySpec.taggers.take()
-    try {
-      if (stem) {
-        val tokens = postagger.postag(line)
-        val stemmed = stemmer.stemAll(tokens)
-        val filtered = stemmed.filter(!strippedDeterminers.contains(_))
-        filtered.mkString(" ")
-      } else {
-        line
-      }
-    } finally {
-      QuerySpec.taggers.add(postagger)
-    }
+    if (stem) QuerySpec.normalize(line) else line
   }
 
+  /** The strings luceneQueryString will pass to the tagger and stemmer. */
+  def textToNormalize: Seq[String] = if (stem) Seq(arg1, rel, arg2).flatten.map(QuerySpec.escape) else Nil
+
+  /**
+   * Tags and stems textToNormalize, unless it already is, waiting no later than deadline for a tagger.
+   * Returns false if the deadline passed first, in which case the query should be answered with a Timeout.
+   */
+  def normalizeBefore(deadline: Deadline): Boolean = QuerySpec.normalizeAll(textToNormalize, deadline)
+
   lazy val luceneQueryString: String = {
 
-    def escape(line: String) = QueryParser.escape(line.replaceAll("\"", ""))
+    import QuerySpec.escape
 
     var arg1Clauses, relClauses, arg2Clauses = List.empty[String]
     var arg1TypeClause, arg2TypeClause, corporaClause = List.empty[String]
@@ -135,21 +134,40 @@ case class QuerySpec(
 
   private def numSpecifiedFields = Seq(arg1, rel, arg2, arg1Entity, arg2Entity, arg1Types, arg2Types).flatten.size
 
-  private def numericRangeQueries: Seq[NumericRangeQuery[java.lang.Integer]] = {
+  /**
+   * Results are drawn from each of these buckets of group size in turn, largest groups first,
+   * so that large groups aren't crowded out by many small ones with higher scores.
+   */
+  lazy val sizeBuckets: Seq[SizeBucket] = {
 
     if (numSpecifiedFields <= 1) {
-      Seq(NumericRangeQuery.newIntRange("size", 1, 4, true, false),
-          NumericRangeQuery.newIntRange("size", 4, 25, true, false),
-          NumericRangeQuery.newIntRange("size", 25, 50, true, false),
-          NumericRangeQuery.newIntRange("size", 50, null, true, true)).reverse
+      Seq(SizeBucket(1, Some(4)),
+          SizeBucket(4, Some(25)),
+          SizeBucket(25, Some(50)),
+          SizeBucket(50, None)).reverse
     } else {
-      Seq(NumericRangeQuery.newIntRange("size", 1, 4, true, false),
-          NumericRangeQuery.newIntRange("size", 4, 15, true, false),
-          NumericRangeQuery.newIntRange("size", 15, null, true, true)).reverse
+      Seq(SizeBucket(1, Some(4)),
+          SizeBucket(4, Some(15)),
+          SizeBucket(15, None)).reverse
     }
   }
 }
 
+/** Groups with min <= size < max, or min <= size if max is None. */
+case class SizeBucket(val min: Int, val max: Option[Int]) {
+
+  def contains(size: Int): Boolean = size >= min && max.forall(size < _)
+
+  def rangeQuery: NumericRangeQuery[java.lang.Integer] = max match {
+    case Some(maxSize) => NumericRangeQuery.newIntRange("size", min, maxSize, true, false)
+    case None => NumericRangeQuery.newIntRange("size", min, null, true, true)
+  }
+}
+
+object SizeBucket {
+  val all = SizeBucket(0, None)
+}
+
 private class GroupIdentityQuerySpec(
     val group: ExtractionGroup[ReVerbExtraction],
   arg1: Option[String],
@@ -163,23 +181,11 @@ private class GroupIdentityQuerySpec(
   stem: Boolean,
   and: Boolean) extends QuerySpec(arg1, rel, arg2, arg1Entity, arg2Entity, arg1Types, arg2Types, corpora, stem, and) {
 
-  override lazy val luceneQuery = {
-
-    val doc = ReVerbDocumentConverter.toDocument(group)
-
-    def getTerm(field: String) = doc.getFieldable(field).stringValue.split(" ").map(_.trim).filter(!_.isEmpty).map(t=>new Term(field, t))
-
-    val terms = Seq(getTerm("arg1Norm"), getTerm("relNorm"), getTerm("arg2Norm")).flatten
-
-    val termQueries = terms.map(new TermQuery(_))
-
-    val booleanQuery = new BooleanQuery(true)
-    val occur = BooleanClause.Occur.MUST
-    termQueries.foreach(booleanQuery.add(_, occur))
-    booleanQuery
-  }
+  override lazy val luceneQuery = ShardPlacement.identityQuery(ShardPlacement.key(group))
 
   override lazy val lowLevelLuceneQueries = Seq(luceneQuery)
+
+  override lazy val sizeBuckets = Seq(SizeBucket.all)
 }
 
 object QuerySpec {
@@ -187,25 +193,85 @@ object QuerySpec {
 
   protected val whitespaceSplitter = "\\s+".r
 
+  def escape(line: String) = QueryParser.escape(line.replaceAll("\"", ""))
+
+  val taggerWaitMillis = 250L
+  val untimedTaggerWaitMillis = 10000L
+  val normalizationCacheSize = 100000
+
   val taggers = {
-    val capacity = 4
+    val cores = Runtime.getRuntime.availableProcessors
 
     Timing.timeThen {
-    val queue = new ArrayBlockingQueue[OpenNlpPostagger](capacity)
-
-    val tokenizer = new OpenNlpTokenizer()
-    val tagger = new OpenNlpPostagger(tokenizer=tokenizer)
-    queue.add(tagger)
-    for (i <- 1 to (capacity - 1)) {
-      val newTokenizer = new OpenNlpTokenizer(tokenizer.model)
-      val newTagger = new OpenNlpPostagger(tagger.model, newTokenizer)
-      queue.add(newTagger)
+      new TaggerPool(coreSize = cores, maxSize = 4 * cores)
+    } (ns => QuerySpec.logger.debug("Initialized " + cores + " POS taggers (" + Timing.Seconds.format(ns) + ")"))
+  }
+
+  // raw arg/rel text to its stemmed, determiner-stripped form
+  private val normalizations: Cache[String, String] =
+    CacheBuilder.newBuilder().maximumSize(normalizationCacheSize).recordStats().build[String, String]()
+
+  /**
+   * POS tags and stems line, dropping stripped determiners, as the index was normalized. Results are memoized.
+   * If no tagger is free, this waits up to untimedTaggerWaitMillis for one and then throws a TimeoutException:
+   * stemming without tags can give norms the index was never built with, and those would come back as a Success
+   * that matches nothing. Fetchers call normalizeBefore with the query's deadline first, so this finds the result memoized.
+   */
+  def normalize(line: String): String = {
+    normalize(line, untimedTaggerWaitMillis.millis.fromNow) getOrElse {
+      throw new TimeoutException("No POS tagger free within %d ms to normalize: %s".format(untimedTaggerWaitMillis, line))
     }
+  }
 
-    queue
-    } (ns => QuerySpec.logger.debug("Initialized " + capacity + " POS taggers (" + Timing.Seconds.format(ns) + ")"))
+  /** Like normalize(line), but returns None if no tagger frees up before deadline. */
+  def normalize(line: String, deadline: Deadline): Option[String] = {
+    normalizations.getIfPresent(line) match {
+      case null => {
+        logger.debug("stem tokens: " + line)
+        withTagger(line, deadline)(tagAndStem(_, line)) map { normalized =>
+          normalizations.put(line, normalized)
+          normalized
+        }
+      }
+      case normalized => Some(normalized)
+    }
+  }
+
+  // runs f with a tagger, or returns None if none frees up before deadline; each timed out borrow is counted in taggerPoolStats
+  private def withTagger[T](description: String, deadline: Deadline)(f: OpenNlpPostagger => T): Option[T] = {
+    var result: Option[T] = None
+    var done = false
+    // always try at least once, since a free tagger takes no time at all
+    while (!done) {
+      result = taggers.withTagger(math.max(math.min(taggerWaitMillis, deadline.timeLeft.toMillis), 0))(f)
+      done = result.isDefined || deadline.isOverdue
+    }
+    if (result.isEmpty) logger.warn("No POS tagger free before the deadline, giving up on: " + description)
+    result
   }
 
+  /**
+   * Normalizes every line not already memoized while holding a single tagger, so a batch of
+   * queries costs one borrow instead of one per string. Returns false, leaving the lines to be
+   * normalized when they're needed, if no tagger frees up before deadline.
+   */
+  def normalizeAll(lines: Seq[String], deadline: Deadline): Boolean = {
+    val pending = lines.distinct.filter(normalizations.getIfPresent(_) == null)
+    pending.isEmpty || withTagger(pending.mkString(" | "), deadline) { postagger =>
+      pending.foreach(line => normalizations.put(line, tagAndStem(postagger, line)))
+    }.isDefined
+  }
+
+  private def tagAndStem(postagger: OpenNlpPostagger, line: String): String = {
+    val tokens = postagger.postag(line)
+    val stemmed = TaggedStemmer.instance.stemAll(tokens)
+    stemmed.filter(!strippedDeterminers.contains(_)).mkString(" ")
+  }
+
+  def normalizationCacheStats = normalizations.stats
+
+  def taggerPoolStats = taggers.stats
+
   val parsers = {
     val capacity = 4
 
@@ -223,10 +289,35 @@ object QuerySpec {
     }(ns => QuerySpec.logger.debug("Initialized " + capacity + " Query parsers (" + Timing.Seconds.format(ns) + ")"))
   }
 
+  /**
+   * A copy of spec with surrounding whitespace trimmed, runs of whitespace collapsed,
+   * and blank fields dropped. Equivalent queries have equal canonical forms.
+   */
+  def canonicalize(spec: QuerySpec): QuerySpec = {
+    def clean(field: Option[String]) = field.map(str => whitespaceSplitter.split(str.trim).mkString(" ")).filter(!_.isEmpty)
+    spec.copy(
+      arg1 = clean(spec.arg1),
+      rel = clean(spec.rel),
+      arg2 = clean(spec.arg2),
+      arg1Entity = clean(spec.arg1Entity),
+      arg2Entity = clean(spec.arg2Entity),
+      arg1Types = clean(spec.arg1Types),
+      arg2Types = clean(spec.arg2Types),
+      corpora = clean(spec.corpora),
+      arg1Fbid = clean(spec.arg1Fbid),
+      arg2Fbid = clean(spec.arg2Fbid))
+  }
+
   def identityQuery(group: ExtractionGroup[ReVerbExtraction]): QuerySpec = {
     new GroupIdentityQuerySpec(group, Some(group.arg1.norm), Some(group.rel.norm), Some(group.arg2.norm), None, None, None, None, None, true, true)
   }
 
+  /** The index grouping key an identityQuery looks for, or None if querySpec isn't one. */
+  def identityKey(querySpec: QuerySpec): Option[ShardPlacement.Key] = querySpec match {
+    case identity: GroupIdentityQuerySpec => Some(ShardPlacement.key(identity.group))
+    case _ => None
+  }
+
   val warmupQueries: Seq[QuerySpec] = Seq(
     QuerySpec(None, Some("kill"), Some("bacteria"), None, None),  // "what kills bacteria?"
     QuerySpec(Some("FDA"), Some("approve"), None, None, None, Some("drug")), // what drugs has the FDA approved?
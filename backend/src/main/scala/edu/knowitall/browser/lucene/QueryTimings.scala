@@ -0,0 +1,62 @@
+package edu.knowitall.browser.lucene
+
+/**
+ * Where the time went in answering one query: nanoseconds per stage. Stages from a
+ * ParallelExtractionGroupFetcher's shards are scoped by shard, e.g. "shard0.search".
+ */
+case class QueryTimings(val stageNanos: Map[String, Long]) {
+
+  def apply(stage: String): Long = stageNanos.getOrElse(stage, 0L)
+
+  /** Both sets of stages, adding the times of stages in both. */
+  def ++(other: QueryTimings): QueryTimings = QueryTimings.merge(Seq(this, other))
+
+  def scoped(scope: String): QueryTimings = QueryTimings(stageNanos.map { case (stage, nanos) => (scope + "." + stage, nanos) })
+
+  def stageMillis: Map[String, Double] = stageNanos.map { case (stage, nanos) => (stage, nanos / 1000000.0) }
+
+  override def toString = stageMillis.toSeq.sortBy(_._1).map { case (stage, ms) => "%s=%.2fms".format(stage, ms) }.mkString(" ")
+}
+
+object QueryTimings {
+
+  val empty = QueryTimings(Map.empty)
+
+  // the stages of the query path
+  val Tagging = "tagging" // POS tagging and stemming the query text
+  val Parsing = "parsing" // parsing the Lucene query string
+  val Search = "search" // collecting hits
+  val StoredFields = "storedFields" // reading hit documents' stored fields
+  val Decode = "decode" // turning stored fields into groups (instances stay encoded)
+  val Stoplist = "stoplist" // dropping stoplisted entity links
+  val Total = "total"
+
+  // decoding a group's instances happens when they are first touched, often after the query has
+  // returned, so it is only recorded in MetricsRegistry.default, not in any query's timings
+  val InstanceDecode = "instances.decode"
+
+  def merge(timings: Seq[QueryTimings]): QueryTimings = {
+    val merged = scala.collection.mutable.HashMap.empty[String, Long]
+    for (t <- timings; (stage, nanos) <- t.stageNanos) merged(stage) = merged.getOrElse(stage, 0L) + nanos
+    QueryTimings(merged.toMap)
+  }
+}
+
+/** Accumulates stage times for one query. Not thread safe: each query, and each shard of a query, has its own. */
+class StageTimer {
+
+  private val nanos = scala.collection.mutable.HashMap.empty[String, Long]
+
+  def time[T](stage: String)(f: => T): T = {
+    val start = System.nanoTime
+    try {
+      f
+    } finally {
+      add(stage, System.nanoTime - start)
+    }
+  }
+
+  def add(stage: String, stageNanos: Long): Unit = nanos(stage) = nanos.getOrElse(stage, 0L) + stageNanos
+
+  def timings = QueryTimings(nanos.toMap)
+}
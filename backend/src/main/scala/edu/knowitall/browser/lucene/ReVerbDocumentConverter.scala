@@ -2,6 +2,9 @@ package edu.knowitall.browser.lucene
 
 import org.apache.lucene.document.Document
 import org.apache.lucene.document.Field
+import org.apache.lucene.document.Fieldable
+import org.apache.lucene.document.FieldSelector
+import org.apache.lucene.document.SetBasedFieldSelector
 import org.apache.lucene.document.NumericField
 import edu.knowitall.openie.models.Instance
 import edu.knowitall.openie.models.FreeBaseEntity
@@ -9,17 +12,19 @@ import edu.knowitall.openie.models.FreeBaseType
 import edu.knowitall.openie.models.ExtractionGroup
 import edu.knowitall.openie.models.ReVerbExtraction
 
-import java.io.ByteArrayOutputStream
-import java.io.ObjectOutputStream
-
-import java.io.ByteArrayInputStream
-import java.io.ObjectInputStream
-
 import scala.collection.JavaConversions._
 
 object ReVerbDocumentConverter {
 
-  def toDocument(group: ExtractionGroup[ReVerbExtraction]): Document = {
+  def toDocument(group: ExtractionGroup[ReVerbExtraction]): Document = buildDocument(group, None)
+
+  /**
+   * Like toDocument, but the instances' sentences are added to sentences, the shard's sentence store,
+   * and the document refers to them by id. Such documents can only be read along with that store.
+   */
+  def toDocument(group: ExtractionGroup[ReVerbExtraction], sentences: SentenceStore.Writer): Document = buildDocument(group, Some(sentences))
+
+  private def buildDocument(group: ExtractionGroup[ReVerbExtraction], sentences: Option[SentenceStore.Writer]): Document = {
 
     val doc = new Document()
 
@@ -32,6 +37,10 @@ object ReVerbDocumentConverter {
     doc.add(new Field("relNorm", group.rel.norm, Field.Store.YES, Field.Index.ANALYZED_NO_NORMS));
     doc.add(new Field("arg2Norm", group.arg2.norm, Field.Store.YES, Field.Index.ANALYZED_NO_NORMS));
 
+    // the whole key as one term, for exact lookups, updates and deletes (see ShardPlacement.keyTerm)
+    val keyTerm = ShardPlacement.keyTerm(ShardPlacement.key(group))
+    doc.add(new Field(keyTerm.field, keyTerm.text, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS))
+
     // add searchable field for source corpora
     doc.add(new Field("corpora", group.corpora.mkString(" "), Field.Store.NO, Field.Index.ANALYZED_NO_NORMS))
 
@@ -74,19 +83,26 @@ object ReVerbDocumentConverter {
     val sizeField = new NumericField("size", Field.Store.YES, true).setIntValue(group.instances.size)
     doc.add(sizeField)
 
-    // finally, serialize all of group.instances to a list and stuff it in one big binary field
-    val byteOutput = new ByteArrayOutputStream
-    val oos = new ObjectOutputStream(byteOutput)
-    oos.writeObject(group.instances.toSeq.toStream)
-    val instancesBytes = byteOutput.toByteArray()
-    byteOutput.close()
-    oos.close()
-
+    // finally, encode all of group.instances and stuff them in one big binary field
+    val instancesBytes = sentences match {
+      case Some(store) => InstancesCodec.encode(group.instances, store)
+      case None => InstancesCodec.encode(group.instances)
+    }
     doc.add(new Field("instances", instancesBytes))
 
+    // store the key that results are regrouped by, so FrontendRegrouper doesn't need to re-stem instances.
+    // The entity key is cheap to compute from it and the group's links, which may change after indexing.
+    if (!group.instances.isEmpty) {
+      val frontendKey = group.instances.head.extraction.frontendGroupingKey
+      doc.add(new Field("frontendKey", GroupingKeys.serializeKey(frontendKey), Field.Store.YES, Field.Index.NO))
+    }
+
     doc
   }
 
+  /** The stored frontend grouping key of doc, or None for docs indexed before it was stored. */
+  def frontendKey(doc: Document): Option[GroupingKeys.Key] = Option(doc.get("frontendKey")).map(GroupingKeys.deserializeKey)
+
   private def parseTypeList(arg1TypeDomains: String, arg1Types: String): Set[FreeBaseType] = {
     val domains = arg1TypeDomains.split(" ").filter(!_.isEmpty)
     val types = arg1Types.split(" ").filter(!_.isEmpty)
@@ -97,10 +113,56 @@ object ReVerbDocumentConverter {
     } toSet
   }
 
-  def fromDocument(doc: Document): ExtractionGroup[ReVerbExtraction] = {
+  val headerFieldNames = Set(
+    "arg1Norm", "relNorm", "arg2Norm",
+    "arg1EntityName", "arg1EntityId", "arg1EntityScore", "arg1EntityInlinks", "arg1Types", "arg1TypeDomains",
+    "arg2EntityName", "arg2EntityId", "arg2EntityScore", "arg2EntityInlinks", "arg2Types", "arg2TypeDomains",
+    "size", "frontendKey")
+
+  /**
+   * Loads every stored field except "instances", which is loaded lazily -
+   * its bytes aren't read from disk until getBinaryValue is called.
+   */
+  val lazyInstancesSelector: FieldSelector = new SetBasedFieldSelector(headerFieldNames, Set("instances"))
+
+  /** The number of instances in the group, read from the stored "size" field. */
+  def storedSize(doc: Document): Int = doc.getFieldable("size").stringValue.toInt
+
+  def fromDocument(doc: Document): ExtractionGroup[ReVerbExtraction] = readDocument(doc, None)
+
+  /** Like fromDocument, for a document whose instances may refer to sentences in sentences. */
+  def fromDocument(doc: Document, sentences: SentenceStore): ExtractionGroup[ReVerbExtraction] = readDocument(doc, Some(sentences))
+
+  private def readDocument(doc: Document, sentences: Option[SentenceStore]): ExtractionGroup[ReVerbExtraction] = {
+
+    val fields = fieldMap(doc)
+
+    // understands both the current encoding and legacy Java-serialized instances
+    val instances = InstancesCodec.decode(fields("instances").getBinaryValue(), sentences)
+
+    groupFromFields(fields, instances.toSet)
+  }
+
+  /**
+   * Like fromDocument, but the group's instances aren't decoded until they are first touched,
+   * and its instances.size comes from the stored "size" field. The instances bytes are read here,
+   * so the group stays usable after the reader is released. The stored grouping keys ride along
+   * on the instance set (see FrontendRegrouper). sentences is the store of the index doc came from,
+   * if it has one; its sentences are looked up when the instances are decoded.
+   */
+  def fromDocumentLazily(doc: Document, sentences: Option[SentenceStore] = None): ExtractionGroup[ReVerbExtraction] = {
 
-    // get a map of field name to field. We assume fields are unique by name.
-    val fields = doc.getFields.groupBy(_.name()).map(pair => (pair._1, pair._2.head)).toMap
+    val fields = fieldMap(doc)
+
+    val instances = new LazyInstanceSet(fields("instances").getBinaryValue(), storedSize(doc), frontendKey(doc), sentences = sentences)
+
+    groupFromFields(fields, instances)
+  }
+
+  // get a map of field name to field. We assume fields are unique by name.
+  private def fieldMap(doc: Document): Map[String, Fieldable] = doc.getFields.groupBy(_.name()).map(pair => (pair._1, pair._2.head)).toMap
+
+  private def groupFromFields(fields: Map[String, Fieldable], instances: Set[Instance[ReVerbExtraction]]): ExtractionGroup[ReVerbExtraction] = {
 
     val arg1Entity = (fields.get("arg1EntityName"), fields.get("arg1EntityId"), fields.get("arg1EntityScore"),fields.get("arg1EntityInlinks")) match {
       case (Some(nameField), Some(idField), Some(scoreField), Some(inlinkField)) => {
@@ -138,10 +200,6 @@ object ReVerbDocumentConverter {
       case _ => Set.empty[FreeBaseType]
     }
 
-    val byteInput = new ByteArrayInputStream(fields("instances").getBinaryValue())
-    val objectInput = new ObjectInputStream(byteInput)
-    val instances = objectInput.readObject().asInstanceOf[Stream[Instance[ReVerbExtraction]]]
-
     val desGroup = new ExtractionGroup(
       fields("arg1Norm").stringValue(),
       fields("relNorm").stringValue(),
@@ -150,7 +208,7 @@ object ReVerbDocumentConverter {
       arg2Entity,
       arg1Types,
       arg2Types,
-      instances.toSet)
+      instances)
 
     desGroup
   }
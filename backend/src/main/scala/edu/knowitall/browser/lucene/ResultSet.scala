@@ -9,9 +9,48 @@ sealed abstract class ResultSet() {
 
   lazy val numInstances = results.map(_.instances.size).sum
 
+  /** Instances actually read, which is less than numInstances if some groups were read partially (see LazyInstanceSet). */
+  lazy val numInstancesRead = results.map(group => LazyInstanceSet.numRead(group.instances)).sum
+
   def numGroups = results.size
 
   def combineWith(other: ResultSet): ResultSet
+
+  // not part of equality: the same results are equal however long they took
+  private var queryTimings = QueryTimings.empty
+
+  /** Per-stage times spent producing these results, if the fetcher recorded them (see QueryTimings). */
+  def timings: QueryTimings = queryTimings
+
+  /** A copy of this result set carrying timings. */
+  def withTimings(timings: QueryTimings): ResultSet = {
+    val copy = this match {
+      case success: Success => success.copy()
+      case limited: Limited => limited.copy()
+      case timeout: Timeout => timeout.copy()
+    }
+    copy.queryTimings = timings
+    copy
+  }
+}
+
+object ResultSet {
+
+  /**
+   * Combines many result sets at once, with the same semantics as folding them with combineWith
+   * but building the combined result list only once.
+   */
+  def combineAll(resultSets: Seq[ResultSet]): ResultSet = {
+    val results = resultSets.iterator.flatMap(_.results).toList
+    val totalGroups = resultSets.map {
+      case Success(groups) => groups.size
+      case Limited(_, totalGroups) => totalGroups
+      case Timeout(_, totalGroups) => totalGroups
+    }.sum
+    if (resultSets.exists(_.isInstanceOf[Timeout])) Timeout(results, totalGroups)
+    else if (resultSets.exists(_.isInstanceOf[Limited])) Limited(results, totalGroups)
+    else Success(results)
+  }
 }
 
 case class Success(override val results: List[ExtractionGroup[ReVerbExtraction]]) extends ResultSet {
@@ -0,0 +1,300 @@
+package edu.knowitall.browser.lucene
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+import com.google.common.hash.Hashing
+
+import edu.knowitall.collection.immutable.Interval
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.util.LongHashing
+
+/**
+ * A sentence as the sentence store keeps it: everything about an extraction but its intervals.
+ * Extractions of the same sentence from the same source share one.
+ */
+case class StoredSentence(val tokens: IndexedSeq[String], val postags: IndexedSeq[String], val chunkTags: IndexedSeq[String], val sourceUrl: String) {
+
+  def extraction(arg1Interval: Interval, relInterval: Interval, arg2Interval: Interval): ReVerbExtraction = {
+    val sentenceTokens = ReVerbExtraction.chunkedTokensFromLayers(tokens, postags, chunkTags).toIndexedSeq
+    new ReVerbExtraction(sentenceTokens, arg1Interval, relInterval, arg2Interval, sourceUrl)
+  }
+}
+
+object StoredSentence {
+  def apply(extr: ReVerbExtraction): StoredSentence = StoredSentence(
+    extr.sentenceTokens.map(_.string), extr.sentenceTokens.map(_.postag), extr.sentenceTokens.map(_.chunk), extr.sourceUrl)
+}
+
+/**
+ * An append-only file of sentences, one per index shard (SentenceStore.fileName in the index directory),
+ * that instances blobs can refer to by id instead of repeating the sentence (see InstancesCodec).
+ * A sentence's id is a 64 bit hash of its contents, so the same sentence gets the same id in every shard,
+ * unless another sentence in the store already has that id. The writer tells sentences with the same id
+ * apart by the other 64 bits of their hash, and gives the later one the next free id.
+ *
+ * Each record is: id (8 bytes), payload length (4 bytes), payload (token count, then tokens, postags and
+ * chunk tags, then source url, as InstancesCodec writes them).
+ *
+ * The reader maps the file into memory and keeps an id to offset table, built by scanning the records
+ * when opened. Sentences appended since are picked up the first time an unknown id is asked for.
+ */
+class SentenceStore private (val file: File) {
+
+  import SentenceStore._
+
+  // the file is mapped in overlapping segments, so that every record lies wholly within one
+  private var segments = IndexedSeq.empty[MappedByteBuffer]
+  private val offsets = new LongLongMap()
+  private var scannedLength = 0L
+  private var closed = false
+
+  reload()
+
+  def numSentences: Int = synchronized { offsets.size }
+
+  def contains(id: Long): Boolean = lookup(id).isDefined
+
+  /** The sentence with id. Throws NoSuchElementException if the store doesn't have it. */
+  def sentence(id: Long): StoredSentence = lookup(id) match {
+    case Some(offset) => readPayload(payloadAt(offset))
+    case None => throw new NoSuchElementException("No sentence %016x in %s".format(id, file))
+  }
+
+  // the offset of the record with id
+  private def lookup(id: Long): Option[Long] = synchronized {
+    if (closed) throw new IllegalStateException("Sentence store %s is closed".format(file))
+    var offset = offsets.get(id)
+    if (offset < 0 && file.length > scannedLength) {
+      reload()
+      offset = offsets.get(id)
+    }
+    if (offset < 0) None else Some(offset)
+  }
+
+  // the payload of the record at offset
+  private def payloadAt(offset: Long): Array[Byte] = {
+    val lengthOffset = offset + 8
+    val buffer = synchronized { segments((lengthOffset / segmentSize).toInt) }.duplicate()
+    buffer.position((lengthOffset % segmentSize).toInt)
+    val payload = new Array[Byte](buffer.getInt())
+    buffer.get(payload)
+    payload
+  }
+
+  // maps the whole file again, and indexes the records added since the last scan
+  private def reload(): Unit = synchronized {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val channel = raf.getChannel
+      val length = channel.size
+      segments = (0L until math.max(length, 1L) by segmentSize).map { start =>
+        channel.map(FileChannel.MapMode.READ_ONLY, start, math.min(length - start, segmentSize + maxRecordLength))
+      }
+      scannedLength = scan(scannedLength, length) { (id, offset) => offsets.put(id, offset) }
+    } finally {
+      raf.close()
+    }
+  }
+
+  /**
+   * Drops the store's mappings of the file; the file is unmapped once they are garbage collected.
+   * Sentences can't be read from a closed store.
+   */
+  def close(): Unit = synchronized {
+    closed = true
+    segments = IndexedSeq.empty
+  }
+
+  // calls f(id, offset) for each whole record between from and length, returning where the last ended
+  private def scan(from: Long, length: Long)(f: (Long, Long) => Unit): Long = {
+    var offset = from
+    var done = false
+    while (!done && offset + headerLength <= length) {
+      val buffer = segments((offset / segmentSize).toInt)
+      val position = (offset % segmentSize).toInt
+      val id = buffer.getLong(position)
+      val payloadLength = buffer.getInt(position + 8)
+      if (offset + headerLength + payloadLength > length) done = true // a record still being written
+      else {
+        f(id, offset)
+        offset += headerLength + payloadLength
+      }
+    }
+    offset
+  }
+}
+
+object SentenceStore {
+
+  val fileName = "sentences.dat"
+
+  private val headerLength = 12
+  private val segmentSize = 1L << 30
+  private val maxRecordLength = 1 << 20
+
+  def open(file: File): SentenceStore = new SentenceStore(file)
+
+  /** The store of the index at indexPath, if it has one. */
+  def forIndex(indexPath: String): Option[SentenceStore] = {
+    val file = new File(indexPath, fileName)
+    if (file.exists) Some(open(file)) else None
+  }
+
+  /** The id sentence gets in a store, unless a different sentence there already has it. */
+  def id(sentence: StoredSentence): Long = fingerprint(payload(sentence)).id
+
+  private def payload(sentence: StoredSentence): Array[Byte] = {
+    val byteOutput = new ByteArrayOutputStream(16 * sentence.tokens.size + 64)
+    val out = new DataOutputStream(byteOutput)
+    InstancesCodec.writeVarInt(out, sentence.tokens.size)
+    sentence.tokens.foreach(InstancesCodec.writeString(out, _))
+    sentence.postags.foreach(InstancesCodec.writeString(out, _))
+    sentence.chunkTags.foreach(InstancesCodec.writeString(out, _))
+    InstancesCodec.writeString(out, sentence.sourceUrl)
+    out.flush()
+    byteOutput.toByteArray
+  }
+
+  private def readPayload(bytes: Array[Byte]): StoredSentence = {
+    val in = new DataInputStream(new ByteArrayInputStream(bytes))
+    val numTokens = InstancesCodec.readVarInt(in)
+    val tokens = IndexedSeq.fill(numTokens)(InstancesCodec.readString(in))
+    val postags = IndexedSeq.fill(numTokens)(InstancesCodec.readString(in))
+    val chunkTags = IndexedSeq.fill(numTokens)(InstancesCodec.readString(in))
+    StoredSentence(tokens, postags, chunkTags, InstancesCodec.readString(in))
+  }
+
+  /** A payload's 128 bit hash, split into the id it asks for and 63 more bits that tell apart payloads asking for the same id. */
+  private[lucene] case class Fingerprint(val id: Long, val check: Long)
+
+  private def fingerprint(bytes: Array[Byte]): Fingerprint = {
+    val hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(bytes).asBytes).order(ByteOrder.LITTLE_ENDIAN)
+    Fingerprint(hash.getLong(0), hash.getLong(8) >>> 1)
+  }
+
+  /**
+   * Appends sentences to a store, each once. Opening a store that was being written when its
+   * writer died drops the partly written record at its end. Thread safe.
+   */
+  class Writer(val file: File) {
+
+    private val ids = new LongLongMap()
+    // each id's fingerprint check, to tell whether a sentence asking for a taken id is the one that has it
+    private val checks = new LongLongMap()
+    private val raf = new RandomAccessFile(file, "rw")
+
+    // index what's there, and drop a partial record left by a crash
+    locally {
+      val end = if (raf.length == 0) 0L else {
+        val store = SentenceStore.open(file)
+        try {
+          store.scan(0L, raf.length) { (id, offset) =>
+            ids.put(id, offset)
+            checks.put(id, fingerprint(store.payloadAt(offset)).check)
+          }
+        } finally {
+          store.close()
+        }
+      }
+      raf.setLength(end)
+      raf.seek(end)
+    }
+
+    private val out = new DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(raf.getFD), 1 << 16))
+    private var length = raf.length
+
+    def numSentences: Int = synchronized { ids.size }
+
+    /** The id of extr's sentence, which is appended to the store unless it's already there. */
+    def add(extr: ReVerbExtraction): Long = add(StoredSentence(extr))
+
+    def add(sentence: StoredSentence): Long = {
+      val bytes = payload(sentence)
+      require(bytes.length + headerLength <= maxRecordLength, "sentence too long for the sentence store: " + bytes.length + " bytes")
+      val print = fingerprint(bytes)
+      synchronized {
+        // if a different sentence has the id, probe for the next id that is free or is this sentence's
+        var id = print.id
+        while (ids.get(id) >= 0 && checks.get(id) != print.check) id += 1
+        if (ids.get(id) < 0) {
+          ids.put(id, length)
+          checks.put(id, print.check)
+          out.writeLong(id)
+          out.writeInt(bytes.length)
+          out.write(bytes)
+          length += headerLength + bytes.length
+        }
+        id
+      }
+    }
+
+    protected[lucene] def fingerprint(bytes: Array[Byte]): Fingerprint = SentenceStore.fingerprint(bytes)
+
+    /** Makes everything added so far durable. Call before committing index documents that refer to it. */
+    def flush(): Unit = synchronized {
+      out.flush()
+      raf.getFD.sync()
+    }
+
+    def close(): Unit = synchronized {
+      flush()
+      out.close()
+      raf.close()
+    }
+  }
+}
+
+/** An open addressing map from long to non-negative long, for ids to offsets. get returns -1 for a missing key. */
+private[lucene] final class LongLongMap(initialCapacity: Int = 1024) {
+
+  private var keys = new Array[Long](initialCapacity)
+  private var values = Array.fill(initialCapacity)(-1L)
+  private var mask = initialCapacity - 1
+  private var numKeys = 0
+
+  def size = numKeys
+
+  // slots are empty when their value is -1, so a key of 0 needs no special case
+  private def slot(key: Long): Int = {
+    var i = (LongHashing.mix(key) & mask).toInt
+    while (values(i) >= 0 && keys(i) != key) i = (i + 1) & mask
+    i
+  }
+
+  def get(key: Long): Long = values(slot(key))
+
+  def put(key: Long, value: Long): Unit = {
+    require(value >= 0, "values must be non-negative")
+    val i = slot(key)
+    if (values(i) < 0) numKeys += 1
+    keys(i) = key
+    values(i) = value
+    if (numKeys * 2 > keys.length) grow()
+  }
+
+  private def grow(): Unit = {
+    val oldKeys = keys
+    val oldValues = values
+    keys = new Array[Long](oldKeys.length * 2)
+    values = Array.fill(oldKeys.length * 2)(-1L)
+    mask = keys.length - 1
+    var j = 0
+    while (j < oldKeys.length) {
+      if (oldValues(j) >= 0) {
+        val i = slot(oldKeys(j))
+        keys(i) = oldKeys(j)
+        values(i) = oldValues(j)
+      }
+      j += 1
+    }
+  }
+}
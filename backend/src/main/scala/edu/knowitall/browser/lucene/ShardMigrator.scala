@@ -0,0 +1,237 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+
+import scala.collection.mutable
+
+import org.apache.lucene.document.Document
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.NoMergePolicy
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.Collector
+import org.apache.lucene.search.IndexSearcher
+import org.apache.lucene.search.Scorer
+import org.apache.lucene.search.SearcherFactory
+import org.apache.lucene.search.SearcherManager
+import org.apache.lucene.search.TermQuery
+import org.apache.lucene.store.Directory
+import org.apache.lucene.store.FSDirectory
+import org.apache.lucene.util.OpenBitSet
+
+import scopt.OptionParser
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+
+/**
+ * Moves the groups of a sharded index onto the shards a ShardPlacement picks for them,
+ * e.g. an index whose groups ParallelReVerbIndexModifier used to add to random shards.
+ * Shards are migrated one at a time: the source shard's misplaced groups are added to their
+ * home shards, which are committed, and only then are they deleted from the source.
+ *
+ * Moved groups are found on their home shards by their "indexKey" field, which indexes written before
+ * it existed lack. So before a shard's groups are moved, or others moved onto it, its groups without
+ * the field are rewritten in place with it, each merged with any others of its key on the shard, which
+ * are found by an identity query on their norms. Groups are deleted only once what replaces them is
+ * committed, and merging is idempotent, so if a migration is interrupted, running it again finishes it
+ * without duplicating anything. Moved groups are written self-contained, even if their source shard has
+ * a sentence store.
+ */
+class ShardMigrator(val dirs: Seq[Directory], val placement: ShardPlacement = ShardPlacement.default, val ramBufferMB: Int = 250) {
+
+  private val numShards = dirs.size
+
+  // the shards whose groups all have an "indexKey" field
+  private val keyedShards = mutable.HashSet.empty[Int]
+
+  /** Migrates every shard, returning how many groups were moved. */
+  def migrateAll(sentenceStores: Seq[Option[SentenceStore]] = dirs.map(_ => None)): Int = {
+    dirs.indices.map(i => migrateShard(i, sentenceStores(i), sentenceStores)).sum
+  }
+
+  /** Moves the misplaced groups of shard source to their home shards, returning how many there were. */
+  def migrateShard(source: Int, sentences: Option[SentenceStore], targetSentences: Seq[Option[SentenceStore]]): Int = {
+
+    addKeys(source, sentences)
+    val reader = IndexReader.open(dirs(source))
+    val targets = mutable.HashMap.empty[Int, Target]
+    val moved = mutable.ArrayBuffer.empty[Int]
+    try {
+      for (docNum <- 0 until reader.maxDoc; if !reader.isDeleted(docNum)) {
+        val doc = reader.document(docNum)
+        val home = placement.shard(doc, numShards)
+        if (home != source) {
+          val target = targets.getOrElseUpdate(home, {
+            addKeys(home, targetSentences(home))
+            new Target(home, targetSentences(home))
+          })
+          target.add(readGroup(doc, sentences))
+          moved += docNum
+        }
+      }
+      // the moved groups must be safely on their home shards before they're deleted here
+      targets.values.foreach(_.commit())
+    } finally {
+      targets.values.foreach(_.close())
+      reader.close()
+    }
+
+    delete(source, moved)
+    System.err.println("Shard %d: moved %d groups to %s".format(source, moved.size, targets.keys.toSeq.sorted.mkString(",")))
+    moved.size
+  }
+
+  /**
+   * Rewrites the groups of shard that have no "indexKey" field with it, each merged with every other
+   * group of its key on the shard, returning how many groups were rewritten. Does nothing if this
+   * migrator already did it for shard.
+   */
+  def addKeys(shard: Int, sentences: Option[SentenceStore]): Int = {
+
+    if (keyedShards.contains(shard)) return 0
+
+    val reader = IndexReader.open(dirs(shard))
+    val rewritten = mutable.ArrayBuffer.empty[Int]
+    try {
+      val keyed = keyedDocs(reader)
+      if (keyed.cardinality < reader.numDocs) {
+        val searcher = new IndexSearcher(reader)
+        // merged groups are only added, and nothing is merged, so the doc numbers read here still name
+        // the same docs when they're deleted below
+        val config = ReVerbIndexBuilder.indexWriterConfig(ramBufferMB).setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES)
+        val writer = new IndexWriter(dirs(shard), config)
+        try {
+          val done = new OpenBitSet(reader.maxDoc)
+          for (docNum <- 0 until reader.maxDoc; if !reader.isDeleted(docNum) && !keyed.get(docNum) && !done.get(docNum)) {
+            val doc = reader.document(docNum)
+            val key = ShardPlacement.key(doc)
+            val others = sameKeyDocs(searcher, key).filter(_ != docNum)
+            val groups = readGroup(doc, sentences) :: others.map(other => readGroup(reader.document(other), sentences))
+            writer.addDocument(ReVerbDocumentConverter.toDocument(ReVerbExtractionGroup.mergeGroups(key, groups)))
+            (docNum :: others).foreach { n => done.set(n); rewritten += n }
+          }
+          writer.commit()
+        } finally {
+          writer.close()
+        }
+      }
+    } finally {
+      reader.close()
+    }
+
+    delete(shard, rewritten)
+    keyedShards += shard
+    if (!rewritten.isEmpty) System.err.println("Shard %d: rewrote %d groups with an indexKey".format(shard, rewritten.size))
+    rewritten.size
+  }
+
+  // the docs of reader that have an "indexKey" field
+  private def keyedDocs(reader: IndexReader): OpenBitSet = {
+    val keyed = new OpenBitSet(reader.maxDoc)
+    val terms = reader.terms(new Term("indexKey", ""))
+    val termDocs = reader.termDocs()
+    try {
+      var more = terms.term != null
+      while (more && terms.term.field == "indexKey") {
+        termDocs.seek(terms)
+        while (termDocs.next()) keyed.set(termDocs.doc)
+        more = terms.next()
+      }
+    } finally {
+      termDocs.close()
+      terms.close()
+    }
+    keyed
+  }
+
+  // the docs with key, with or without an "indexKey" field
+  private def sameKeyDocs(searcher: IndexSearcher, key: ShardPlacement.Key): List[Int] = {
+    val hits = mutable.ArrayBuffer.empty[Int]
+    searcher.search(ShardPlacement.identityQuery(key), new Collector {
+      private var docBase = 0
+      override def setScorer(scorer: Scorer): Unit = ()
+      override def setNextReader(reader: IndexReader, docBase: Int): Unit = { this.docBase = docBase }
+      override def acceptsDocsOutOfOrder = true
+      override def collect(doc: Int): Unit = { hits += docBase + doc }
+    })
+    // the identity query also matches docs whose norms have more words
+    hits.toList.filter(docNum => ShardPlacement.key(searcher.doc(docNum)) == key)
+  }
+
+  private def readGroup(doc: Document, sentences: Option[SentenceStore]): ExtractionGroup[ReVerbExtraction] = sentences match {
+    case Some(store) => ReVerbDocumentConverter.fromDocument(doc, store)
+    case None => ReVerbDocumentConverter.fromDocument(doc)
+  }
+
+  private def delete(shard: Int, docNums: Seq[Int]): Unit = {
+    if (!docNums.isEmpty) {
+      val deleter = IndexReader.open(dirs(shard), false)
+      try {
+        docNums.foreach(deleter.deleteDocument)
+      } finally {
+        deleter.close()
+      }
+    }
+  }
+
+  // a home shard receiving moved groups
+  private class Target(shard: Int, sentences: Option[SentenceStore]) {
+
+    val writer = new IndexWriter(dirs(shard), ReVerbIndexBuilder.indexWriterConfig(ramBufferMB))
+    private val searcherManager = new SearcherManager(writer, true, new SearcherFactory())
+    // hashes of the keys added since the searcher was last refreshed
+    private val addedKeys = mutable.HashSet.empty[Int]
+
+    def add(group: ExtractionGroup[ReVerbExtraction]): Unit = {
+      val key = ShardPlacement.key(group)
+      val keyHash = key.hashCode
+      if (addedKeys.contains(keyHash)) {
+        searcherManager.maybeRefresh()
+        addedKeys.clear()
+      }
+      val existing = find(key)
+      val merged = if (existing.isEmpty) group else ReVerbExtractionGroup.mergeGroups(key, group :: existing)
+      writer.updateDocument(ShardPlacement.keyTerm(key), ReVerbDocumentConverter.toDocument(merged))
+      addedKeys += keyHash
+    }
+
+    private def find(key: ShardPlacement.Key): List[ExtractionGroup[ReVerbExtraction]] = {
+      val searcher = searcherManager.acquire
+      try {
+        val topDocs = searcher.search(new TermQuery(ShardPlacement.keyTerm(key)), 100)
+        topDocs.scoreDocs.toList.map(scoreDoc => readGroup(searcher.doc(scoreDoc.doc), sentences))
+      } finally {
+        searcherManager.release(searcher)
+      }
+    }
+
+    def commit(): Unit = writer.commit()
+
+    def close(): Unit = {
+      searcherManager.close()
+      writer.close()
+    }
+  }
+}
+
+object ShardMigrator {
+
+  def main(args: Array[String]): Unit = {
+
+    var indexPaths: Seq[String] = Nil
+    var ramBufferMB = 250
+
+    val optionParser = new OptionParser() {
+      arg("indexPaths", "Colon-delimited list of paths to the shards, in the order they are queried and modified", { str => indexPaths = str.split(":") })
+      intOpt("ramBufferMB", "Size of ram buffer per index, (e.g. IndexWriterConfig.setRAMBufferSizeMB)", { i => ramBufferMB = i })
+    }
+
+    if (!optionParser.parse(args)) return
+
+    val migrator = new ShardMigrator(indexPaths.map(path => FSDirectory.open(new File(path))), ramBufferMB = ramBufferMB)
+    val moved = migrator.migrateAll(indexPaths.map(SentenceStore.forIndex))
+    System.err.println("Moved %d groups. Use --placed with ParallelReVerbIndexModifier, and set placement on fetchers, from now on.".format(moved))
+  }
+}
@@ -0,0 +1,68 @@
+package edu.knowitall.browser.lucene
+
+import org.apache.lucene.document.Document
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.BooleanClause
+import org.apache.lucene.search.BooleanQuery
+import org.apache.lucene.search.Query
+import org.apache.lucene.search.TermQuery
+
+import com.google.common.base.Charsets
+import com.google.common.hash.Hashing
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+
+/**
+ * Decides which shard of a sharded index a group lives in, from its index grouping key.
+ * Builders, modifiers and fetchers that share a placement agree on where every key is, so
+ * looking up or updating a group touches just that shard.
+ *
+ * A group's key is its norms: groups are indexed under their instances' indexGroupingKey.
+ */
+trait ShardPlacement {
+
+  def shard(key: ShardPlacement.Key, numShards: Int): Int
+
+  def shard(group: ExtractionGroup[ReVerbExtraction], numShards: Int): Int = shard(ShardPlacement.key(group), numShards)
+
+  def shard(doc: Document, numShards: Int): Int = shard(ShardPlacement.key(doc), numShards)
+}
+
+object ShardPlacement {
+
+  type Key = (String, String, String)
+
+  def key(group: ExtractionGroup[ReVerbExtraction]): Key = (group.arg1.norm, group.rel.norm, group.arg2.norm)
+
+  def key(doc: Document): Key = (doc.get("arg1Norm"), doc.get("relNorm"), doc.get("arg2Norm"))
+
+  /** The term of the indexed "indexKey" field, which matches exactly the docs with key. */
+  def keyTerm(key: Key): Term = new Term("indexKey", GroupingKeys.serializeKey(key))
+
+  /**
+   * Matches the docs whose norm fields have every word of key's, which includes the docs with key
+   * whether or not they have an "indexKey" field, and possibly others with more words.
+   */
+  def identityQuery(key: Key): Query = {
+    val (arg1Norm, relNorm, arg2Norm) = key
+    val query = new BooleanQuery(true)
+    for ((field, norm) <- Seq(("arg1Norm", arg1Norm), ("relNorm", relNorm), ("arg2Norm", arg2Norm)); word <- norm.split(" "); if !word.trim.isEmpty) {
+      query.add(new TermQuery(new Term(field, word.trim)), BooleanClause.Occur.MUST)
+    }
+    query
+  }
+
+  /**
+   * Murmur3 of the key, consistently hashed onto the shards: the same on every JVM, and if
+   * the number of shards grows from n to n + 1, only 1/(n + 1) of the keys move.
+   */
+  object Hashed extends ShardPlacement {
+    def shard(key: Key, numShards: Int): Int = {
+      val hash = Hashing.murmur3_32().hashString(GroupingKeys.serializeKey(key), Charsets.UTF_8)
+      Hashing.consistentHash(hash, numShards)
+    }
+  }
+
+  val default: ShardPlacement = Hashed
+}
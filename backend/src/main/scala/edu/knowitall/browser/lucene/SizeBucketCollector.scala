@@ -0,0 +1,113 @@
+package edu.knowitall.browser.lucene
+
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.search.Collector
+import org.apache.lucene.search.FieldCache
+import org.apache.lucene.search.ScoreDoc
+import org.apache.lucene.search.Scorer
+import org.apache.lucene.search.TopDocs
+import org.apache.lucene.util.PriorityQueue
+
+/**
+ * Collects the top numHits documents in each size bucket in a single pass over a query.
+ *
+ * Each document's group size is read from the field cache for the "size" field, and the
+ * document goes to the first bucket that contains it. Within a bucket, documents are ranked
+ * just as TopScoreDocCollector ranks them: by descending score, ties broken by ascending doc id.
+ * This gives the same hits as searching each bucket's range query separately, with one
+ * enumeration of the query's postings instead of one per bucket.
+ *
+ * If after is given, the first bucket only collects hits ranked below it (as in IndexSearcher.searchAfter),
+ * which is how paged queries resume.
+ */
+class SizeBucketCollector(val buckets: IndexedSeq[SizeBucket], val numHits: Int, val after: Option[ScoreDoc] = None) extends Collector {
+
+  import SizeBucketCollector.ScoreDocQueue
+
+  private val queues = buckets.map(_ => new ScoreDocQueue(math.max(numHits, 1)))
+  private val hitCounts = new Array[Int](buckets.size)
+
+  private var scorer: Scorer = _
+  private var sizes: Array[Int] = _
+  private var docBase = 0
+
+  private val afterScore = after.map(_.score).getOrElse(Float.PositiveInfinity)
+  private val afterDoc = after.map(_.doc).getOrElse(-1)
+
+  override def setScorer(scorer: Scorer): Unit = {
+    this.scorer = scorer
+  }
+
+  override def setNextReader(reader: IndexReader, docBase: Int): Unit = {
+    this.sizes = FieldCache.DEFAULT.getInts(reader, "size", FieldCache.NUMERIC_UTILS_INT_PARSER)
+    this.docBase = docBase
+  }
+
+  // ties are broken by doc id, which relies on seeing docs in order
+  override def acceptsDocsOutOfOrder = false
+
+  override def collect(doc: Int): Unit = {
+    val bucket = bucketOf(sizes(doc))
+    if (bucket >= 0 && numHits > 0) {
+      val score = scorer.score()
+      if (bucket == 0 && after.isDefined && !rankedAfter(score, docBase + doc)) return
+      hitCounts(bucket) += 1
+      val queue = queues(bucket)
+      if (queue.size < numHits) {
+        queue.add(new ScoreDoc(docBase + doc, score))
+      } else if (score > queue.top.score) {
+        // docs arrive in order, so a later doc with an equal score never displaces the top
+        val top = queue.top
+        top.doc = docBase + doc
+        top.score = score
+        queue.updateTop()
+      }
+    }
+  }
+
+  // true if (score, doc) ranks below the after hit
+  private def rankedAfter(score: Float, doc: Int): Boolean = score < afterScore || (score == afterScore && doc > afterDoc)
+
+  private def bucketOf(size: Int): Int = {
+    var i = 0
+    while (i < buckets.size) {
+      if (buckets(i).contains(size)) return i
+      i += 1
+    }
+    -1
+  }
+
+  /** Number of documents collected in bucket i. */
+  def totalHits(i: Int): Int = hitCounts(i)
+
+  // best first. Popping empties the queues, so do it once, after collection.
+  private lazy val sortedHits: IndexedSeq[Array[ScoreDoc]] = queues.map { queue =>
+    val hits = new Array[ScoreDoc](queue.size)
+    var i = hits.length - 1
+    while (i >= 0) {
+      hits(i) = queue.pop()
+      i -= 1
+    }
+    hits
+  }
+
+  /** The best n hits in bucket i, as if from a TopScoreDocCollector over that bucket's range query. */
+  def topDocs(i: Int, n: Int): TopDocs = {
+    val hits = sortedHits(i).take(n)
+    val maxScore = if (hits.isEmpty) Float.NaN else hits(0).score
+    new TopDocs(totalHits(i), hits, maxScore)
+  }
+}
+
+object SizeBucketCollector {
+
+  private class ScoreDocQueue(maxSize: Int) extends PriorityQueue[ScoreDoc] {
+
+    initialize(maxSize)
+
+    override def lessThan(a: ScoreDoc, b: ScoreDoc): Boolean = {
+      if (a.score == b.score) a.doc > b.doc
+      else a.score < b.score
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package edu.knowitall.browser.lucene
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import edu.knowitall.tool.postag.OpenNlpPostagger
+import edu.knowitall.tool.tokenize.OpenNlpTokenizer
+
+import org.slf4j.LoggerFactory
+
+/**
+ * A pool of POS taggers that share one set of models.
+ *
+ * coreSize taggers are created up front. When all of them are busy, the pool creates more
+ * on demand, up to maxSize. Past that, borrowers wait up to a timeout and then get None,
+ * so callers can fall back to something cheaper instead of queueing without bound.
+ */
+class TaggerPool(val coreSize: Int, val maxSize: Int) {
+
+  require(coreSize >= 1 && maxSize >= coreSize)
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  // the first tagger loads the models; the rest share them
+  private val prototypeTokenizer = new OpenNlpTokenizer()
+  private val prototype = new OpenNlpPostagger(tokenizer = prototypeTokenizer)
+
+  private val idle = new LinkedBlockingQueue[OpenNlpPostagger]
+  private val created = new AtomicInteger(1)
+
+  private val borrows = new AtomicLong(0)
+  private val timeouts = new AtomicLong(0)
+  private val totalWaitNanos = new AtomicLong(0)
+  private val maxWaitNanos = new AtomicLong(0)
+
+  idle.add(prototype)
+  for (i <- 2 to coreSize) {
+    created.incrementAndGet()
+    idle.add(newTagger())
+  }
+
+  private def newTagger() = new OpenNlpPostagger(prototype.model, new OpenNlpTokenizer(prototypeTokenizer.model))
+
+  /** Runs f with a tagger, or returns None if none became available within timeoutMillis. */
+  def withTagger[T](timeoutMillis: Long)(f: OpenNlpPostagger => T): Option[T] = {
+    borrow(timeoutMillis) map { tagger =>
+      try {
+        f(tagger)
+      } finally {
+        idle.add(tagger)
+      }
+    }
+  }
+
+  private def borrow(timeoutMillis: Long): Option[OpenNlpPostagger] = {
+    val start = System.nanoTime
+    val tagger = idle.poll() match {
+      case null => {
+        if (created.incrementAndGet() <= maxSize) {
+          logger.debug("Growing tagger pool to %d".format(created.get))
+          newTagger()
+        } else {
+          created.decrementAndGet()
+          idle.poll(timeoutMillis, MILLISECONDS)
+        }
+      }
+      case idleTagger => idleTagger
+    }
+    recordWait(System.nanoTime - start)
+    if (tagger == null) {
+      timeouts.incrementAndGet()
+      None
+    } else Some(tagger)
+  }
+
+  private def recordWait(waitNanos: Long): Unit = {
+    borrows.incrementAndGet()
+    totalWaitNanos.addAndGet(waitNanos)
+    var max = maxWaitNanos.get
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) max = maxWaitNanos.get
+  }
+
+  def stats = TaggerPool.Stats(created.get, borrows.get, timeouts.get, totalWaitNanos.get, maxWaitNanos.get)
+}
+
+object TaggerPool {
+
+  case class Stats(size: Int, borrows: Long, timeouts: Long, totalWaitNanos: Long, maxWaitNanos: Long) {
+    def meanWaitMillis = if (borrows == 0) 0.0 else NANOSECONDS.toMicros(totalWaitNanos / borrows) / 1000.0
+    def maxWaitMillis = NANOSECONDS.toMicros(maxWaitNanos) / 1000.0
+    override def toString = "taggers: %d, borrows: %d, timeouts: %d, mean wait: %.3f ms, max wait: %.3f ms".format(size, borrows, timeouts, meanWaitMillis, maxWaitMillis)
+  }
+}
@@ -1,115 +1,146 @@
 package edu.knowitall.browser.lucene.benchmark
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
 import scala.io.Source
 import scala.util.Random
 
 import scopt.OptionParser
 
 import edu.knowitall.browser.lucene._
-import edu.knowitall.common.Timing.{ Seconds, Milliseconds }
-import edu.knowitall.common.Timing
-
-import edu.knowitall.openie.models._
+import edu.knowitall.common.Resource.using
 
 import org.slf4j.LoggerFactory
 
 /**
-  * Runs a set of benchmark queries and reports timing data.
+  * Load generator for a GroupFetcher: runs queries from many concurrent clients and reports
+  * latency percentiles, throughput, and how many queries came back Success, Limited or Timeout.
   *
-  * Before any benchmark queries are run, a warm-up query is
-  * issued (see wiki.apache.org/lucene-java/ImproveSearchingSpeed)
+  * Closed loop: each of the clients issues its next query as soon as the last one returns,
+  * so the offered load adapts to how fast the fetcher is. Open loop: queries arrive at a fixed
+  * rate whatever the fetcher does, and latency is measured from when each query was due to be
+  * sent, so queueing behind slow queries counts against the latency (no coordinated omission).
   *
-  * Single/Multiple indexes are specified in the benchmark config
-  * file, by 'overloading' the ReVerb-G1b and R2A2-G1b index paths.
+  * Before measuring, a few warm-up queries are issued
+  * (see wiki.apache.org/lucene-java/ImproveSearchingSpeed)
   *
   * @author Rob
   */
-abstract class IndexBenchmarker(numQueries: Int) {
-  import IndexBenchmarker.Query
-
-  def fetch(arg1: Option[String] = None, rel: Option[String] = None, arg2: Option[String] = None): Seq[ReVerbExtractionGroup.REG]
-  def fetch(query: Query): Seq[ReVerbExtractionGroup.REG] = fetch(arg1 = query.arg1, rel = query.rel , arg2 = query.arg2)
+class IndexBenchmarker(val fetcher: GroupFetcher, val queries: IndexedSeq[QuerySpec]) {
 
-  def println(str: String):Unit = { System.out.println("Benchmark: %s".format(str)) }
+  import IndexBenchmarker.{Report, Sample}
 
-  abstract class SomeTime { def time: Long }
-  case class SearchTime(val time: Long) extends SomeTime { override def toString = Seconds.format(time) }
+  require(!queries.isEmpty, "no queries to run")
 
-  import IndexBenchmarker.{ fieldMasks, commonNouns, commonVerbs }
-
-  /** Runs the benchmark queries over the specified "corpus" */
-  def runResults(): Iterator[(Query, Seq[ReVerbExtractionGroup.REG], SearchTime)] = {
+  def println(str: String): Unit = { System.out.println("Benchmark: %s".format(str)) }
 
+  def warmup(numQueries: Int): Unit = {
     println("Running Warm-up Queries...")
-    println("Time\tGroups\tInstances\tTotalHits\tQuery Status")
-    fetch(arg1 = Some("Bill"), arg2 = Some("Microsoft"))
-    fetch(rel = Some("conjugate"))
-    fetch(arg1 = Some("Etzioni"))
-
-    randomQueries(numQueries).iterator.map { querySpec =>
-      val (searchTime, resultSet) = Timing.time(fetch(querySpec))
-      (querySpec, resultSet, SearchTime(searchTime))
-    }
+    fetcher.getGroups(arg1 = Some("Bill"), arg2 = Some("Microsoft"))
+    fetcher.getGroups(rel = Some("conjugate"))
+    fetcher.getGroups(arg1 = Some("Etzioni"))
+    (0 until numQueries).foreach(i => fetcher.getGroups(queries(i % queries.size)))
   }
 
-  def printResults: Unit = {
-    val resultsIterator = runResults()
-    val results = resultsIterator.map { case (querySpec, resultSet, searchTime) =>
-
-      val totalHits = resultSet.size
-
-      def resultString(prefix:String) = "%s\t%d\t%d\t%d\t%s".format(searchTime, resultSet.size, resultSet.iterator.map(_.instances.size).sum, totalHits, prefix+queryTitle(querySpec))
-
-      println(resultString(""))
-      (querySpec, resultSet, SearchTime(searchTime.time))
-    } toSeq
-
-    def sumTimes(times:Iterable[SomeTime]): SearchTime = SearchTime(times.map(_.time).sum)
-    def avgTimes(times:Iterable[SomeTime]): SearchTime = SearchTime(sumTimes(times).time/times.size)
-
-    val allSearchTime = sumTimes(results.map(_._3)).toString
-    val avgSearchTime = avgTimes(results.map(_._3)).toString
-    println("Tot Search Time: %s".format(allSearchTime))
-    println("Avg Search Time: %s".format(avgSearchTime))
+  // runs the i'th query (cycling through queries), timed from startNanos
+  private def runQuery(i: Int, startNanos: Long): Sample = {
+    val outcome = try {
+      ExtractionGroupFetcher.outcome(fetcher.getGroups(queries(i % queries.size)))
+    } catch {
+      case e: Exception => {
+        IndexBenchmarker.logger.error("Query failed: " + queries(i % queries.size), e)
+        "error"
+      }
+    }
+    Sample(System.nanoTime - startNanos, outcome)
   }
 
-  private def randomQueries(numQueries: Int): Seq[Query] = {
-
-    val nq = numQueries / fieldMasks.length
+  /** Runs numQueries queries from clients threads, each sending its next query when the last returns. */
+  def runClosedLoop(clients: Int, numQueries: Int): Report = {
+    val samples = new Array[Sample](numQueries)
+    val nextQuery = new AtomicInteger(0)
+    val done = new CountDownLatch(clients)
+    val start = System.nanoTime
+    (1 to clients).foreach { c =>
+      val client = new Thread("benchmark-client-" + c) {
+        override def run() = {
+          try {
+            var i = nextQuery.getAndIncrement()
+            while (i < numQueries) {
+              samples(i) = runQuery(i, System.nanoTime)
+              i = nextQuery.getAndIncrement()
+            }
+          } finally {
+            done.countDown()
+          }
+        }
+      }
+      client.setDaemon(true)
+      client.start()
+    }
+    done.await()
+    Report(samples, System.nanoTime - start)
+  }
 
-    fieldMasks.flatMap {
-      case (arg1Mask, relMask, arg2Mask) =>
-        Seq.fill(nq) { randomQuery(arg1Mask, relMask, arg2Mask) }
+  /**
+   * Sends numQueries queries at queriesPerSecond, on up to clients threads. If all clients are busy,
+   * due queries wait for one, and that wait counts towards their latency.
+   */
+  def runOpenLoop(queriesPerSecond: Double, clients: Int, numQueries: Int): Report = {
+    val samples = new Array[Sample](numQueries)
+    val executor = Executors.newFixedThreadPool(clients)
+    val intervalNanos = (1e9 / queriesPerSecond).toLong
+    val start = System.nanoTime
+    for (i <- 0 until numQueries) {
+      val due = start + i * intervalNanos
+      val sleepNanos = due - System.nanoTime
+      if (sleepNanos > 0) Thread.sleep(sleepNanos / 1000000, (sleepNanos % 1000000).toInt)
+      executor.execute(new Runnable() {
+        override def run() = samples(i) = runQuery(i, due)
+      })
     }
+    executor.shutdown()
+    executor.awaitTermination(Long.MaxValue, MILLISECONDS)
+    Report(samples, System.nanoTime - start)
   }
+}
 
-  private def queryTitle(qs: Query): String = {
+object IndexBenchmarker {
 
-    val arg1Str = qs.arg1.getOrElse("___")
-    val relStr = qs.rel.getOrElse("___")
-    val arg2Str = qs.arg2.getOrElse("___")
+  val logger = LoggerFactory.getLogger(this.getClass)
 
-    "(%s, %s, %s)".format(arg1Str, relStr, arg2Str)
-  }
+  /** One query's latency and outcome (success, limited, timeout or error). */
+  case class Sample(val latencyNanos: Long, val outcome: String)
 
-  private def randomQuery(arg1: Boolean, rel: Boolean, arg2: Boolean): Query = {
+  case class Report(val samples: Seq[Sample], val elapsedNanos: Long) {
 
-    val arg1Op = if (arg1) Some(randomCommonNoun()) else None
-    val relOp = if (rel) Some(randomCommonVerb()) else None
-    val arg2Op = if (arg2) Some(randomCommonNoun()) else None
+    private val sortedLatencies = samples.map(_.latencyNanos).sorted.toIndexedSeq
 
-    Query(arg1Op, relOp, arg2Op)
-  }
+    /** The p'th quantile (0 < p <= 1) latency, exactly, in nanoseconds. */
+    def percentileNanos(p: Double): Long = {
+      if (sortedLatencies.isEmpty) 0
+      else sortedLatencies(math.min(math.max(math.ceil(p * sortedLatencies.size).toInt - 1, 0), sortedLatencies.size - 1))
+    }
 
-  private def randomCommonNoun(): String = commonNouns(Random.nextInt(commonNouns.length))
+    def queriesPerSecond: Double = samples.size / (elapsedNanos / 1e9)
 
-  private def randomCommonVerb(): String = commonVerbs(Random.nextInt(commonVerbs.length))
-}
+    def meanNanos: Double = if (samples.isEmpty) 0.0 else sortedLatencies.sum.toDouble / samples.size
 
-object IndexBenchmarker {
-  case class Query(arg1: Option[String], rel: Option[String], arg2: Option[String])
+    def outcomes: Map[String, Int] = samples.groupBy(_.outcome).map { case (outcome, samples) => (outcome, samples.size) }
 
-  import edu.knowitall.common.Resource.using
+    override def toString = {
+      def ms(nanos: Double) = "%.1f ms".format(nanos / 1e6)
+      Seq(
+        "Queries: %d in %.1f s, %.1f queries/s".format(samples.size, elapsedNanos / 1e9, queriesPerSecond),
+        "Latency: mean %s, p50 %s, p90 %s, p99 %s, max %s".format(ms(meanNanos), ms(percentileNanos(0.5)), ms(percentileNanos(0.9)),
+          ms(percentileNanos(0.99)), ms(percentileNanos(1.0))),
+        "Results: " + Seq("success", "limited", "timeout", "error").map(outcome => "%s %d".format(outcome, outcomes.getOrElse(outcome, 0))).mkString(", ")
+      ).mkString("\n")
+    }
+  }
 
   private val COMMON_NOUNS = "/common-nouns.txt"
 
@@ -131,60 +162,80 @@ object IndexBenchmarker {
     (false, true, false),
     (false, false, true))
 
-/*
-  def main(args: Array[String]): Unit = {
-
-    var fetcherIndexPath = ""
-    var numQueries = -1
-    var timeout = -1
-    var maxGroups = -1
-    var maxInstances = -1
-
-    val parser = new OptionParser() {
-      arg("indexPath", "Path to single index", {str=>fetcherIndexPath=str})
-      arg("numQueries", "Number of random queries to run (make it divisible by 6)", {str=>numQueries=str.toInt})
+  /** numQueries queries built from common nouns and verbs, split evenly between the ways of filling in arg1, rel and arg2. */
+  def randomQueries(numQueries: Int, random: Random): IndexedSeq[QuerySpec] = {
 
-      arg("maxGroups", "maximum groups", {str=>maxGroups=str.toInt})
-      arg("maxInstances", "maximum instances", {str=>maxInstances=str.toInt})
+    def randomCommonNoun(): String = commonNouns(random.nextInt(commonNouns.length))
+    def randomCommonVerb(): String = commonVerbs(random.nextInt(commonVerbs.length))
 
-      arg("timeout", "timeout in milliseconds", {str=>timeout=str.toInt})
+    (0 until numQueries).map { i =>
+      val (arg1Mask, relMask, arg2Mask) = fieldMasks(i % fieldMasks.length)
+      val arg1 = if (arg1Mask) Some(randomCommonNoun()) else None
+      val rel = if (relMask) Some(randomCommonVerb()) else None
+      val arg2 = if (arg2Mask) Some(randomCommonNoun()) else None
+      QuerySpec(arg1, rel, arg2, arg1, arg2, None, None, None)
     }
-
-    if (!parser.parse(args)) return
-
-    new IndexBenchmarker(new ExtractionGroupFetcher(fetcherIndexPath, maxGroups, maxInstances, timeout), numQueries).printResults
   }
-  */
-}
 
-/*
-object ParallelIndexBenchmarker {
-
-  import IndexBenchmarker.COMMON_NOUNS
-  import IndexBenchmarker.COMMON_VERBS
-  import IndexBenchmarker.fieldMasks
+  /**
+   * Queries recorded one per line in the query server's parameter format (see QueryServer),
+   * e.g. "arg1=einstein&rel=born%20in". Blank lines and lines starting with # are skipped.
+   */
+  def loadQueries(path: String): IndexedSeq[QuerySpec] = using(Source.fromFile(path, "UTF-8")) { source =>
+    source.getLines.map(_.trim).filter(line => !line.isEmpty && !line.startsWith("#")).map { line =>
+      QueryServer.toQuerySpec(QueryServer.queryParams(line))
+    }.toIndexedSeq
+  }
 
   def main(args: Array[String]): Unit = {
 
-    var fetcherIndexPaths = Seq.empty[String]
-    var numQueries = -1
-    var timeout = -1
-    var maxGroups = -1
-    var maxInstances = -1
+    var indexPaths = Seq.empty[String]
+    var numQueries = 600
+    var queryFile: Option[String] = None
+    var clients = 1
+    var rate: Option[Double] = None
+    var warmupQueries = 0
+    var timeout = 10000L
+    var maxGroups = 1000
+    var maxInstances = 1000
+    var stoplist = false
+    var seed = 0L
 
     val parser = new OptionParser() {
-      arg("indexPaths", "Paths to mutliple indexes, colon delimited", {str=>fetcherIndexPaths=str.split(":")})
-      arg("numQueries", "Number of random queries to run (make it divisible by 6)", {str=>numQueries=str.toInt})
-
-      arg("maxGroups", "maximum groups", {str=>maxGroups=str.toInt})
-      arg("maxInstances", "maximum instances", {str=>maxInstances=str.toInt})
-
-      arg("timeout", "timeout in milliseconds", {str=>timeout=str.toInt})
+      arg("indexPaths", "Paths to one or more indexes, colon delimited", { str => indexPaths = str.split(":") })
+      opt("queries", "Number of queries to run, default=600", { str => numQueries = str.toInt })
+      opt("queryFile", "Replay queries from this file (one per line, e.g. arg1=einstein&rel=born%20in) instead of random common nouns and verbs", { str => queryFile = Some(str) })
+      opt("clients", "Number of concurrent clients, default=1", { str => clients = str.toInt })
+      opt("rate", "Send a fixed number of queries per second (open loop), rather than one per client as each returns", { str => rate = Some(str.toDouble) })
+      opt("warmup", "Number of unmeasured queries to run first, default=0", { str => warmupQueries = str.toInt })
+      opt("seed", "Random seed for generated queries", { str => seed = str.toLong })
+      opt("maxGroups", "maximum groups", { str => maxGroups = str.toInt })
+      opt("maxInstances", "maximum instances", { str => maxInstances = str.toInt })
+      opt("timeout", "timeout in milliseconds", { str => timeout = str.toLong })
+      opt("entityStoplist", "Use the entity stoplist", { stoplist = true })
     }
 
     if (!parser.parse(args)) return
 
-    new IndexBenchmarker(new ParallelExtractionGroupFetcher(fetcherIndexPaths, maxGroups, maxInstances, timeout), numQueries).printResults
+    val fetcher: GroupFetcher = indexPaths match {
+      case Seq(path) => new ExtractionGroupFetcher(path, maxGroups, maxInstances, timeout, stoplist)
+      case paths => new ParallelExtractionGroupFetcher(paths, maxGroups, maxInstances, timeout, stoplist)
+    }
+    val queries = queryFile.map(loadQueries).getOrElse(randomQueries(numQueries, new Random(seed)))
+
+    val benchmarker = new IndexBenchmarker(fetcher, queries)
+    benchmarker.warmup(warmupQueries)
+
+    val report = rate match {
+      case Some(queriesPerSecond) => {
+        benchmarker.println("Sending %d queries at %.1f queries/s on up to %d clients".format(numQueries, queriesPerSecond, clients))
+        benchmarker.runOpenLoop(queriesPerSecond, clients, numQueries)
+      }
+      case None => {
+        benchmarker.println("Running %d queries from %d clients".format(numQueries, clients))
+        benchmarker.runClosedLoop(clients, numQueries)
+      }
+    }
+    report.toString.split("\n").foreach(benchmarker.println)
   }
 }
-*/
@@ -0,0 +1,58 @@
+package edu.knowitall.browser.lucene.benchmark
+
+import scala.io.Source
+
+import scopt.OptionParser
+
+import edu.knowitall.browser.lucene.InstancesCodec
+import edu.knowitall.common.Resource.using
+import edu.knowitall.common.Timing
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+/**
+ * Compares the size and decode time of the current "instances" field encoding
+ * against the legacy Java-serialized encoding, over a file of ReVerbExtractionGroups
+ * (by default, the models module's test-groups.txt).
+ */
+object InstancesCodecBenchmarker {
+
+  def main(args: Array[String]): Unit = {
+
+    var inputPath: Option[String] = None
+    var iterations = 10
+
+    val parser = new OptionParser() {
+      opt("input", "file of serialized ReVerbExtractionGroups, default=test-groups.txt", { str => inputPath = Some(str) })
+      intOpt("iterations", "number of passes to decode all groups", { i => iterations = i })
+    }
+
+    if (!parser.parse(args)) return
+
+    val source = inputPath match {
+      case Some(path) => Source.fromFile(path, "UTF-8")
+      case None => Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8")
+    }
+
+    val groups = using(source) { src => src.getLines.flatMap(ReVerbExtractionGroup.deserializeFromString).toList }
+    val numInstances = groups.map(_.instances.size).sum
+
+    val legacyBlobs = groups.map(group => InstancesCodec.encodeLegacy(group.instances))
+    val currentBlobs = groups.map(group => InstancesCodec.encode(group.instances))
+
+    val legacyBytes = legacyBlobs.map(_.length.toLong).sum
+    val currentBytes = currentBlobs.map(_.length.toLong).sum
+
+    // warm up both decoders before timing them
+    legacyBlobs.foreach(InstancesCodec.decodeLegacy)
+    currentBlobs.foreach(InstancesCodec.decode)
+
+    val (legacyNs, _) = Timing.time { for (i <- 1 to iterations) legacyBlobs.foreach(InstancesCodec.decodeLegacy) }
+    val (currentNs, _) = Timing.time { for (i <- 1 to iterations) currentBlobs.foreach(InstancesCodec.decode) }
+
+    println("Groups: %d, Instances: %d, Iterations: %d".format(groups.size, numInstances, iterations))
+    println("Legacy  size: %d bytes (%.1f bytes/instance), decode: %s".format(legacyBytes, legacyBytes.toDouble / numInstances, Timing.Milliseconds.format(legacyNs)))
+    println("Current size: %d bytes (%.1f bytes/instance), decode: %s".format(currentBytes, currentBytes.toDouble / numInstances, Timing.Milliseconds.format(currentNs)))
+    println("Size ratio: %.3f, Decode time ratio: %.3f".format(currentBytes.toDouble / legacyBytes, currentNs.toDouble / legacyNs))
+  }
+}
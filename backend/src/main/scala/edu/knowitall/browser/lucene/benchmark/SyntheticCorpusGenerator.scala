@@ -0,0 +1,214 @@
+package edu.knowitall.browser.lucene.benchmark
+
+import java.io.BufferedWriter
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.util.Arrays
+
+import scala.io.Source
+import scala.util.Random
+
+import scopt.OptionParser
+
+import edu.knowitall.common.Resource.using
+import edu.knowitall.openie.models.ExtractionArgument
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ExtractionRelation
+import edu.knowitall.openie.models.FreeBaseEntity
+import edu.knowitall.openie.models.FreeBaseType
+import edu.knowitall.openie.models.Instance
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtractionGroup.REG
+import edu.knowitall.openie.models.Resources
+
+/** Ranks 1 to n, with probability proportional to rank^-exponent. Sampling is a binary search. */
+class ZipfDistribution(val n: Int, val exponent: Double) {
+
+  require(n > 0)
+
+  private val cdf = {
+    val weights = Array.tabulate(n)(i => math.pow(i + 1, -exponent))
+    val total = weights.sum
+    var cumulative = 0.0
+    weights.map { weight =>
+      cumulative += weight
+      cumulative / total
+    }
+  }
+
+  def sample(random: Random): Int = {
+    val i = Arrays.binarySearch(cdf, random.nextDouble())
+    // the insertion point is the first rank whose cumulative probability is above the draw
+    math.min(if (i >= 0) i + 1 else -i, n)
+  }
+}
+
+/**
+ * Generates any number of ReVerbExtractionGroups from a small set of seed groups, for building
+ * indexes of realistic size. Group i is a function of the seed and i alone, so a corpus can be
+ * generated in parts, in parallel, and regenerated identically.
+ *
+ * Each group copies the norms and instance sentences of a random seed group, and then:
+ *   - has a Zipf-distributed number of instances, each from a distinct source url and with its own confidence,
+ *   - links each argument to an entity with linkProbability, entities being Zipf-distributed over numEntities,
+ *   - types each linked entity with up to maxTypesPerEntity Zipf-distributed seed types (always the same for an entity),
+ *   - if uniqueKeys is set, ends arg2 with a made-up word unique to the group, so no two groups share a grouping key.
+ *
+ * Norms aren't recomputed from the instances, so don't index generated groups with --regroup.
+ */
+class SyntheticCorpusGenerator(
+  val seeds: IndexedSeq[REG],
+  val seed: Long = 0L,
+  val groupSizeExponent: Double = 2.0,
+  val maxGroupSize: Int = 10000,
+  val linkProbability: Double = 0.3,
+  val numEntities: Int = 1000000,
+  val entityExponent: Double = 1.0,
+  val maxTypesPerEntity: Int = 3,
+  val typeExponent: Double = 1.0,
+  val uniqueKeys: Boolean = true) {
+
+  import SyntheticCorpusGenerator.{mix, pseudoWord}
+
+  require(!seeds.isEmpty, "no seed groups")
+
+  private val groupSizes = new ZipfDistribution(maxGroupSize, groupSizeExponent)
+  private val entities = new ZipfDistribution(numEntities, entityExponent)
+
+  private val entityNames = seeds.flatMap(group => Seq(group.arg1.entity, group.arg2.entity).flatten.map(_.name)).distinct match {
+    case Seq() => seeds.map(_.arg1.norm)
+    case names => names
+  }
+  private val seedTypes = seeds.flatMap(group => group.arg1.types ++ group.arg2.types).distinct
+  private val types = if (seedTypes.isEmpty) None else Some(new ZipfDistribution(seedTypes.size, typeExponent))
+
+  // weighted by how often each corpus occurs in the seeds
+  private val corpora = seeds.flatMap(_.instances.map(_.corpus))
+
+  private val seedInstances = seeds.map(_.instances.toIndexedSeq)
+
+  def group(i: Long): REG = {
+    val random = new Random(mix(seed, i))
+    val seedIndex = random.nextInt(seeds.size)
+    val seedGroup = seeds(seedIndex)
+
+    val size = groupSizes.sample(random)
+    val instances = (0 until size).map { j =>
+      val seedInstance = seedInstances(seedIndex)(random.nextInt(seedInstances(seedIndex).size))
+      val extraction = seedInstance.extraction.copy(sourceUrl = seedInstance.extraction.sourceUrl + "#" + i + "." + j)
+      Instance(extraction, corpora(random.nextInt(corpora.size)), random.nextInt(1000) / 1000.0)
+    }.toSet
+
+    val arg2Norm = if (uniqueKeys) seedGroup.arg2.norm + " " + pseudoWord(i) else seedGroup.arg2.norm
+    new ExtractionGroup(
+      argument(seedGroup.arg1.norm, random),
+      ExtractionRelation(seedGroup.rel.norm),
+      argument(arg2Norm, random),
+      instances)
+  }
+
+  private def argument(norm: String, random: Random): ExtractionArgument = {
+    if (random.nextDouble() < linkProbability) {
+      val entityId = entities.sample(random)
+      ExtractionArgument(norm, Some(entity(entityId)), entityTypes(entityId))
+    } else {
+      ExtractionArgument(norm, None, Set.empty)
+    }
+  }
+
+  private def entity(id: Int): FreeBaseEntity = {
+    val random = new Random(mix(seed, -id))
+    // real fbids are base 32 with a leading 0, these can't collide with them
+    FreeBaseEntity(entityNames(id % entityNames.size), "0syn" + Integer.toString(id, 36), random.nextInt(10000) / 1000.0, random.nextInt(100))
+  }
+
+  private def entityTypes(id: Int): Set[FreeBaseType] = types match {
+    case Some(typeDistribution) => {
+      val random = new Random(mix(seed ^ 0x5bd1e995L, id))
+      (0 until 1 + random.nextInt(maxTypesPerEntity)).map(_ => seedTypes(typeDistribution.sample(random) - 1)).toSet
+    }
+    case None => Set.empty
+  }
+
+  /** Groups start until start + count, serialized one per line. */
+  def lines(start: Long, count: Long): Iterator[String] = {
+    Iterator.iterate(start)(_ + 1).takeWhile(_ < start + count).map(i => ReVerbExtractionGroup.serializeToString(group(i)))
+  }
+}
+
+object SyntheticCorpusGenerator {
+
+  /** test-groups.txt, plus a singleton group for each extraction in TestReVerbExtractions.txt. */
+  lazy val fixtureSeeds: IndexedSeq[REG] = {
+    val groups = using(Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8")) { source =>
+      source.getLines.flatMap(ReVerbExtractionGroup.deserializeFromString).toIndexedSeq
+    }
+    val extractions = using(Source.fromInputStream(Resources.reverbExtractionsUrl.openStream(), "UTF-8")) { source =>
+      source.getLines.flatMap(ReVerbExtraction.deserializeFromString).toIndexedSeq
+    }
+    groups ++ extractions.map { extraction =>
+      val (arg1, rel, arg2) = extraction.indexGroupingKey
+      new ExtractionGroup(ExtractionArgument(arg1, None, Set.empty), ExtractionRelation(rel), ExtractionArgument(arg2, None, Set.empty),
+        Set(Instance(extraction, "seed", 0.5)))
+    }
+  }
+
+  // a well-mixed seed for group i (splitmix64), so neighboring groups aren't correlated
+  private def mix(seed: Long, i: Long): Long = {
+    var z = seed + (i + 1) * 0x9E3779B97F4A7C15L
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL
+    z ^ (z >>> 31)
+  }
+
+  // a short lowercase word, different for every i
+  private def pseudoWord(i: Long): String = "z" + java.lang.Long.toString(i, 26).map(ch => if (ch.isDigit) ('a' + (ch - '0')).toChar else (ch + 10).toChar)
+
+  def main(args: Array[String]): Unit = {
+
+    var count = 1000000L
+    var start = 0L
+    var seed = 0L
+    var groupSizeExponent = 2.0
+    var maxGroupSize = 10000
+    var linkProbability = 0.3
+    var numEntities = 1000000
+    var entityExponent = 1.0
+    var maxTypes = 3
+    var uniqueKeys = true
+    var outputPath: Option[String] = None
+
+    val parser = new OptionParser() {
+      opt("groups", "Number of groups to write, default=1000000", { str => count = str.toLong })
+      opt("start", "Number of the first group, for generating a corpus in parts, default=0", { str => start = str.toLong })
+      opt("seed", "Random seed, default=0", { str => seed = str.toLong })
+      opt("sizeExponent", "Zipf exponent of the group size distribution, default=2.0", { str => groupSizeExponent = str.toDouble })
+      opt("maxGroupSize", "Largest group size, default=10000", { str => maxGroupSize = str.toInt })
+      opt("linkProbability", "Probability that an argument is linked to an entity, default=0.3", { str => linkProbability = str.toDouble })
+      opt("entities", "Number of distinct entities, default=1000000", { str => numEntities = str.toInt })
+      opt("entityExponent", "Zipf exponent of the entity distribution, default=1.0", { str => entityExponent = str.toDouble })
+      opt("maxTypes", "Most types per linked entity, default=3", { str => maxTypes = str.toInt })
+      opt("repeatKeys", "Don't make every group's key unique; groups may then share seed norms", { uniqueKeys = false })
+      opt("output", "File to write, default is standard output (e.g. to pipe into ReVerbParallelIndexBuilder)", { str => outputPath = Some(str) })
+    }
+
+    if (!parser.parse(args)) return
+
+    val generator = new SyntheticCorpusGenerator(fixtureSeeds, seed, groupSizeExponent, maxGroupSize, linkProbability, numEntities, entityExponent, maxTypes, 1.0, uniqueKeys)
+    val output = outputPath.map(new FileOutputStream(_)).getOrElse(System.out)
+    val writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"), 1 << 16)
+    var written = 0L
+    try {
+      generator.lines(start, count).foreach { line =>
+        writer.write(line)
+        writer.write('\n')
+        written += 1
+        if (written % 1000000 == 0) System.err.println("Wrote %d groups".format(written))
+      }
+    } finally {
+      writer.close()
+    }
+    System.err.println("Wrote %d groups, starting from group %d".format(written, start))
+  }
+}
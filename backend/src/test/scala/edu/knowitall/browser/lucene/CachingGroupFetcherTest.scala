@@ -0,0 +1,81 @@
+package edu.knowitall.browser.lucene
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class CachingGroupFetcherTest extends FlatSpec {
+
+  // counts calls and returns the result type we ask for
+  class CountingFetcher(var result: ResultSet) extends GroupFetcher {
+    var calls = 0
+    def getGroups(querySpec: QuerySpec): ResultSet = { calls += 1; result }
+  }
+
+  val query = QuerySpec(Some("Einstein"), Some("discovered"), None, None, None)
+
+  "the cache" should "answer repeated queries without calling the underlying fetcher" in {
+    val fetcher = new CountingFetcher(Success.empty)
+    val caching = new CachingGroupFetcher(fetcher, () => Seq(1L), CachingGroupFetcher.defaultMaxBytes)
+    caching.getGroups(query)
+    caching.getGroups(query.copy(arg1 = Some("  Einstein ")))
+    assert(fetcher.calls === 1)
+    assert(caching.stats.hits === 1)
+    assert(caching.stats.misses === 1)
+  }
+
+  it should "not cache Limited or Timeout results by default" in {
+    val fetcher = new CountingFetcher(Timeout.empty)
+    val caching = new CachingGroupFetcher(fetcher, () => Seq(1L), CachingGroupFetcher.defaultMaxBytes)
+    caching.getGroups(query)
+    caching.getGroups(query)
+    assert(fetcher.calls === 2)
+  }
+
+  it should "invalidate when the reader generation changes" in {
+    var generation = 1L
+    val fetcher = new CountingFetcher(Success.empty)
+    val caching = new CachingGroupFetcher(fetcher, () => Seq(generation), CachingGroupFetcher.defaultMaxBytes)
+    caching.getGroups(query)
+    generation = 2L
+    caching.getGroups(query)
+    caching.getGroups(query)
+    assert(fetcher.calls === 2)
+    assert(caching.stats.invalidations === 1)
+  }
+
+  it should "share one underlying call between concurrent identical misses" in {
+    for (result <- Seq(Success.empty, Timeout.empty)) {
+      val started = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+      val calls = new AtomicInteger(0)
+      val fetcher = new GroupFetcher {
+        def getGroups(querySpec: QuerySpec): ResultSet = {
+          calls.incrementAndGet()
+          started.countDown()
+          release.await()
+          result
+        }
+      }
+      val caching = new CachingGroupFetcher(fetcher, () => Seq(1L), CachingGroupFetcher.defaultMaxBytes)
+      val executor = Executors.newFixedThreadPool(4)
+      val futures = (1 to 4).map(_ => executor.submit(new Callable[ResultSet] {
+        def call() = caching.getGroups(query)
+      }))
+      started.await()
+      // give the other queries time to reach the cache while the first load is blocked
+      Thread.sleep(200)
+      release.countDown()
+      assert(futures.forall(_.get(10, TimeUnit.SECONDS) == result))
+      executor.shutdown()
+      assert(calls.get === 1)
+    }
+  }
+}
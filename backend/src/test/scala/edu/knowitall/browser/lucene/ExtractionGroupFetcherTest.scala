@@ -1,5 +1,7 @@
 package edu.knowitall.browser.lucene
 
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.scalatest.Suite
@@ -14,4 +16,21 @@ class ExtractionGroupFetcherTest extends Suite {
     val stoplist = ExtractionGroupFetcher.entityStoplist
     System.err.println("Loaded entity stop-list has size %d".format(stoplist.size))
   }
-}
\ No newline at end of file
+
+  @Test
+  def testNoTimeLeftIsATimeout: Unit = {
+
+    val ramDir = new RAMDirectory()
+    new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)).close()
+    val fetcher = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 1000, 10000, 10000L, Set.empty[String])
+    val query = QuerySpec(None, Some("be"), None, None, None, stem=false)
+    try {
+      // a query that never ran must not look like a complete, cacheable empty result
+      assert(fetcher.getGroups(query, 0).isInstanceOf[Timeout])
+      assert(fetcher.getGroups(query, -5).isInstanceOf[Timeout])
+      assert(fetcher.getGroups(query, 1000).isInstanceOf[Success])
+    } finally {
+      fetcher.close()
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtractionGroup.REG
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class FrontendRegrouperTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(300).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val ramDir = new RAMDirectory()
+  val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+  groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+  writer.close()
+
+  // (lazily read group, fully read group) for every doc
+  val readGroups = {
+    val searcherManager = ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false)
+    val searcher = searcherManager.acquire
+    try {
+      (0 until searcher.maxDoc).map { docNum =>
+        (ReVerbDocumentConverter.fromDocumentLazily(searcher.doc(docNum, ReVerbDocumentConverter.lazyInstancesSelector)),
+          ReVerbDocumentConverter.fromDocument(searcher.doc(docNum)))
+      }
+    } finally {
+      searcherManager.release(searcher)
+      searcherManager.close()
+    }
+  }
+
+  def summary(groups: Iterable[REG]) = groups.map(g => (g.arg1.norm, g.rel.norm, g.arg2.norm, g.arg1.entity, g.arg2.entity, g.instances.size)).toSet
+
+  "stored grouping keys" should "equal the keys computed from instances" in {
+    readGroups.foreach { case (lazyGroup, fullGroup) =>
+      assert(lazyGroup.instances.asInstanceOf[LazyInstanceSet].frontendKey === Some(GroupingKeys.of(fullGroup).frontendKey))
+      assert(GroupingKeys.forGroup(lazyGroup) === GroupingKeys.of(fullGroup))
+    }
+  }
+
+  it should "follow entity links dropped after indexing" in {
+    val (lazyGroup, _) = readGroups.find(_._1.arg1.entity.isDefined).get
+    val unlinked = lazyGroup.removeArg1Entity
+    assert(GroupingKeys.forGroup(unlinked).entityKey._1 === GroupingKeys.forGroup(unlinked).frontendKey._1)
+  }
+
+  "the frontend regrouper" should "regroup without decoding instances" in {
+    val lazyGroups = readGroups.map(_._1)
+    val regrouped = FrontendRegrouper.regroup(lazyGroups).toList
+    assert(lazyGroups.forall(group => !group.instances.asInstanceOf[LazyInstanceSet].isDecoded))
+    assert(regrouped.size <= lazyGroups.size)
+    assert(regrouped.map(_.instances.size).sum === lazyGroups.map(_.instances.size).sum)
+  }
+
+  it should "regroup stored and computed keys the same way" in {
+    assert(summary(FrontendRegrouper.regroup(readGroups.map(_._1)).toList) === summary(FrontendRegrouper.regroup(readGroups.map(_._2)).toList))
+  }
+
+  it should "merge as many instances as indexGroupingToFrontendGrouping" in {
+    val fullGroups = readGroups.map(_._2)
+    val expected = ReVerbExtractionGroup.indexGroupingToFrontendGrouping(fullGroups)
+    val regrouped = FrontendRegrouper.regroup(fullGroups).toList
+    // same groups, by key, entities and instance count
+    assert(regrouped.size === expected.size)
+    assert(summary(regrouped) === summary(expected))
+    assert(regrouped.map(_.instances.size).sum === expected.map(_.instances.size).sum)
+    assert(regrouped.map(_.instances).flatten.toSet === expected.flatMap(_.instances).toSet)
+  }
+}
@@ -0,0 +1,59 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class GroupsBatchTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(1500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val numShards = 2
+
+  val ramDirs = Seq.fill(numShards)(new RAMDirectory())
+  val writers = ramDirs.map(ramDir => new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+  groups.zipWithIndex.foreach { case (group, i) => writers(i % numShards).addDocument(ReVerbDocumentConverter.toDocument(group)) }
+  writers.foreach(_.close())
+
+  def newFetcher(ramDir: RAMDirectory) = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 1000000, 100000, Set.empty[String])
+
+  // overlapping queries, including an exact duplicate
+  val relTerms = groups.flatMap(_.rel.norm.split(" ").headOption).distinct.take(5)
+  val queries = relTerms.map(rel => QuerySpec(None, Some(rel), None, None, None, stem=false)) ++
+    Seq(QuerySpec(None, Some(relTerms.head), None, None, None, stem=false))
+
+  "a batch" should "return the same results as one call per query" in {
+    val fetcher = newFetcher(ramDirs(0))
+    val batch = fetcher.getGroupsBatch(queries)
+    assert(batch.size === queries.size)
+    for ((query, resultSet) <- queries.zip(batch)) {
+      assert(resultSet === fetcher.getGroups(query))
+    }
+  }
+
+  it should "return the same results across shards" in {
+    val parFetcher = new ParallelExtractionGroupFetcher(ramDirs.map(newFetcher))
+    val batch = parFetcher.getGroupsBatch(queries)
+    for ((query, resultSet) <- queries.zip(batch)) {
+      assert(resultSet.results.toSet === parFetcher.getGroups(query).results.toSet)
+    }
+    parFetcher.close()
+  }
+
+  "a cached batch" should "only pass misses to the underlying fetcher" in {
+    val fetcher = newFetcher(ramDirs(0))
+    val caching = CachingGroupFetcher(fetcher, CachingGroupFetcher.defaultMaxBytes)
+    caching.getGroups(queries.head)
+    val batch = caching.getGroupsBatch(queries)
+    assert(batch.head === caching.getGroups(queries.head))
+    assert(caching.stats.hits >= 2)
+  }
+}
@@ -0,0 +1,55 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.FSDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class IndexDirectoryTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val indexDir = {
+    val file = File.createTempFile("index-directory-test", "")
+    file.delete()
+    file.mkdir()
+    file.deleteOnExit()
+    val writer = new IndexWriter(FSDirectory.open(file), ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+    // deleted in reverse order of registration, so the files go before the directory
+    file.listFiles.foreach(_.deleteOnExit())
+    file
+  }
+
+  "every directory type" should "open the same index" in {
+    for (dirType <- IndexDirectory.types) {
+      val reader = IndexReader.open(IndexDirectory.open(indexDir.getPath, dirType))
+      assert(reader.numDocs === groups.size)
+      reader.close()
+    }
+  }
+
+  "directory types" should "be looked up by name" in {
+    assert(IndexDirectory.typeNamed("MMap") === IndexDirectory.MMap)
+    intercept[IllegalArgumentException] { IndexDirectory.typeNamed("ram") }
+  }
+
+  "preloading" should "read only the selected files" in {
+    val selected = indexDir.listFiles.filter(file => IndexDirectory.defaultPreloadExtensions.contains(file.getName.split('.').last))
+    // whether or not the fixture's segments are compound, some of their files are preloaded
+    assert(selected.nonEmpty)
+    assert(IndexDirectory.preload(indexDir.getPath) === selected.map(_.length).sum)
+    assert(IndexDirectory.preload(indexDir.getPath, Set.empty) === 0)
+  }
+}
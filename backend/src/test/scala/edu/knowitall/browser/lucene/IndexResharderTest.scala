@@ -0,0 +1,98 @@
+package edu.knowitall.browser.lucene
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+// hashed placement that fails after placing failAfter documents, to interrupt a reshard
+class FailingPlacement(failAfter: Int) extends ShardPlacement {
+  private val placed = new AtomicInteger(0)
+  def shard(key: ShardPlacement.Key, numShards: Int): Int = {
+    if (placed.incrementAndGet() > failAfter) throw new IllegalStateException("interrupted")
+    ShardPlacement.Hashed.shard(key, numShards)
+  }
+}
+
+@RunWith(classOf[JUnitRunner])
+class IndexResharderTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(1500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  // three sources, with some groups deleted, as after updates
+  val sources = {
+    val dirs = Seq.fill(3)(new RAMDirectory())
+    val writers = dirs.map(new IndexWriter(_, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+    groups.zipWithIndex.foreach { case (group, i) => writers(i % 3).addDocument(ReVerbDocumentConverter.toDocument(group)) }
+    groups.take(30).foreach(group => writers.foreach(_.deleteDocuments(ShardPlacement.keyTerm(ShardPlacement.key(group)))))
+    writers.foreach(_.close())
+    dirs
+  }
+
+  // the keys and sizes of the live docs in each of dirs
+  def contents(dirs: Seq[RAMDirectory]): Seq[Seq[(ShardPlacement.Key, Int)]] = dirs.map { dir =>
+    val reader = IndexReader.open(dir)
+    try {
+      (0 until reader.maxDoc).filter(!reader.isDeleted(_)).map(reader.document(_)).map(doc => (ShardPlacement.key(doc), ReVerbDocumentConverter.storedSize(doc)))
+    } finally {
+      reader.close()
+    }
+  }
+
+  def numSegments(dir: RAMDirectory): Int = {
+    val reader = IndexReader.open(dir)
+    try reader.getSequentialSubReaders.length finally reader.close()
+  }
+
+  val live = contents(sources).flatten.sorted
+
+  "the resharder" should "copy every live document to its hashed target, and merge the targets" in {
+    val targets = Seq.fill(2)(new RAMDirectory())
+    new IndexResharder(sources, targets, IndexResharder.ByPlacement(ShardPlacement.Hashed), threads = 3).run()
+    val copied = contents(targets)
+    assert(copied.flatten.sorted === live)
+    copied.zipWithIndex.foreach { case (docs, t) => assert(docs.forall(doc => ShardPlacement.Hashed.shard(doc._1, 2) === t)) }
+    targets.foreach(target => assert(numSegments(target) === 1))
+  }
+
+  it should "balance targets by documents and instances" in {
+    val targets = Seq.fill(4)(new RAMDirectory())
+    new IndexResharder(sources, targets, IndexResharder.Balanced, threads = 2, maxSegments = 2).run()
+    val copied = contents(targets)
+    assert(copied.flatten.sorted === live)
+    val docCounts = copied.map(_.size)
+    val instanceCounts = copied.map(_.map(_._2).sum)
+    assert(docCounts.max - docCounts.min <= live.size / 10)
+    // a target can be ahead by at most one group
+    assert(instanceCounts.max - instanceCounts.min <= math.max(live.map(_._2).sum / 10, live.map(_._2).max))
+    targets.foreach(target => assert(numSegments(target) <= 2))
+  }
+
+  it should "resume an interrupted reshard without losing or repeating documents" in {
+    val targets = Seq.fill(2)(new RAMDirectory())
+    intercept[ExecutionException] {
+      new IndexResharder(sources, targets, IndexResharder.ByPlacement(new FailingPlacement(700)), threads = 1, docsPerCommit = 100).run()
+    }
+    val partial = contents(targets).flatten
+    assert(partial.size > 0 && partial.size < live.size)
+
+    new IndexResharder(sources, targets, IndexResharder.ByPlacement(new FailingPlacement(Int.MaxValue)), threads = 2, docsPerCommit = 100).run()
+    assert(contents(targets).flatten.sorted === live)
+  }
+
+  it should "refuse a target that isn't empty" in {
+    intercept[IllegalArgumentException] {
+      new IndexResharder(sources, Seq(sources.head), IndexResharder.Balanced).run()
+    }
+  }
+}
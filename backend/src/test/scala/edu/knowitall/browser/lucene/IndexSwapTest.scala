@@ -0,0 +1,52 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class IndexSwapTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(1000).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  // the first half of the groups in one index, the rest in another
+  val (oldGroups, newGroups) = groups.splitAt(groups.size / 2)
+
+  def buildIndex(groups: Seq[ReVerbExtractionGroup.REG]) = {
+    val ramDir = new RAMDirectory()
+    val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+    ramDir
+  }
+
+  val oldDir = buildIndex(oldGroups)
+  val newDir = buildIndex(newGroups)
+
+  "swapping the index" should "serve the new index while in-flight searchers finish on the old one" in {
+
+    val fetcher = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(oldDir, doWarmups=false, refreshIntervalMillis=0), 100000, 1000000, 100000, Set.empty[String])
+
+    val oldReader = fetcher.withSearcher { searcher =>
+      fetcher.swapIndex(newDir, doWarmups=false, refreshIntervalMillis=0)
+      // still usable after the swap
+      assert(searcher.getIndexReader.numDocs === oldGroups.size)
+      assert(searcher.doc(0) != null)
+      searcher.getIndexReader
+    }
+    // the last reference was released above
+    assert(oldReader.getRefCount === 0)
+
+    fetcher.withSearcher { searcher =>
+      assert(searcher.getIndexReader.numDocs === newGroups.size)
+    }
+    fetcher.close()
+  }
+}
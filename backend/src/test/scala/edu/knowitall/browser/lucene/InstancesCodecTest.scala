@@ -0,0 +1,68 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class InstancesCodecTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  "instances" should "round-trip through the binary codec" in {
+    groups.foreach { group =>
+      assert(InstancesCodec.decode(InstancesCodec.encode(group.instances)).toSet === group.instances)
+    }
+  }
+
+  it should "decode from legacy Java-serialized blobs" in {
+    groups.foreach { group =>
+      val legacy = InstancesCodec.encodeLegacy(group.instances)
+      assert(InstancesCodec.isLegacy(legacy))
+      assert(InstancesCodec.decode(legacy).toSet === group.instances)
+    }
+  }
+
+  it should "encode smaller than the legacy format" in {
+    val legacyBytes = groups.map(group => InstancesCodec.encodeLegacy(group.instances).length).sum
+    val currentBytes = groups.map(group => InstancesCodec.encode(group.instances).length).sum
+    assert(currentBytes < legacyBytes)
+  }
+
+  it should "be stored most confident first, so the top few can be decoded alone" in {
+    groups.foreach { group =>
+      val bytes = InstancesCodec.encode(group.instances, chunkSize = 4)
+      val mostConfident = InstancesCodec.decode(bytes).map(_.confidence)
+      assert(mostConfident === group.instances.toSeq.map(_.confidence).sortBy(-_))
+      val top = InstancesCodec.decodeFirst(bytes, 3)
+      assert(top.size === math.min(3, group.instances.size))
+      assert(top.map(_.confidence) === mostConfident.take(3))
+    }
+  }
+
+  it should "decode chunk by chunk" in {
+    groups.foreach { group =>
+      val bytes = InstancesCodec.encode(group.instances, chunkSize = 4)
+      val numChunks = InstancesCodec.numChunks(bytes)
+      assert(numChunks === (group.instances.size + 3) / 4)
+      assert((0 until numChunks).flatMap(InstancesCodec.decodeChunk(bytes, _)) === InstancesCodec.decode(bytes))
+    }
+  }
+
+  it should "decode the most confident from legacy blobs too" in {
+    val group = groups.maxBy(_.instances.size)
+    val top = InstancesCodec.decodeFirst(InstancesCodec.encodeLegacy(group.instances), 2)
+    assert(top.map(_.confidence) === group.instances.toSeq.map(_.confidence).sortBy(-_).take(2))
+  }
+
+  "groups" should "round-trip through the document converter" in {
+    groups.foreach { group =>
+      assert(ReVerbDocumentConverter.fromDocument(ReVerbDocumentConverter.toDocument(group)) === group)
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.InstanceDeduplicator
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class LazyInstanceSetTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(200).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  "a lazy instance set" should "report its size without decoding" in {
+    groups.foreach { group =>
+      val lazySet = new LazyInstanceSet(InstancesCodec.encode(group.instances), group.instances.size)
+      assert(lazySet.size === group.instances.size)
+      assert(!lazySet.isDecoded)
+      assert(lazySet === group.instances)
+      assert(lazySet.isDecoded)
+    }
+  }
+
+  "a partial view" should "hold only the most confident instances but report the full size" in {
+    val group = groups.maxBy(_.instances.size)
+    val lazySet = new LazyInstanceSet(InstancesCodec.encode(group.instances), group.instances.size)
+    val partial = lazySet.truncated(2)
+    assert(partial.isPartial)
+    assert(partial.size === group.instances.size)
+    assert(partial.numRead === 2)
+    assert(partial.toArray.length === 2)
+    assert(partial.toArray.forall(_ != null))
+    assert(partial.toList.map(_.confidence).sortBy(-_) === group.instances.toSeq.map(_.confidence).sortBy(-_).take(2))
+    assert(partial != lazySet)
+    assert(lazySet != partial)
+    assert(!lazySet.isDecoded)
+  }
+
+  "lazily read groups" should "equal fully read groups" in {
+    val ramDir = new RAMDirectory()
+    val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+
+    val searcherManager = ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false)
+    val searcher = searcherManager.acquire
+    try {
+      for (docNum <- 0 until searcher.maxDoc) {
+        val lazyDoc = searcher.doc(docNum, ReVerbDocumentConverter.lazyInstancesSelector)
+        val lazyGroup = ReVerbDocumentConverter.fromDocumentLazily(lazyDoc)
+        val fullGroup = ReVerbDocumentConverter.fromDocument(searcher.doc(docNum))
+        assert(lazyGroup.instances.size === fullGroup.instances.size)
+        assert(lazyGroup === fullGroup)
+      }
+    } finally {
+      searcherManager.release(searcher)
+      searcherManager.close()
+    }
+  }
+
+  "a fetcher" should "read just the top instances of a group that doesn't fit the instances budget" in {
+    val ramDir = new RAMDirectory()
+    val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+
+    val group = groups.maxBy(_.instances.size)
+    assert(group.instances.size > 2)
+    val fetcher = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 2, 100000, Set.empty[String])
+    try {
+      val resultSet = fetcher.getGroups(QuerySpec.identityQuery(group))
+      assert(resultSet.isInstanceOf[Limited])
+      val partial = resultSet.results.find(result => result.arg1.norm == group.arg1.norm && result.rel.norm == group.rel.norm && result.arg2.norm == group.arg2.norm)
+      assert(partial.isDefined)
+      assert(partial.get.instances.size === group.instances.size)
+      assert(partial.get.instances.iterator.size === 2)
+      assert(LazyInstanceSet.numRead(partial.get.instances) === 2)
+      assert(resultSet.numInstancesRead <= 2)
+      assert(resultSet.numInstances >= group.instances.size)
+
+      // a partial group deduplicates like any other
+      val deduped = InstanceDeduplicator.deduplicate(partial.get)
+      val nearDeduped = InstanceDeduplicator.nearDeduplicate(partial.get)
+      assert(!deduped.instances.isEmpty && deduped.instances.subsetOf(partial.get.instances))
+      assert(!nearDeduped.instances.isEmpty && nearDeduped.instances.subsetOf(partial.get.instances))
+    } finally {
+      fetcher.close()
+    }
+  }
+}
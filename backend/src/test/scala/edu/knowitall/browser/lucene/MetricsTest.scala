@@ -0,0 +1,88 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class MetricsTest extends FlatSpec {
+
+  "a latency histogram" should "bound percentiles to within a bucket" in {
+    val histogram = new LatencyHistogram()
+    (1 to 1000).foreach(i => histogram.record(i * 1000L))
+    val snapshot = histogram.snapshot
+    assert(snapshot.count === 1000)
+    assert(snapshot.maxNanos === 1000000L)
+    assert(snapshot.p50Nanos >= 500000L && snapshot.p50Nanos < 500000L * 5 / 4)
+    assert(snapshot.p99Nanos >= 990000L && snapshot.p99Nanos <= 1000000L)
+    assert(new LatencyHistogram().snapshot.p99Nanos === 0)
+  }
+
+  it should "put every value in a bucket that contains it" in {
+    for (nanos <- Seq(0L, 1L, 3L, 4L, 7L, 8L, 1000L, 123456789L, Long.MaxValue / 4)) {
+      val b = LatencyHistogram.bucket(nanos)
+      assert(LatencyHistogram.upperBound(b) >= nanos)
+      assert(b == 0 || LatencyHistogram.upperBound(b - 1) < nanos)
+    }
+  }
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val ramDirs = Seq.fill(2)(new RAMDirectory())
+  val writers = ramDirs.map(ramDir => new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+  groups.zipWithIndex.foreach { case (group, i) => writers(i % 2).addDocument(ReVerbDocumentConverter.toDocument(group)) }
+  writers.foreach(_.close())
+
+  def newFetcher(ramDir: RAMDirectory, metricsScope: String = ExtractionGroupFetcher.defaultMetricsScope) =
+    new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 1000000, 100000, Set.empty[String],
+      ExtractionGroupFetcher.defaultRefreshIntervalMillis, metricsScope)
+
+  val query = QuerySpec(None, Some(groups.head.rel.norm), None, None, None, stem=false)
+
+  "query results" should "carry a timing breakdown" in {
+    val fetcher = newFetcher(ramDirs(0))
+    val resultSet = fetcher.getGroups(query)
+    assert(resultSet.numGroups > 0)
+    for (stage <- Seq(QueryTimings.Search, QueryTimings.StoredFields, QueryTimings.Decode, QueryTimings.Total)) {
+      assert(resultSet.timings.stageNanos.contains(stage), stage)
+    }
+    assert(resultSet.timings(QueryTimings.Total) >= resultSet.timings(QueryTimings.Search))
+    assert(MetricsRegistry.default.histogram("shard.search").snapshot.count > 0)
+    fetcher.close()
+  }
+
+  it should "be broken down by shard across shards" in {
+    val parFetcher = new ParallelExtractionGroupFetcher(ramDirs.zipWithIndex.map { case (ramDir, i) => newFetcher(ramDir, ParallelExtractionGroupFetcher.shardScope(i)) })
+    val resultSet = parFetcher.getGroups(query)
+    assert(resultSet.timings.stageNanos.contains("shard0.search"))
+    assert(resultSet.timings.stageNanos.contains("shard1.search"))
+    assert(resultSet.timings.stageNanos.contains(QueryTimings.Total))
+    val snapshot = MetricsRegistry.default.snapshot
+    assert(snapshot.histograms.contains("shard1.search"))
+    assert(snapshot.counters.get("query.success").exists(_ > 0))
+    parFetcher.close()
+  }
+
+  "the file reporter" should "append a line per metric" in {
+    val registry = new MetricsRegistry()
+    registry.record("query.total", 1000000L)
+    registry.increment("query.success")
+    val file = File.createTempFile("metrics", ".tsv")
+    file.deleteOnExit()
+    val reporter = new MetricsReporter.FileReporter(file)
+    reporter.report(registry.snapshot)
+    reporter.report(registry.snapshot)
+    val lines = Source.fromFile(file, "UTF-8").getLines.toList
+    assert(lines.size === 4)
+    assert(lines.head.split("\t")(1) === "query.total")
+  }
+}
@@ -0,0 +1,105 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class PageCursorTest extends FlatSpec {
+
+  type REG = ExtractionGroup[ReVerbExtraction]
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(1500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val numShards = 3
+
+  val ramDirs = Seq.fill(numShards)(new RAMDirectory())
+  val writers = ramDirs.map(ramDir => new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+  groups.zipWithIndex.foreach { case (group, i) => writers(i % numShards).addDocument(ReVerbDocumentConverter.toDocument(group)) }
+  writers.foreach(_.close())
+
+  def newFetcher(ramDir: RAMDirectory) = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 1000000, 100000, Set.empty[String])
+
+  val query = QuerySpec(None, Some("be"), None, None, None, stem=false)
+
+  def pageAll(getPage: PageCursor => (ResultSet, PageCursor), maxPages: Int): List[REG] = {
+    var cursor = PageCursor.start
+    var all = List.empty[REG]
+    var pages = 0
+    while (!cursor.exhausted && pages < maxPages) {
+      val (page, next) = getPage(cursor)
+      all = all ++ page.results
+      cursor = next
+      pages += 1
+    }
+    assert(cursor.exhausted)
+    all
+  }
+
+  "cursors" should "round-trip through their encoding" in {
+    val cursor = PageCursor(IndexedSeq(ShardPosition(12L, 1, 0.75f, 42), ShardPosition.initial, ShardPosition.exhausted(3L)))
+    val decoded = PageCursor.decode(cursor.encode)
+    assert(decoded.shards.map(_.bucket) === cursor.shards.map(_.bucket))
+    assert(decoded.shards.map(_.afterDoc) === cursor.shards.map(_.afterDoc))
+    assert(decoded.shards(0) === cursor.shards(0))
+  }
+
+  "paging a single shard" should "return the same groups in the same order as one big page" in {
+    val fetcher = newFetcher(ramDirs(0))
+    val (onePage, _) = fetcher.getGroupsPage(query, PageCursor.start, 100000)
+    val paged = pageAll(cursor => fetcher.getGroupsPage(query, cursor, 7), 10000)
+    assert(!paged.isEmpty)
+    assert(paged === onePage.results)
+  }
+
+  "paging across shards" should "return every matching group exactly once" in {
+    val parFetcher = new ParallelExtractionGroupFetcher(ramDirs.map(newFetcher))
+    val (onePage, _) = parFetcher.getGroupsPage(query, PageCursor.start, 100000)
+    val paged = pageAll(cursor => parFetcher.getGroupsPage(query, cursor, 11), 10000)
+    assert(paged.size === onePage.results.size)
+    assert(paged.toSet === onePage.results.toSet)
+    parFetcher.close()
+  }
+
+  it should "keep every group, in order, when a shard's pages are Limited" in {
+    val parFetcher = new ParallelExtractionGroupFetcher(ramDirs.map(newFetcher))
+    val (onePage, _) = parFetcher.getGroupsPage(query, PageCursor.start, 100000)
+    assert(onePage.isInstanceOf[Success])
+    parFetcher.close()
+    // the second shard may read just one instance per page, so every one of its pages is Limited
+    val limitedFetcher = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDirs(1), doWarmups=false), 100000, 1, 100000, Set.empty[String])
+    val limitedParFetcher = new ParallelExtractionGroupFetcher(IndexedSeq(newFetcher(ramDirs(0)), limitedFetcher, newFetcher(ramDirs(2))))
+    val (firstPage, _) = limitedParFetcher.getGroupsPage(query, PageCursor.start, 11)
+    assert(firstPage.isInstanceOf[Limited])
+    val paged = pageAll(cursor => limitedParFetcher.getGroupsPage(query, cursor, 11), 10000)
+    // the limited shard's groups are truncated, so compare keys
+    assert(paged.map(group => ShardPlacement.key(group)) === onePage.results.map(group => ShardPlacement.key(group)))
+    limitedParFetcher.close()
+  }
+
+  it should "time out a shard that is rejected or misses the deadline, keeping its position" in {
+    // the first shard sleeps past the deadline, so the second waits in the queue and the third is rejected
+    def slowFetcher(ramDir: RAMDirectory, sleepMillis: Long) = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 1000000, 500, Set.empty[String]) {
+      override private[lucene] def getShardPage(querySpec: QuerySpec, start: ShardPosition, pageSize: Int, timeLimitMillis: Long): ShardPage = {
+        Thread.sleep(sleepMillis)
+        super.getShardPage(querySpec, start, pageSize, timeLimitMillis)
+      }
+    }
+    val fetchers = ramDirs.zip(Seq(3000L, 0L, 0L)).map { case (ramDir, sleepMillis) => slowFetcher(ramDir, sleepMillis) }
+    val parFetcher = new ParallelExtractionGroupFetcher(fetchers, 1, 1)
+    val (page, next) = parFetcher.getGroupsPage(query, PageCursor.start, 11)
+    assert(page.isInstanceOf[Timeout])
+    // afterScore is NaN at the start, so compare the rest of the position
+    assert(next.shards.map(pos => (pos.readerVersion, pos.bucket, pos.afterDoc)) === IndexedSeq.fill(numShards)((-1L, 0, -1)))
+    parFetcher.close()
+  }
+}
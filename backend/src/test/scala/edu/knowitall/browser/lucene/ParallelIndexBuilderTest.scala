@@ -0,0 +1,74 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class ParallelIndexBuilderTest extends FlatSpec {
+
+  val lines = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(3000).toList
+
+  val numShards = 3
+
+  def newWriters(dirs: Seq[RAMDirectory]) = dirs.map(dir => new IndexWriter(dir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+
+  // the identity norms of every document in dirs, by shard
+  def shardContents(dirs: Seq[RAMDirectory]): Seq[Seq[String]] = dirs.map { dir =>
+    val reader = IndexReader.open(dir)
+    try {
+      (0 until reader.maxDoc).map(reader.document(_)).map(doc => Seq(doc.get("arg1Norm"), doc.get("relNorm"), doc.get("arg2Norm")).mkString("|")).sorted
+    } finally {
+      reader.close()
+    }
+  }
+
+  def build(dirs: Seq[RAMDirectory], input: Seq[String], resume: Boolean = false): ParallelIndexBuilder = {
+    val builder = new ParallelIndexBuilder(newWriters(dirs), ReVerbIndexBuilder.inputLineConverter(regroup=false), linesPerCommit = 500, numWorkers = 4, resume = resume)
+    builder.indexAll(input.iterator)
+    builder.close()
+    builder
+  }
+
+  val expectedDirs = Seq.fill(numShards)(new RAMDirectory())
+  val expectedBuilder = build(expectedDirs, lines)
+
+  "the parallel index builder" should "index every line, and count them" in {
+    assert(expectedBuilder.linesIndexed === lines.size)
+    assert(shardContents(expectedDirs).map(_.size).sum === expectedBuilder.groupsIndexed)
+    assert(expectedDirs.forall(dir => ParallelIndexBuilder.committedLine(dir) === lines.size))
+  }
+
+  it should "place documents the same way on every run" in {
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    build(dirs, lines)
+    assert(shardContents(dirs) === shardContents(expectedDirs))
+  }
+
+  it should "resume a build where each index's last commit left off" in {
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    // a build that stopped part way, with the indexes having committed different amounts
+    dirs.zipWithIndex.foreach { case (dir, shard) =>
+      val partialDirs = dirs.indices.map(i => if (i == shard) dir else new RAMDirectory())
+      build(partialDirs, lines.take(1000 + 700 * shard))
+    }
+    val resumed = build(dirs, lines, resume = true)
+    assert(resumed.committedLines === Seq(1000L, 1700L, 2400L))
+    assert(resumed.linesIndexed === lines.size - 1000)
+    assert(shardContents(dirs) === shardContents(expectedDirs))
+  }
+
+  it should "fail if converting a line fails" in {
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    val builder = new ParallelIndexBuilder(newWriters(dirs), (line: String) => throw new IllegalStateException("bad line"), linesPerCommit = 500)
+    intercept[RuntimeException] { builder.indexAll(lines.iterator) }
+    builder.close()
+  }
+}
@@ -0,0 +1,149 @@
+package edu.knowitall.browser.lucene
+
+import java.net.HttpURLConnection
+import java.net.URL
+import java.net.URLEncoder
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+import scala.concurrent._
+import scala.concurrent.duration._
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.io.Source
+
+import net.liftweb.json.JsonAST.{JArray, JString}
+import net.liftweb.json.parse
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ExtractionArgument
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ExtractionRelation
+import edu.knowitall.openie.models.Instance
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class QueryServerTest extends FlatSpec {
+
+  val extrs = Source.fromInputStream(Resources.reverbExtractionsUrl.openStream(), "UTF-8").getLines.flatMap(ReVerbExtraction.deserializeFromString).toList
+
+  val groups = extrs.groupBy(_.indexGroupingKey).toList.map { case (key, keyExtrs) =>
+    new ExtractionGroup[ReVerbExtraction](
+      new ExtractionArgument(key._1, None, Set.empty),
+      new ExtractionRelation(key._2),
+      new ExtractionArgument(key._3, None, Set.empty),
+      keyExtrs.map(extr => new Instance(extr, "test", 0.5)).toSet)
+  }
+
+  val ramDir = {
+    val ramDir = new RAMDirectory()
+    val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+    ramDir
+  }
+
+  // a fetcher that holds every query until released
+  class BlockingFetcher extends GroupFetcher {
+    val release = new CountDownLatch(1)
+    def getGroups(querySpec: QuerySpec) = {
+      release.await()
+      Success.empty
+    }
+  }
+
+  // (response code, parsed body)
+  def get(server: QueryServer, path: String) = {
+    val connection = new URL("http://localhost:%d%s".format(server.boundPort, path)).openConnection().asInstanceOf[HttpURLConnection]
+    val code = connection.getResponseCode
+    val stream = if (code == 200) connection.getInputStream else connection.getErrorStream
+    val body = Source.fromInputStream(stream, "UTF-8").mkString
+    connection.disconnect()
+    (code, parse(body))
+  }
+
+  def waitFor(condition: => Boolean) = {
+    val deadline = 10.seconds.fromNow
+    while (!condition && deadline.hasTimeLeft) Thread.sleep(5)
+    assert(condition)
+  }
+
+  "the query server" should "answer queries against an index" in {
+    val fetcher = new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false), 100000, 1000000, 100000, Set.empty[String])
+    val server = new QueryServer(fetcher, 0, 2, 2, 10000)
+    val rel = groups.head.rel.norm
+    val (code, json) = get(server, "/query?stem=false&rel=" + URLEncoder.encode(rel, "UTF-8"))
+    assert(code === 200)
+    assert(json \ "status" === JString("Success"))
+    val JArray(results) = json \ "groups"
+    assert(!results.isEmpty)
+    assert(get(server, "/query")._1 === 400)
+    assert(get(server, "/query?rel=be&timeout=soon")._1 === 400)
+    assert(get(server, "/query?rel=be&timeout=0")._1 === 400)
+    assert(server.completed === 1)
+    assert(server.shutdown(1000))
+    fetcher.close()
+  }
+
+  it should "reject queries once the queue is full" in {
+    val fetcher = new BlockingFetcher()
+    val server = new QueryServer(fetcher, 0, 1, 0, 10000)
+    val first = future(get(server, "/query?rel=be"))
+    waitFor(server.inFlight == 1)
+    val (code, json) = get(server, "/query?rel=be")
+    assert(code === 503)
+    assert(json \ "reason" === JString("queue full"))
+    fetcher.release.countDown()
+    assert(Await.result(first, 10.seconds)._1 === 200)
+    assert(server.rejected === 1)
+    server.shutdown(1000)
+  }
+
+  it should "reject everything past maxInFlight + maxQueued right away when flooded" in {
+    val fetcher = new BlockingFetcher()
+    val server = new QueryServer(fetcher, 0, 1, 1, 10000)
+    val numClients = 12
+    // a thread per client, so every request is sent at once
+    val clientThreads = Executors.newFixedThreadPool(numClients)
+    val clients = ExecutionContext.fromExecutorService(clientThreads)
+    val responses = (1 to numClients).map(_ => future(get(server, "/query?rel=be"))(clients))
+    // everything but the admitted and queued queries is answered without waiting for them
+    waitFor(responses.count(_.isCompleted) == numClients - 2)
+    assert(responses.filter(_.isCompleted).forall(response => Await.result(response, 1.second)._1 == 503))
+    assert(server.rejected === numClients - 2)
+    fetcher.release.countDown()
+    assert(responses.map(response => Await.result(response, 10.seconds)._1).count(_ == 200) === 2)
+    clientThreads.shutdown()
+    server.shutdown(1000)
+  }
+
+  it should "reject queued queries whose deadline passes" in {
+    val fetcher = new BlockingFetcher()
+    val server = new QueryServer(fetcher, 0, 1, 1, 10000)
+    val first = future(get(server, "/query?rel=be"))
+    waitFor(server.inFlight == 1)
+    val (code, _) = get(server, "/query?rel=be&timeout=50")
+    assert(code === 503)
+    fetcher.release.countDown()
+    assert(Await.result(first, 10.seconds)._1 === 200)
+    server.shutdown(1000)
+  }
+
+  it should "finish admitted queries when shutting down" in {
+    val fetcher = new BlockingFetcher()
+    val server = new QueryServer(fetcher, 0, 1, 1, 10000)
+    val first = future(get(server, "/query?rel=be"))
+    waitFor(server.inFlight == 1)
+    val drained = future(server.shutdown(10000))
+    waitFor(!server.isAccepting)
+    assert(get(server, "/query?rel=be")._1 === 503)
+    fetcher.release.countDown()
+    assert(Await.result(first, 10.seconds)._1 === 200)
+    assert(Await.result(drained, 10.seconds))
+  }
+}
@@ -21,4 +21,13 @@ class ResultSetTest extends Suite {
     assert((Success.empty combineWith Timeout.empty).isInstanceOf[Timeout])
     assert((Limited.empty combineWith Timeout.empty).isInstanceOf[Timeout])
   }
+
+  @Test
+  def testCombineAll() = {
+
+    assert(ResultSet.combineAll(Seq(Success.empty, Success.empty)).isInstanceOf[Success])
+    assert(ResultSet.combineAll(Seq(Success.empty, Limited(List.empty, 3))) === Limited(List.empty, 3))
+    assert(ResultSet.combineAll(Seq(Limited(List.empty, 3), Timeout(List.empty, 2), Success.empty)) === Timeout(List.empty, 5))
+    assert(ResultSet.combineAll(Seq.empty).isInstanceOf[Success])
+  }
 }
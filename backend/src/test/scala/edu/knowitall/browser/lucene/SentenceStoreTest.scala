@@ -0,0 +1,160 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+import java.io.RandomAccessFile
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.FSDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class SentenceStoreTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(500).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val extractions = groups.flatMap(_.instances).map(_.extraction)
+
+  def tempDir(prefix: String): File = {
+    val file = File.createTempFile(prefix, "")
+    file.delete()
+    file.mkdir()
+    file.deleteOnExit()
+    file
+  }
+
+  def tempStoreFile(): File = {
+    val file = new File(tempDir("sentence-store-test"), SentenceStore.fileName)
+    file.deleteOnExit()
+    file
+  }
+
+  "a sentence store" should "keep each sentence once, under its content hash" in {
+    val file = tempStoreFile()
+    val writer = new SentenceStore.Writer(file)
+    val ids = extractions.map(extr => writer.add(extr))
+    assert(extractions.map(extr => SentenceStore.id(StoredSentence(extr))) === ids)
+    assert(writer.numSentences === extractions.map(StoredSentence(_)).distinct.size)
+    writer.close()
+
+    val store = SentenceStore.open(file)
+    assert(store.numSentences === writer.numSentences)
+    extractions.zip(ids).foreach { case (extr, id) =>
+      assert(store.sentence(id).extraction(extr.arg1Interval, extr.relInterval, extr.arg2Interval) === extr)
+    }
+    intercept[NoSuchElementException] { store.sentence(ids.head + 1) }
+  }
+
+  it should "refuse reads once closed" in {
+    val file = tempStoreFile()
+    val writer = new SentenceStore.Writer(file)
+    val id = writer.add(extractions.head)
+    writer.close()
+
+    val store = SentenceStore.open(file)
+    assert(store.contains(id))
+    store.close()
+    intercept[IllegalStateException] { store.sentence(id) }
+  }
+
+  it should "give sentences whose ids collide ids of their own" in {
+    val file = tempStoreFile()
+    // every sentence asks for the same id, so all but the first must probe
+    val writer = new SentenceStore.Writer(file) {
+      override protected[lucene] def fingerprint(bytes: Array[Byte]) = super.fingerprint(bytes).copy(id = 42L)
+    }
+    val ids = extractions.map(extr => writer.add(extr))
+    val distinct = extractions.map(StoredSentence(_)).distinct
+    assert(ids.distinct.size === distinct.size)
+    assert(extractions.map(extr => writer.add(extr)) === ids)
+    writer.close()
+
+    val store = SentenceStore.open(file)
+    extractions.zip(ids).foreach { case (extr, id) =>
+      assert(store.sentence(id) === StoredSentence(extr))
+    }
+  }
+
+  it should "see sentences appended after it was opened" in {
+    val file = tempStoreFile()
+    val writer = new SentenceStore.Writer(file)
+    val (before, after) = extractions.splitAt(extractions.size / 2)
+    before.foreach(extr => writer.add(extr))
+    writer.flush()
+    val store = SentenceStore.open(file)
+    val ids = after.map(extr => writer.add(extr))
+    writer.flush()
+    ids.foreach(id => assert(store.contains(id)))
+    writer.close()
+  }
+
+  it should "drop a partly written record when reopened" in {
+    val file = tempStoreFile()
+    val writer = new SentenceStore.Writer(file)
+    val distinct = extractions.groupBy(StoredSentence(_)).values.map(_.head).take(10).toList
+    val ids = distinct.map(extr => writer.add(extr))
+    writer.close()
+    val raf = new RandomAccessFile(file, "rw")
+    raf.setLength(raf.length - 3)
+    raf.close()
+
+    val reopened = new SentenceStore.Writer(file)
+    assert(reopened.numSentences === 9)
+    assert(reopened.add(distinct.last) === ids.last)
+    reopened.close()
+    assert(SentenceStore.open(file).numSentences === 10)
+  }
+
+  "instances" should "round-trip through a sentence store" in {
+    val file = tempStoreFile()
+    val writer = new SentenceStore.Writer(file)
+    val encoded = groups.map(group => InstancesCodec.encode(group.instances, writer))
+    writer.close()
+    val store = SentenceStore.open(file)
+    groups.zip(encoded).foreach { case (group, bytes) =>
+      assert(InstancesCodec.usesSentenceStore(bytes))
+      assert(InstancesCodec.decode(bytes, Some(store)).toSet === group.instances)
+      assert(InstancesCodec.numChunks(bytes) === InstancesCodec.numChunks(InstancesCodec.encode(group.instances)))
+    }
+    intercept[IllegalStateException] { InstancesCodec.decode(encoded.head) }
+  }
+
+  it should "be smaller when they refer to a sentence store" in {
+    val writer = new SentenceStore.Writer(tempStoreFile())
+    val storeBytes = groups.map(group => InstancesCodec.encode(group.instances, writer).length).sum
+    writer.close()
+    assert(storeBytes < groups.map(group => InstancesCodec.encode(group.instances).length).sum)
+  }
+
+  "a fetcher" should "read groups from an index with a sentence store" in {
+    val indexDir = tempDir("sentence-store-index-test")
+    val sentences = new SentenceStore.Writer(new File(indexDir, SentenceStore.fileName))
+    val writer = new IndexWriter(FSDirectory.open(indexDir), ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group, sentences)))
+    sentences.close()
+    writer.close()
+    // deleted in reverse order of registration, so the files go before the directory
+    indexDir.listFiles.foreach(_.deleteOnExit())
+
+    val fetcher = new ExtractionGroupFetcher(indexDir.getPath, 1000, 100000, 10000L, stoplist = false, refreshIntervalMillis = 0L)
+    try {
+      fetcher.withSearcher { searcher =>
+        val store = ExtractionGroupFetcher.sentenceStore(searcher)
+        assert(store.isDefined)
+        val read = (0 until searcher.maxDoc).map(docNum => ReVerbDocumentConverter.fromDocument(searcher.doc(docNum), store.get))
+        assert(read.toSet === groups.toSet)
+      }
+      val group = groups.head
+      val results = fetcher.getGroups(QuerySpec.identityQuery(group)).results
+      assert(results.flatMap(_.instances).toSet.contains(group.instances.head))
+    } finally {
+      fetcher.close()
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class ShardPlacementTest extends FlatSpec {
+
+  val lines = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(1000).toList
+
+  val groups = lines.flatMap(ReVerbExtractionGroup.deserializeFromString)
+
+  val numShards = 4
+
+  // the keys of the live docs in each of dirs
+  def shardKeys(dirs: Seq[RAMDirectory]): Seq[Seq[ShardPlacement.Key]] = dirs.map { dir =>
+    val reader = IndexReader.open(dir)
+    try {
+      (0 until reader.maxDoc).filter(!reader.isDeleted(_)).map(docNum => ShardPlacement.key(reader.document(docNum)))
+    } finally {
+      reader.close()
+    }
+  }
+
+  // whether every live doc in dirs can be found by its key's "indexKey" term
+  def allKeyed(dirs: Seq[RAMDirectory]): Boolean = dirs.forall { dir =>
+    val reader = IndexReader.open(dir)
+    try {
+      (0 until reader.maxDoc).filter(!reader.isDeleted(_)).forall { docNum =>
+        val termDocs = reader.termDocs(ShardPlacement.keyTerm(ShardPlacement.key(reader.document(docNum))))
+        try termDocs.skipTo(docNum) && termDocs.doc == docNum finally termDocs.close()
+      }
+    } finally {
+      reader.close()
+    }
+  }
+
+  "hashed placement" should "put a key on the same shard every time" in {
+    groups.foreach { group =>
+      val shard = ShardPlacement.Hashed.shard(group, numShards)
+      assert(shard >= 0 && shard < numShards)
+      assert(ShardPlacement.Hashed.shard(ShardPlacement.key(group), numShards) === shard)
+      assert(ShardPlacement.Hashed.shard(ReVerbDocumentConverter.toDocument(group), numShards) === shard)
+    }
+    assert(groups.map(ShardPlacement.Hashed.shard(_, numShards)).distinct.size === numShards)
+  }
+
+  it should "move few keys when a shard is added" in {
+    val moved = groups.count(group => ShardPlacement.Hashed.shard(group, numShards) != ShardPlacement.Hashed.shard(group, numShards + 1))
+    assert(moved < groups.size / 3)
+  }
+
+  "the parallel index builder" should "put each group on its home shard" in {
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    val builder = new ParallelIndexBuilder(dirs.map(new IndexWriter(_, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))), ReVerbIndexBuilder.inputLineConverter(regroup=false), 100)
+    builder.indexAll(lines.iterator)
+    builder.close()
+    shardKeys(dirs).zipWithIndex.foreach { case (keys, shard) =>
+      assert(keys.forall(ShardPlacement.default.shard(_, numShards) === shard))
+    }
+  }
+
+  "the shard migrator" should "move every group to its home shard, once" in {
+    // groups dealt out round robin, as if placed at random
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    val writers = dirs.map(new IndexWriter(_, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+    groups.zipWithIndex.foreach { case (group, i) => writers(i % numShards).addDocument(ReVerbDocumentConverter.toDocument(group)) }
+    writers.foreach(_.close())
+    // fixture groups that share a key are merged when they meet on their home shard
+    val keysBefore = shardKeys(dirs).flatten.distinct.sorted
+
+    val migrator = new ShardMigrator(dirs)
+    assert(migrator.migrateAll() > 0)
+    val keysAfter = shardKeys(dirs)
+    assert(keysAfter.flatten.distinct.sorted === keysBefore)
+    keysAfter.zipWithIndex.foreach { case (keys, shard) =>
+      assert(keys.forall(ShardPlacement.default.shard(_, numShards) === shard))
+    }
+
+    assert(migrator.migrateAll() === 0)
+    assert(shardKeys(dirs) === keysAfter)
+
+    // identity queries on the migrated index only need the home shard
+    val fetchers = dirs.map(dir => new ExtractionGroupFetcher(ExtractionGroupFetcher.loadSearcherManager(dir, doWarmups=false), 1000, 10000, 10000L, Set.empty[String]))
+    val parFetcher = new ParallelExtractionGroupFetcher(fetchers)
+    parFetcher.placement = Some(ShardPlacement.default)
+    try {
+      groups.take(50).foreach { group =>
+        val query = QuerySpec.identityQuery(group)
+        assert(parFetcher.shardsFor(query) === Seq(ShardPlacement.default.shard(group, numShards)))
+        assert(parFetcher.getGroups(query).results.exists(result => ShardPlacement.key(result) === ShardPlacement.key(group)))
+      }
+    } finally {
+      parFetcher.close()
+    }
+  }
+
+  it should "key and merge groups written without an indexKey, whether they move or not" in {
+    // as written before the "indexKey" field existed, with each group also on its home shard once more
+    val dirs = Seq.fill(numShards)(new RAMDirectory())
+    val writers = dirs.map(new IndexWriter(_, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10)))
+    def addUnkeyed(shard: Int, group: ExtractionGroup[ReVerbExtraction]): Unit = {
+      val doc = ReVerbDocumentConverter.toDocument(group)
+      doc.removeField("indexKey")
+      writers(shard).addDocument(doc)
+    }
+    groups.zipWithIndex.foreach { case (group, i) =>
+      addUnkeyed(i % numShards, group)
+      addUnkeyed(ShardPlacement.default.shard(group, numShards), group)
+    }
+    writers.foreach(_.close())
+    assert(!allKeyed(dirs))
+    val instancesBefore = groups.groupBy(group => ShardPlacement.key(group)).map { case (key, keyGroups) => (key, keyGroups.flatMap(_.instances).toSet) }
+
+    val migrator = new ShardMigrator(dirs)
+    migrator.migrateAll()
+    val keysAfter = shardKeys(dirs)
+    assert(keysAfter.flatten.sorted === instancesBefore.keys.toSeq.sorted)
+    keysAfter.zipWithIndex.foreach { case (keys, shard) =>
+      assert(keys.forall(ShardPlacement.default.shard(_, numShards) === shard))
+    }
+    assert(allKeyed(dirs))
+
+    dirs.foreach { dir =>
+      val reader = IndexReader.open(dir)
+      try {
+        (0 until reader.maxDoc).filter(!reader.isDeleted(_)).foreach { docNum =>
+          val group = ReVerbDocumentConverter.fromDocument(reader.document(docNum))
+          assert(group.instances === instancesBefore(ShardPlacement.key(group)))
+        }
+      } finally {
+        reader.close()
+      }
+    }
+
+    assert(new ShardMigrator(dirs).migrateAll() === 0)
+    assert(shardKeys(dirs) === keysAfter)
+  }
+}
@@ -0,0 +1,61 @@
+package edu.knowitall.browser.lucene
+
+import scala.io.Source
+
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.BooleanClause
+import org.apache.lucene.search.BooleanQuery
+import org.apache.lucene.search.TermQuery
+import org.apache.lucene.search.TopScoreDocCollector
+import org.apache.lucene.store.RAMDirectory
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+@RunWith(classOf[JUnitRunner])
+class SizeBucketCollectorTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.take(2000).flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val buckets = IndexedSeq(SizeBucket(4, None), SizeBucket(2, Some(4)), SizeBucket(1, Some(2)))
+
+  "the size bucket collector" should "find the same hits as one range query per bucket" in {
+
+    val ramDir = new RAMDirectory()
+    val writer = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB=10))
+    groups.foreach(group => writer.addDocument(ReVerbDocumentConverter.toDocument(group)))
+    writer.close()
+
+    val searcherManager = ExtractionGroupFetcher.loadSearcherManager(ramDir, doWarmups=false)
+    val searcher = searcherManager.acquire
+    try {
+      val relTerms = groups.flatMap(_.rel.norm.split(" ").headOption).distinct.take(25)
+      for (relTerm <- relTerms; numHits <- Seq(1, 10, 100)) {
+        val query = new TermQuery(new Term("relNorm", relTerm))
+
+        val collector = new SizeBucketCollector(buckets, numHits)
+        searcher.search(query, collector)
+
+        for ((bucket, i) <- buckets.zipWithIndex) {
+          val bucketQuery = new BooleanQuery(true)
+          bucketQuery.add(query, BooleanClause.Occur.MUST)
+          bucketQuery.add(bucket.rangeQuery, BooleanClause.Occur.MUST)
+          val expected = TopScoreDocCollector.create(numHits, true)
+          searcher.search(bucketQuery, expected)
+          val expectedDocs = expected.topDocs()
+
+          val actualDocs = collector.topDocs(i, numHits)
+          assert(actualDocs.totalHits === expectedDocs.totalHits)
+          assert(actualDocs.scoreDocs.map(_.doc).toList === expectedDocs.scoreDocs.map(_.doc).toList)
+        }
+      }
+    } finally {
+      searcherManager.release(searcher)
+      searcherManager.close()
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package edu.knowitall.browser.lucene
+
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TaggerPoolTest extends FlatSpec {
+
+  val pool = new TaggerPool(coreSize = 1, maxSize = 2)
+
+  "the tagger pool" should "grow up to its max size and then time out" in {
+    val result = pool.withTagger(10) { first =>
+      pool.withTagger(10) { second =>
+        assert(first ne second)
+        pool.withTagger(10) { third => "too many" }
+      }
+    }
+    assert(result === Some(Some(None)))
+    assert(pool.stats.size === 2)
+    assert(pool.stats.timeouts === 1)
+  }
+
+  it should "reuse returned taggers" in {
+    val tokens = pool.withTagger(10)(_.postag("Barack Obama was born in Hawaii."))
+    assert(tokens.isDefined && !tokens.get.isEmpty)
+    assert(pool.stats.size === 2)
+  }
+
+  "query normalization" should "stem and strip determiners" in {
+    assert(QuerySpec.normalize("the cats") === "cat")
+    assert(QuerySpec.normalize("the cats") === "cat")
+    assert(QuerySpec.normalizationCacheStats.hitCount >= 1)
+  }
+
+  it should "give up, uncached, when no tagger frees up before the deadline" in {
+    // holds every tagger the pool can make while running f
+    def holdingAll[T](f: => T): T = QuerySpec.taggers.withTagger(0)(_ => holdingAll(f)) getOrElse f
+    assert(holdingAll(QuerySpec.normalize("the dogs", 50.millis.fromNow)) === None)
+    assert(!holdingAll(QuerySpec.normalizeAll(Seq("the dogs"), 50.millis.fromNow)))
+    assert(QuerySpec.normalize("the dogs", 10.seconds.fromNow) === Some("dog"))
+  }
+}
@@ -0,0 +1,62 @@
+package edu.knowitall.browser.lucene.benchmark
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.browser.lucene.GroupFetcher
+import edu.knowitall.browser.lucene.QuerySpec
+import edu.knowitall.browser.lucene.Success
+import edu.knowitall.browser.lucene.Timeout
+
+@RunWith(classOf[JUnitRunner])
+class IndexBenchmarkerTest extends FlatSpec {
+
+  // answers every third query with a Timeout, after sleeping a millisecond
+  class StubFetcher extends GroupFetcher {
+    val calls = new AtomicInteger(0)
+    def getGroups(querySpec: QuerySpec) = {
+      Thread.sleep(1)
+      if (calls.incrementAndGet() % 3 == 0) Timeout.empty else Success.empty
+    }
+  }
+
+  val queries = IndexBenchmarker.randomQueries(12, new Random(0))
+
+  "random queries" should "use every field mask" in {
+    assert(queries.size === 12)
+    assert(queries.map(q => (q.arg1.isDefined, q.rel.isDefined, q.arg2.isDefined)).distinct.size === 6)
+  }
+
+  "a closed loop run" should "run every query once and count outcomes" in {
+    val fetcher = new StubFetcher()
+    val report = new IndexBenchmarker(fetcher, queries).runClosedLoop(4, 30)
+    assert(fetcher.calls.get === 30)
+    assert(report.samples.size === 30)
+    assert(report.outcomes === Map("success" -> 20, "timeout" -> 10))
+    assert(report.percentileNanos(0.5) >= 1000000L)
+    assert(report.percentileNanos(0.5) <= report.percentileNanos(0.99))
+    assert(report.percentileNanos(0.99) <= report.percentileNanos(1.0))
+  }
+
+  "an open loop run" should "send queries at the given rate" in {
+    val fetcher = new StubFetcher()
+    val report = new IndexBenchmarker(fetcher, queries).runOpenLoop(200, 2, 20)
+    assert(fetcher.calls.get === 20)
+    // the last query is due 95 ms after the first
+    assert(report.elapsedNanos >= 95000000L)
+  }
+
+  "a report" should "give exact percentiles" in {
+    val report = IndexBenchmarker.Report((1 to 100).map(i => IndexBenchmarker.Sample(i, "success")), 1000000000L)
+    assert(report.percentileNanos(0.5) === 50)
+    assert(report.percentileNanos(0.9) === 90)
+    assert(report.percentileNanos(0.99) === 99)
+    assert(report.percentileNanos(1.0) === 100)
+    assert(report.queriesPerSecond === 100.0)
+  }
+}
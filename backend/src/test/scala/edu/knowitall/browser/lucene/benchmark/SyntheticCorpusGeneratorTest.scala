@@ -0,0 +1,52 @@
+package edu.knowitall.browser.lucene.benchmark
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+
+@RunWith(classOf[JUnitRunner])
+class SyntheticCorpusGeneratorTest extends FlatSpec {
+
+  val generator = new SyntheticCorpusGenerator(SyntheticCorpusGenerator.fixtureSeeds, seed = 7L, maxGroupSize = 100)
+
+  "a zipf distribution" should "favor low ranks" in {
+    val zipf = new ZipfDistribution(100, 1.0)
+    val random = new Random(0)
+    val samples = Seq.fill(10000)(zipf.sample(random))
+    assert(samples.forall(rank => rank >= 1 && rank <= 100))
+    assert(samples.count(_ == 1) > samples.count(_ == 2))
+    assert(samples.count(_ == 2) > samples.count(_ == 10))
+  }
+
+  "the generator" should "generate the same groups for the same seed, in any order" in {
+    val lines = generator.lines(0, 50).toList
+    assert(lines.size === 50)
+    assert(generator.lines(20, 10).toList === lines.slice(20, 30))
+    assert(new SyntheticCorpusGenerator(SyntheticCorpusGenerator.fixtureSeeds, seed = 8L, maxGroupSize = 100).lines(0, 50).toList != lines)
+  }
+
+  it should "write lines that deserialize to the groups generated" in {
+    generator.lines(0, 200).zipWithIndex.foreach { case (line, i) =>
+      val group = ReVerbExtractionGroup.deserializeFromString(line)
+      assert(group.isDefined, line)
+      assert(group.get.instances.size === generator.group(i).instances.size)
+      assert(group.get.arg1.entity.map(_.fbid) === generator.group(i).arg1.entity.map(_.fbid))
+    }
+  }
+
+  it should "give each group a distinct key" in {
+    val keys = (0L until 1000L).map(generator.group).map(group => (group.arg1.norm, group.rel.norm, group.arg2.norm))
+    assert(keys.distinct.size === keys.size)
+  }
+
+  it should "make small groups common and large groups rare" in {
+    val sizes = (0L until 2000L).map(i => generator.group(i).instances.size)
+    assert(sizes.count(_ == 1) > sizes.count(_ == 2))
+    assert(sizes.count(_ > 10) < sizes.count(_ == 1) / 10)
+    assert(sizes.max > 1)
+  }
+}
@@ -0,0 +1,15 @@
+package edu.knowitall.openie.models.benchmark
+
+import org.openjdk.jmh.Main
+
+/**
+ * Runs JMH with the GC profiler on, so each benchmark also reports bytes allocated per operation.
+ * Any other JMH options pass through; giving a -prof option replaces the default profiler.
+ */
+object BenchmarkMain {
+
+  def main(args: Array[String]): Unit = {
+    val profilerArgs = if (args.contains("-prof")) Array.empty[String] else Array("-prof", "gc")
+    Main.main(profilerArgs ++ args)
+  }
+}
@@ -0,0 +1,45 @@
+package edu.knowitall.openie.models.benchmark
+
+import scala.io.Source
+
+import edu.knowitall.common.Resource.using
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.Resources
+
+/**
+ * The models module's test data, as benchmark inputs: test-groups.txt holds real index groups
+ * (many with dozens of instances), TestReVerbExtractions.txt real single extractions.
+ */
+object Fixtures {
+
+  lazy val groupLines: IndexedSeq[String] = using(Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8")) { source =>
+    source.getLines.toIndexedSeq
+  }
+
+  lazy val groups: IndexedSeq[ExtractionGroup[ReVerbExtraction]] = groupLines.flatMap(ReVerbExtractionGroup.deserializeFromString)
+
+  /** Groups with more than one instance, the only ones deduplication does any work on. */
+  lazy val multiInstanceGroups = groups.filter(_.instances.size > 1)
+
+  lazy val extractionLines: IndexedSeq[String] = using(Source.fromInputStream(Resources.reverbExtractionsUrl.openStream(), "UTF-8")) { source =>
+    source.getLines.toIndexedSeq
+  }
+
+  lazy val extractions: IndexedSeq[ReVerbExtraction] = extractionLines.flatMap(ReVerbExtraction.deserializeFromString)
+}
+
+/** Hands out the elements of a fixture in turn, so a benchmark doesn't measure one input over and over. */
+class Cycle[T](items: IndexedSeq[T]) {
+
+  require(!items.isEmpty, "empty fixture")
+
+  private var i = -1
+
+  def next(): T = {
+    i += 1
+    if (i == items.size) i = 0
+    items(i)
+  }
+}
@@ -0,0 +1,49 @@
+package edu.knowitall.openie.models.benchmark
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.InstanceDeduplicator
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.util.TaggedStemmer
+
+/** Stemming, grouping keys and deduplication, which run once per extraction or group in every job. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class NormalizationBenchmark {
+
+  var extractions: Cycle[ReVerbExtraction] = _
+  var multiInstanceGroups: Cycle[ExtractionGroup[ReVerbExtraction]] = _
+
+  @Setup
+  def setup(): Unit = {
+    extractions = new Cycle(Fixtures.extractions)
+    multiInstanceGroups = new Cycle(Fixtures.multiInstanceGroups)
+  }
+
+  @Benchmark
+  def indexGroupingKey(): (String, String, String) = extractions.next().indexGroupingKey
+
+  @Benchmark
+  def frontendGroupingKey(): (String, String, String) = extractions.next().frontendGroupingKey
+
+  /** Every token of the sentence, rather than just the arguments and relation. */
+  @Benchmark
+  def stemAll(): Iterable[String] = TaggedStemmer.instance.stemAll(extractions.next().sentenceTokens)
+
+  @Benchmark
+  def deduplicate(): ExtractionGroup[ReVerbExtraction] = InstanceDeduplicator.deduplicate(multiInstanceGroups.next())
+
+  /** The original deduplicate, for comparison. */
+  @Benchmark
+  def simpleDeduplicate(): ExtractionGroup[ReVerbExtraction] = InstanceDeduplicator.simpleDeduplicate(multiInstanceGroups.next())
+
+  @Benchmark
+  def nearDeduplicate(): ExtractionGroup[ReVerbExtraction] = InstanceDeduplicator.nearDeduplicate(multiInstanceGroups.next())
+}
@@ -0,0 +1,75 @@
+package edu.knowitall.openie.models.benchmark
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import com.twitter.bijection.Bijection
+
+import edu.knowitall.openie.models.ExtractionGroup
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.ReVerbExtractionGroup
+import edu.knowitall.openie.models.serialize.Chill
+
+/** The serialization formats groups and extractions go through in the Hadoop jobs and the index. */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class SerializationBenchmark {
+
+  var groups: Cycle[ExtractionGroup[ReVerbExtraction]] = _
+  var groupLines: Cycle[String] = _
+  var extractions: Cycle[ReVerbExtraction] = _
+  var kryoGroups: Cycle[Array[Byte]] = _
+  var javaExtractions: Cycle[Array[Byte]] = _
+
+  // not thread safe, hence the per-thread state
+  var kryo: Bijection[AnyRef, Array[Byte]] = _
+
+  @Setup
+  def setup(): Unit = {
+    kryo = Chill.createBijection()
+    groups = new Cycle(Fixtures.groups)
+    groupLines = new Cycle(Fixtures.groupLines)
+    extractions = new Cycle(Fixtures.extractions)
+    // apply reuses its output buffer but returns a copy, so these can be kept
+    kryoGroups = new Cycle(Fixtures.groups.map(group => kryo(group)))
+    javaExtractions = new Cycle(Fixtures.extractions.map(javaSerialize))
+  }
+
+  @Benchmark
+  def groupSerializeToString(): String = ReVerbExtractionGroup.serializeToString(groups.next())
+
+  @Benchmark
+  def groupDeserializeFromString(): Option[ExtractionGroup[ReVerbExtraction]] = ReVerbExtractionGroup.deserializeFromString(groupLines.next())
+
+  @Benchmark
+  def groupKryoSerialize(): Array[Byte] = kryo(groups.next())
+
+  @Benchmark
+  def groupKryoDeserialize(): AnyRef = kryo.invert(kryoGroups.next())
+
+  /** Goes through ReVerbExtractionSerializationProxy, via ReVerbExtraction.writeReplace. */
+  @Benchmark
+  def extractionJavaSerialize(): Array[Byte] = javaSerialize(extractions.next())
+
+  @Benchmark
+  def extractionJavaDeserialize(): AnyRef = {
+    val input = new ObjectInputStream(new ByteArrayInputStream(javaExtractions.next()))
+    try input.readObject() finally input.close()
+  }
+
+  private def javaSerialize(extraction: ReVerbExtraction): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val output = new ObjectOutputStream(bytes)
+    try output.writeObject(extraction) finally output.close()
+    bytes.toByteArray
+  }
+}
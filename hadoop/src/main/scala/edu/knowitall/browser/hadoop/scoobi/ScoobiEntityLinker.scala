@@ -135,13 +135,21 @@ object ScoobiEntityLinker extends ScoobiApp {
 
   def getEntityLinker: ScoobiEntityLinker = getEntityLinker(4)
 
-  def getEntityLinker(num: Int): ScoobiEntityLinker = {
-    val el = getScratch(num).map(index => {
-      new EntityLinker(new File(index))
+  def getEntityLinker(num: Int): ScoobiEntityLinker = getEntityLinker(getScratch(num).map(new File(_)))
+
+  /** A linker that spreads its lookups over copies of the linker index at each of indexes. */
+  def getEntityLinker(indexes: Seq[File]): ScoobiEntityLinker = {
+    val el = indexes.map(index => {
+      new EntityLinker(index)
     }) // java doesn't have Option
     new ScoobiEntityLinker(el, TaggedStemmer.instance)
   }
 
+  /** Whether group has between minFreq and maxFreq instances, inclusive. */
+  def withinFrequency(group: ExtractionGroup[ReVerbExtraction], minFreq: Int, maxFreq: Int): Boolean = {
+    group.instances.size <= maxFreq && group.instances.size >= minFreq
+  }
+
   def linkGroups(groups: DList[String], minFreq: Int, maxFreq: Int, reportInterval: Int,
       skipLinking: Boolean): DList[String] = {
     if (skipLinking) return frequencyFilter(groups, minFreq, maxFreq, reportInterval, skipLinking)
@@ -158,7 +166,7 @@ object ScoobiEntityLinker extends ScoobiApp {
       val extrOp = ReVerbExtractionGroup.deserializeFromString(line)
       extrOp match {
         case Some(extr) => {
-          if (extr.instances.size <= maxFreq && extr.instances.size >= minFreq) {
+          if (withinFrequency(extr, minFreq, maxFreq)) {
             Some(ReVerbExtractionGroup.serializeToString(linker.linkEntities(reuseLinks = false)(extr)))
           } else {
             None
@@ -184,7 +192,7 @@ object ScoobiEntityLinker extends ScoobiApp {
       val extrOp = ReVerbExtractionGroup.deserializeFromString(line)
       extrOp match {
         case Some(extr) => {
-          if (extr.instances.size <= maxFreq && extr.instances.size >= minFreq) {
+          if (withinFrequency(extr, minFreq, maxFreq)) {
             groupsOutput += 1
             Some(ReVerbExtractionGroup.serializeToString(extr))
           } else {
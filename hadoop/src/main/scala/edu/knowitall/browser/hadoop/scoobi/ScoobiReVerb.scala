@@ -44,59 +44,12 @@ object ScoobiReVerb extends ScoobiApp {
     // serialized ReVerbExtractions
     val lines: DList[String] = TextInput.fromTextSource(new TextSource(Seq(inputPath),  inputFormat = classOf[LzoTextInputFormat].asInstanceOf[Class[org.apache.hadoop.mapreduce.lib.input.TextInputFormat]]))
 
-    def parseChunkedSentence(strs: Seq[String], poss: Seq[String], chks: Seq[String]): Option[ChunkedSentence] = {
-      try {
-        require(strs.length == poss.length && poss.length == chks.length)
-        val chunkedSentence = new ChunkedSentence(strs, poss, chks)
-        Some(chunkedSentence)
-      } catch {
-        case e: Exception => {
-          System.err.println("Error parsing chunked sentence:\n%s\nStack trace:".format((strs, poss, chks)))
-          e.printStackTrace
-          System.err.println()
-          None
-        }
-      }
-    }
-
-    def getChunkedExtractions(strs: Seq[String], poss: Seq[String], chks: Seq[String]): Iterable[ChunkedBinaryExtraction] = {
-      parseChunkedSentence(strs, poss, chks) match {
-        case Some(chunkedSentence) => try {
-          extractor.extract(chunkedSentence)
-        } catch {
-          case e: Exception => {
-            System.err.println("Extractor exception for:\n%s\nStack trace:".format((strs, poss, chks)))
-            e.printStackTrace
-            System.err.println()
-            None
-          }
-        }
-        case None => Iterable.empty
-      }
-    }
-
-    def getBrowserExtractions(strs: Seq[String], poss: Seq[String], chks: Seq[String], url: String): Iterable[ReVerbExtraction] = {
-
-      val chunkedExtractions = getChunkedExtractions(strs, poss, chks)
-      val extractions = chunkedExtractions map { chunkedExtr =>
-        val sent = chunkedExtr.getSentence
-        val sentenceTokens = ReVerbExtraction.chunkedTokensFromLayers(sent.getTokens, sent.getPosTags, sent.getChunkTags).toIndexedSeq
-        val (arg1Range, relRange, arg2Range) = (chunkedExtr.getArgument1.getRange, chunkedExtr.getRelation.getRange, chunkedExtr.getArgument2.getRange)
-        val (arg1Interval, relInterval, arg2Interval) = (rangeToInterval(arg1Range), rangeToInterval(relRange), rangeToInterval(arg2Range))
-        val urlString = java.net.URLEncoder.encode(sentenceTokens.dropRight(1).map(_.string).mkString(" "), "UTF-8")
-        val sourceUrl = url
-        new ReVerbExtraction(sentenceTokens, arg1Interval, relInterval, arg2Interval, sourceUrl)
-      }
-
-      extractions
-    }
-
     def split(str: String) = wsSplit.split(str)
 
     val finalExtractions = lines.flatMap { line =>
       tabSplit.split(line) match {
         case Array(_, url, _, _, _, strs, poss, chks, _*) => {
-          val rvExtrs = getBrowserExtractions(split(strs), split(poss), split(chks), url)
+          val rvExtrs = getBrowserExtractions(extractor, split(strs), split(poss), split(chks), url)
           rvExtrs map ReVerbExtraction.serializeToString
         }
         case _ => {
@@ -108,4 +61,51 @@ object ScoobiReVerb extends ScoobiApp {
 
     persist(TextOutput.toTextFile(finalExtractions, outputPath + "/"));
   }
+
+  def parseChunkedSentence(strs: Seq[String], poss: Seq[String], chks: Seq[String]): Option[ChunkedSentence] = {
+    try {
+      require(strs.length == poss.length && poss.length == chks.length)
+      val chunkedSentence = new ChunkedSentence(strs, poss, chks)
+      Some(chunkedSentence)
+    } catch {
+      case e: Exception => {
+        System.err.println("Error parsing chunked sentence:\n%s\nStack trace:".format((strs, poss, chks)))
+        e.printStackTrace
+        System.err.println()
+        None
+      }
+    }
+  }
+
+  def getChunkedExtractions(extractor: ReVerbExtractor, strs: Seq[String], poss: Seq[String], chks: Seq[String]): Iterable[ChunkedBinaryExtraction] = {
+    parseChunkedSentence(strs, poss, chks) match {
+      case Some(chunkedSentence) => try {
+        extractor.extract(chunkedSentence)
+      } catch {
+        case e: Exception => {
+          System.err.println("Extractor exception for:\n%s\nStack trace:".format((strs, poss, chks)))
+          e.printStackTrace
+          System.err.println()
+          None
+        }
+      }
+      case None => Iterable.empty
+    }
+  }
+
+  def getBrowserExtractions(extractor: ReVerbExtractor, strs: Seq[String], poss: Seq[String], chks: Seq[String], url: String): Iterable[ReVerbExtraction] = {
+
+    val chunkedExtractions = getChunkedExtractions(extractor, strs, poss, chks)
+    val extractions = chunkedExtractions map { chunkedExtr =>
+      val sent = chunkedExtr.getSentence
+      val sentenceTokens = ReVerbExtraction.chunkedTokensFromLayers(sent.getTokens, sent.getPosTags, sent.getChunkTags).toIndexedSeq
+      val (arg1Range, relRange, arg2Range) = (chunkedExtr.getArgument1.getRange, chunkedExtr.getRelation.getRange, chunkedExtr.getArgument2.getRange)
+      val (arg1Interval, relInterval, arg2Interval) = (rangeToInterval(arg1Range), rangeToInterval(relRange), rangeToInterval(arg2Range))
+      val urlString = java.net.URLEncoder.encode(sentenceTokens.dropRight(1).map(_.string).mkString(" "), "UTF-8")
+      val sourceUrl = url
+      new ReVerbExtraction(sentenceTokens, arg1Interval, relInterval, arg2Interval, sourceUrl)
+    }
+
+    extractions
+  }
 }
@@ -45,21 +45,21 @@ class ScoobiReVerbGrouper(val stemmer: TaggedStemmer, val corpus: String) {
     // parse the line to a ReVerbExtraction
     val extrOpt = ReVerbExtraction.deserializeFromString(line)
 
-    extrOpt match {
-      case Some(extr) => {
-        val key = extr.indexGroupingKey
-        val keyString = "%s__%s__%s".format(key._1, key._2, key._3)
-
-        // don't output if part of the key is empty
-        if (key.productIterator.exists(_.asInstanceOf[String].isEmpty)) None
-        else Some((keyString, line))
-      }
-      case None => None
-    }
+    extrOpt flatMap getKey map { keyString => (keyString, line) }
   } catch {
     case e: Exception => { e.printStackTrace; None }
   }
 
+  /** The key extr is grouped under, or None if part of it is empty. */
+  def getKey(extr: ReVerbExtraction): Option[String] = {
+    val key = extr.indexGroupingKey
+    val keyString = "%s__%s__%s".format(key._1, key._2, key._3)
+
+    // don't output if part of the key is empty
+    if (key.productIterator.exists(_.asInstanceOf[String].isEmpty)) None
+    else Some(keyString)
+  }
+
   def processGroup(key: String, rawExtrs: Iterable[String]): Option[ExtractionGroup[ReVerbExtraction]] = try {
 
     val rawExtrsTruncated = rawExtrs.take(ReVerbGrouperStaticVars.max_group_size)
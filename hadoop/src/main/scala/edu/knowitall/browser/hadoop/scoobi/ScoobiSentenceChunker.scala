@@ -32,25 +32,29 @@ object ScoobiSentenceChunker extends ScoobiApp {
     // serialized ReVerbExtractions
     val lines: DList[String] = TextInput.fromTextFile(inputPath)
 
-    def sentenceToTriple(toks: Seq[ChunkedToken], url: String): String = {
-      val strs = toks.map(_.string.trim).mkString(" ")
-      val poss = toks.map(_.postag.trim).mkString(" ")
-      val chks = toks.map(_.chunk.trim).mkString(" ")
-
-      Seq(strs, poss, chks, url).mkString("\t")
-    }
-
     val output = lines.flatMap { line =>
-      line.split("\t") match {
-        case Array(rawSent, url, _*) => {
-          val toks = chunker.chunk(rawSent)
-          val result = sentenceToTriple(toks, url)
-          Some(result)
-        }
-        case _ => None
-      }
+      chunkLine(chunker, line) map { case (toks, url) => sentenceToTriple(toks, url) }
     }
 
     persist(TextOutput.toTextFile(output, outputPath + "/"));
   }
+
+  /** Chunks the sentence of a tab delimited [sentence text, source url] line, returning its tokens and url. */
+  def chunkLine(chunker: OpenNlpChunker, line: String): Option[(Seq[ChunkedToken], String)] = {
+    line.split("\t") match {
+      case Array(rawSent, url, _*) => Some((chunker.chunk(rawSent), url))
+      case _ => None
+    }
+  }
+
+  def sentenceToTriple(toks: Seq[ChunkedToken], url: String): String = {
+    val (strs, poss, chks) = tokenLayers(toks)
+
+    Seq(strs.mkString(" "), poss.mkString(" "), chks.mkString(" "), url).mkString("\t")
+  }
+
+  /** The trimmed strings, postags and chunk tags of toks, as they are written for ScoobiReVerb. */
+  def tokenLayers(toks: Seq[ChunkedToken]): (Seq[String], Seq[String], Seq[String]) = {
+    (toks.map(_.string.trim), toks.map(_.postag.trim), toks.map(_.chunk.trim))
+  }
 }
\ No newline at end of file
@@ -1,14 +1,41 @@
 package edu.knowitall.browser.hadoop.scoobi.util
 
-case class EntityInfo(val fbid: String, val types: Set[Int]) {
-  override def toString = "%s,%s".format(fbid, types.mkString(","))
+import edu.knowitall.openie.models.FbidDictionary
+
+/**
+ * An entity and its type enum ints. When the global FbidDictionary knows the entity, it is
+ * keyed (and serialized, as #id) by its int id, so the typer hashes and compares ints;
+ * otherwise it is keyed by its fbid string.
+ */
+case class EntityInfo(val id: Int, val unmappedFbid: Option[String], val types: Set[Int]) {
+
+  def isMapped = unmappedFbid.isEmpty
+
+  /** The fbid, or #id if the entity is mapped but there is no dictionary to look it up in. */
+  def fbid: String = unmappedFbid.getOrElse {
+    FbidDictionary.global.map(_.fbid(id)).getOrElse(EntityInfo.idPrefix + id)
+  }
+
+  override def toString = {
+    val key = unmappedFbid.getOrElse(EntityInfo.idPrefix + id)
+    "%s,%s".format(key, types.mkString(","))
+  }
 }
 
 case object EntityInfo {
+
+  // fbids never start with this
+  val idPrefix = "#"
+
+  def apply(fbid: String, types: Set[Int]): EntityInfo = FbidDictionary.global.flatMap(_.id(fbid)) match {
+    case Some(id) => EntityInfo(id, None, types)
+    case None => EntityInfo(-1, Some(fbid), types)
+  }
+
   def fromString(str: String) = {
     val split = str.split(",")
-    val fbid = split(0)
     val types = split.drop(1).map(_.toInt).toSet
-    EntityInfo(fbid, types)
+    if (split(0).startsWith(idPrefix)) EntityInfo(split(0).substring(idPrefix.length).toInt, None, types)
+    else EntityInfo(split(0), types)
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,169 @@
+package edu.knowitall.browser.hadoop.util
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.PriorityQueue
+
+import scala.collection.mutable
+
+import com.google.common.base.Charsets
+
+/**
+ * Sorts (key, value) pairs by key, more of them than fit in memory. Added pairs are buffered until
+ * they take about maxBufferBytes, then sorted and spilled to a run file in tempDir. sorted merges
+ * the runs back, at most maxOpenRuns at a time, so memory use stays about one buffer however many
+ * pairs are added. The order of pairs with equal keys is unspecified.
+ *
+ * add may be called from any thread. Call sorted once, after the last add, and close the sorter
+ * when done with its iterator, to delete the run files.
+ */
+class ExternalSorter(val tempDir: File, val maxBufferBytes: Long, val maxOpenRuns: Int = 64) {
+
+  import ExternalSorter._
+
+  require(maxOpenRuns >= 2, "maxOpenRuns must be at least 2")
+
+  private val buffer = mutable.ArrayBuffer.empty[(String, String)]
+  private var bufferBytes = 0L
+  private var numPairs = 0L
+  private var numSpills = 0
+
+  // runs not yet merged, oldest first
+  private val runs = mutable.Queue.empty[File]
+  private val openReaders = mutable.ArrayBuffer.empty[RunReader]
+
+  def size: Long = synchronized { numPairs }
+
+  /** How many times the buffer filled up and was spilled to disk. */
+  def spills: Int = synchronized { numSpills }
+
+  def add(key: String, value: String): Unit = synchronized {
+    buffer += ((key, value))
+    bufferBytes += pairBytes(key, value)
+    numPairs += 1
+    if (bufferBytes >= maxBufferBytes) {
+      spill()
+      numSpills += 1
+    }
+  }
+
+  private def spill(): Unit = {
+    runs += writeRun(buffer.sortBy(_._1).iterator)
+    buffer.clear()
+    bufferBytes = 0L
+  }
+
+  private def writeRun(pairs: Iterator[(String, String)]): File = {
+    val run = File.createTempFile("sort-run-", ".tmp", tempDir)
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), ioBufferSize))
+    try {
+      pairs.foreach { case (key, value) =>
+        writeString(out, key)
+        writeString(out, value)
+      }
+    } finally {
+      out.close()
+    }
+    run
+  }
+
+  /** All the pairs added, in key order. If none were spilled, they are sorted in memory. */
+  def sorted: Iterator[(String, String)] = synchronized {
+    if (runs.isEmpty) {
+      val pairs = buffer.sortBy(_._1)
+      buffer.clear()
+      pairs.iterator
+    } else {
+      if (!buffer.isEmpty) spill()
+      // merge the oldest runs into one until few enough are left to merge at once
+      while (runs.size > maxOpenRuns) {
+        val readers = (1 to maxOpenRuns).map(_ => openRun(runs.dequeue()))
+        runs += writeRun(merge(readers))
+        readers.foreach(closeRun)
+      }
+      merge(runs.dequeueAll(_ => true).map(openRun))
+    }
+  }
+
+  private def openRun(run: File): RunReader = {
+    val reader = new RunReader(run)
+    openReaders += reader
+    reader
+  }
+
+  private def closeRun(reader: RunReader): Unit = {
+    reader.close()
+    reader.file.delete()
+    openReaders -= reader
+  }
+
+  private def merge(readers: Seq[RunReader]): Iterator[(String, String)] = new Iterator[(String, String)] {
+    private val heap = new PriorityQueue[RunReader](math.max(readers.size, 1), Ordering.by((reader: RunReader) => reader.key))
+    readers.foreach(reader => if (reader.advance()) heap.add(reader))
+
+    def hasNext = !heap.isEmpty
+
+    def next() = {
+      val reader = heap.poll()
+      if (reader == null) throw new NoSuchElementException("next on empty iterator")
+      val pair = (reader.key, reader.value)
+      if (reader.advance()) heap.add(reader)
+      pair
+    }
+  }
+
+  /** Deletes the run files, including those sorted is reading. */
+  def close(): Unit = synchronized {
+    openReaders.toList.foreach(closeRun)
+    runs.dequeueAll(_ => true).foreach(_.delete())
+    buffer.clear()
+  }
+}
+
+object ExternalSorter {
+
+  private val ioBufferSize = 1 << 16
+
+  // a rough guess at a buffered pair's heap footprint: the chars plus String, array and tuple headers
+  private def pairBytes(key: String, value: String): Long = 2L * (key.length + value.length) + 112
+
+  private def writeString(out: DataOutputStream, str: String): Unit = {
+    val bytes = str.getBytes(Charsets.UTF_8)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  private def readString(in: DataInputStream, length: Int): String = {
+    val bytes = new Array[Byte](length)
+    in.readFully(bytes)
+    new String(bytes, Charsets.UTF_8)
+  }
+
+  // the pairs of a run, read one at a time
+  private class RunReader(val file: File) {
+
+    private val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), ioBufferSize))
+
+    var key: String = null
+    var value: String = null
+
+    /** Reads the next pair into key and value, returning false at the end of the run. */
+    def advance(): Boolean = {
+      val keyLength = try in.readInt() catch { case e: EOFException => -1 }
+      if (keyLength < 0) false
+      else {
+        key = readString(in, keyLength)
+        value = readString(in, in.readInt())
+        true
+      }
+    }
+
+    def close(): Unit = in.close()
+  }
+}
@@ -0,0 +1,245 @@
+package edu.knowitall.browser.lucene
+
+import java.io.File
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.parallel.ForkJoinTaskSupport
+import scala.concurrent.forkjoin.ForkJoinPool
+import scala.io.Source
+
+import org.apache.lucene.document.Document
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.store.FSDirectory
+
+import edu.knowitall.browser.hadoop.scoobi.ReVerbGrouperStaticVars
+import edu.knowitall.browser.hadoop.scoobi.ScoobiEntityLinker
+import edu.knowitall.browser.hadoop.scoobi.ScoobiReVerb
+import edu.knowitall.browser.hadoop.scoobi.ScoobiReVerbGroupFilter
+import edu.knowitall.browser.hadoop.scoobi.ScoobiReVerbGrouper
+import edu.knowitall.browser.hadoop.scoobi.ScoobiSentenceChunker
+import edu.knowitall.browser.hadoop.util.ExternalSorter
+import edu.knowitall.common.Timing
+import edu.knowitall.openie.models.ReVerbExtraction
+import edu.knowitall.openie.models.util.TaggedStemmer
+import edu.knowitall.tool.chunk.OpenNlpChunker
+import edu.washington.cs.knowitall.extractor.ReVerbExtractor
+
+import scopt.OptionParser
+
+/**
+ * Extracts a corpus of sentences and indexes the groups of their extractions in one process. It does
+ * what ScoobiSentenceChunker, ScoobiReVerb, ScoobiReVerbGrouper, ScoobiEntityLinker and ScoobiReVerbGroupFilter
+ * followed by ReVerbParallelIndexBuilder do on the cluster, with their code, but without writing anything
+ * out between the stages.
+ *
+ * It makes two passes. First numWorkers threads chunk and extract the sentences, and the extractions
+ * are sorted by grouping key in an ExternalSorter, which spills to tempDir each time it holds sortBufferMB.
+ * Then the sorted extractions are read back a group at a time, and a ParallelIndexBuilder's workers
+ * build, link and filter each group and add it to the index its placement picks. So memory is bounded by
+ * the sort buffer, the builder's queues, the indexes' ram buffers and the entity linkers. Groups are cut off at
+ * ReVerbGrouperStaticVars.max_group_size extractions, as ScoobiReVerbGrouper cuts them off.
+ *
+ * Without linkerIndexes, groups aren't linked, as with ScoobiEntityLinker's skipLinking. Linkers aren't
+ * thread safe, and each opens its own readers on every one of linkerIndexes, so the workers share at
+ * most maxLinkers of them, each taking one for a record's groups. With more workers than that, the
+ * rest wait for a linker to come free.
+ */
+class ExtractionIndexPipeline(
+    val indexWriters: Seq[IndexWriter],
+    val corpus: String,
+    val linkerIndexes: Seq[File] = Nil,
+    val minFreq: Int = 0,
+    val maxFreq: Int = Int.MaxValue,
+    val numWorkers: Int = Runtime.getRuntime.availableProcessors,
+    val sortBufferMB: Int = 256,
+    val tempDir: File = new File(System.getProperty("java.io.tmpdir")),
+    val groupsPerCommit: Int = 500000,
+    val placement: ShardPlacement = ShardPlacement.default,
+    val maxLinkers: Int = ExtractionIndexPipeline.defaultMaxLinkers) {
+
+  import ExtractionIndexPipeline._
+
+  require(maxLinkers > 0, "maxLinkers must be positive")
+
+  // none of the stages' tools are thread safe, so each worker has its own
+  private val chunkers = threadLocal(new OpenNlpChunker)
+  private val extractors = threadLocal(new ReVerbExtractor)
+  private val groupers = threadLocal(new ScoobiReVerbGrouper(TaggedStemmer.instance, corpus))
+
+  // linkers not in use, of the linkersCreated so far
+  private val idleLinkers = new LinkedBlockingQueue[ScoobiEntityLinker]()
+  private val linkersCreated = new AtomicInteger(0)
+
+  private val sentencesCounter = new AtomicLong(0)
+  private val extractionsCounter = new AtomicLong(0)
+  private val groupsCounter = new AtomicLong(0)
+
+  def sentencesRead: Long = sentencesCounter.get
+  def extractionsSorted: Long = extractionsCounter.get
+  def groupsIndexed: Long = groupsCounter.get
+
+  /** Indexes the extractions of input's tab delimited [sentence text, source url] lines. */
+  def run(input: Iterator[String]): Unit = {
+    val sorter = new ExternalSorter(tempDir, sortBufferMB * 1024L * 1024L)
+    try {
+      val (extractNs, _) = Timing.time { extractAll(input, sorter) }
+      System.err.println("Extracted %d sentences in %s: %d extractions, %d sort spills".format(sentencesRead, Timing.Seconds.format(extractNs), extractionsSorted, sorter.spills))
+      val (indexNs, _) = Timing.time { indexAll(sorter.sorted) }
+      System.err.println("Indexed %d groups in %s".format(groupsIndexed, Timing.Seconds.format(indexNs)))
+    } finally {
+      sorter.close()
+    }
+  }
+
+  private def extractAll(input: Iterator[String], sorter: ExternalSorter): Unit = {
+    val pool = new ForkJoinPool(numWorkers)
+    try {
+      input.grouped(ParallelIndexBuilder.batchSize * numWorkers).foreach { lines =>
+        val parLines = lines.par
+        parLines.tasksupport = new ForkJoinTaskSupport(pool)
+        parLines.flatMap(line => extract(line)).seq.foreach { case (key, extr) => sorter.add(key, extr) }
+        val sentences = sentencesCounter.addAndGet(lines.size)
+        if (sentences / reportInterval != (sentences - lines.size) / reportInterval) {
+          System.err.println("Sentences read: %d, extractions: %d, sort spills: %d".format(sentences, extractionsSorted, sorter.spills))
+        }
+      }
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  // the chunker and ReVerb jobs' work on one line, giving the extractions keyed as the grouper keys them
+  private def extract(line: String): Seq[(String, String)] = try {
+    val extrs = ScoobiSentenceChunker.chunkLine(chunkers.get, line).toSeq flatMap { case (tokens, url) =>
+      val (strs, poss, chks) = ScoobiSentenceChunker.tokenLayers(tokens)
+      ScoobiReVerb.getBrowserExtractions(extractors.get, strs, poss, chks, url)
+    }
+    val keyed = extrs.flatMap(extr => groupers.get.getKey(extr).map(key => (key, ReVerbExtraction.serializeToString(extr))))
+    extractionsCounter.addAndGet(keyed.size)
+    keyed
+  } catch {
+    case e: Exception => {
+      System.err.println("Couldn't extract line: %s".format(line))
+      e.printStackTrace
+      Seq.empty
+    }
+  }
+
+  private def indexAll(sortedExtrs: Iterator[(String, String)]): Unit = {
+    val builder = new ParallelIndexBuilder(indexWriters, groupDocuments, groupsPerCommit, numWorkers, placement = placement)
+    builder.indexAll(groupRecords(sortedExtrs))
+    groupsCounter.set(builder.groupsIndexed)
+  }
+
+  // the grouper, linker and filter jobs' work on one record from groupRecords
+  private def groupDocuments(record: String): Iterable[Document] = {
+    val lines = record.split("\n")
+    val grouped = groupers.get.processGroup(lines.head, lines.tail).filter(ScoobiEntityLinker.withinFrequency(_, minFreq, maxFreq))
+    val linked = if (linkerIndexes.isEmpty) grouped else withLinker(linker => grouped.map(linker.linkEntities(reuseLinks = false)))
+    val filtered = ScoobiReVerbGroupFilter.filterGroups(ScoobiReVerbGroupFilter.filterInstances(linked.toList))
+    filtered.map(group => ReVerbDocumentConverter.toDocument(group))
+  }
+
+  // runs f with an idle linker, creating one if fewer than maxLinkers exist, or else waiting for one
+  private def withLinker[T](f: ScoobiEntityLinker => T): T = {
+    val linker = Option(idleLinkers.poll()).getOrElse {
+      if (linkersCreated.incrementAndGet() <= maxLinkers) {
+        try {
+          ScoobiEntityLinker.getEntityLinker(linkerIndexes)
+        } catch {
+          case e: Exception => { linkersCreated.decrementAndGet(); throw e }
+        }
+      } else {
+        linkersCreated.decrementAndGet()
+        idleLinkers.take()
+      }
+    }
+    try {
+      f(linker)
+    } finally {
+      idleLinkers.put(linker)
+    }
+  }
+}
+
+object ExtractionIndexPipeline {
+
+  private val reportInterval = 100000
+
+  val defaultMaxLinkers = 4
+
+  private def threadLocal[T](init: => T): ThreadLocal[T] = new ThreadLocal[T]() {
+    override def initialValue = init
+  }
+
+  /**
+   * Turns key sorted extractions into one record per key: the key, then the key's serialized
+   * extractions, up to max_group_size of them, each on its own line. Serialized extractions
+   * never contain a newline.
+   */
+  def groupRecords(sortedExtrs: Iterator[(String, String)]): Iterator[String] = new Iterator[String] {
+
+    private val buffered = sortedExtrs.buffered
+
+    def hasNext = buffered.hasNext
+
+    def next() = {
+      val key = buffered.head._1
+      val record = new StringBuilder(key)
+      var size = 0
+      while (buffered.hasNext && buffered.head._1 == key) {
+        val extr = buffered.next()._2
+        if (size < ReVerbGrouperStaticVars.max_group_size) record.append('\n').append(extr)
+        size += 1
+      }
+      record.toString
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+
+    var indexPaths: Seq[String] = Nil
+    var corpus = ""
+    var linkerIndexes: Seq[File] = Nil
+    var minFreq = 0
+    var maxFreq = Int.MaxValue
+    var numWorkers = Runtime.getRuntime.availableProcessors
+    var sortBufferMB = 256
+    var tempDir = new File(System.getProperty("java.io.tmpdir"))
+    var groupsPerCommit = 500000
+    var ramBufferMB = 500
+    var maxLinkers = defaultMaxLinkers
+
+    val optionParser = new OptionParser() {
+      arg("indexPaths", "Colon-delimited list of paths to indexes", { str => indexPaths = str.split(":") })
+      arg("corpus", "Corpus name for the extractions' instances", { str => corpus = str })
+      opt("linkerIndexes", "Colon-delimited list of paths to copies of the entity linker index, default is not to link", { str => linkerIndexes = str.split(":").map(new File(_)) })
+      intOpt("minFreq", "minimum num instances in a group to index it inclusive default 0", { i => minFreq = i })
+      intOpt("maxFreq", "maximum num instances in a group to index it inclusive default Int.MaxValue", { i => maxFreq = i })
+      intOpt("workers", "Threads extracting sentences and building groups, default is one per core", { i => numWorkers = i })
+      intOpt("sortBufferMB", "Extractions held in memory before sorting them to a temp file, default 256", { i => sortBufferMB = i })
+      opt("tempDir", "Directory for sorted temp files, default java.io.tmpdir", { str => tempDir = new File(str) })
+      intOpt("groupsPerCommit", "Groups between each index's commits", { i => groupsPerCommit = i })
+      intOpt("ramBufferMB", "Size of ram buffer per index, (e.g. IndexWriterConfig.setRAMBufferSizeMB)", { i => ramBufferMB = i })
+      intOpt("maxLinkers", "Entity linkers the workers share, default " + defaultMaxLinkers, { i => maxLinkers = i })
+    }
+
+    // bail if the args are bad
+    if (!optionParser.parse(args)) return
+
+    val indexWriters = indexPaths.map { indexPath =>
+      new IndexWriter(FSDirectory.open(new File(indexPath)), ReVerbIndexBuilder.indexWriterConfig(ramBufferMB))
+    }
+
+    val pipeline = new ExtractionIndexPipeline(indexWriters, corpus, linkerIndexes, minFreq, maxFreq, numWorkers, sortBufferMB, tempDir, groupsPerCommit,
+      maxLinkers = maxLinkers)
+
+    try {
+      pipeline.run(Source.fromInputStream(System.in, "UTF-8").getLines)
+    } finally {
+      indexWriters.foreach(_.close())
+    }
+  }
+}
@@ -1,7 +1,10 @@
 package edu.knowitall.browser.lucene
 
+import scala.collection.mutable
+
 import org.apache.lucene.index.IndexReader
 import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.Term
 import edu.knowitall.openie.models.ExtractionGroup
 import edu.knowitall.openie.models.ReVerbExtractionGroup
 import edu.knowitall.openie.models.ReVerbExtraction
@@ -29,18 +32,21 @@ abstract class IndexModifier {
   *
   * Command-line interface allows the user to skip linking for singleton groups
   * that do not join any new group in the index (this saves a lot of time)
+  *
+  * If batched is set, updateAll updates each groupsPerCommit groups as one UpdateBatch instead of
+  * one group at a time. Every document of the index must have an "indexKey" field, as those written by
+  * the builders, IndexResharder and this modifier do, and there should be at most one per key.
   */
 class ReVerbIndexModifier(
   val writer: IndexWriter,
   val linker: Option[ScoobiEntityLinker],
   val writerBufferMb: Int,
-  val groupsPerCommit: Int) extends IndexModifier {
+  val groupsPerCommit: Int,
+  val batched: Boolean = false) extends IndexModifier {
 
   val searcherManager = new SearcherManager(writer, true, new SearcherFactory())
   val privateFetcher = new ExtractionGroupFetcher(searcherManager, 1000, 1000, 10000, Set.empty[String])
   def fetcher = { searcherManager.maybeRefresh; privateFetcher }
-  private val searcher = fetcher.indexSearcher
-  private val reader = fetcher.indexSearcher.getIndexReader
 
   /**
     * Updates group to the index. Returns true if the index was modified.
@@ -80,7 +86,10 @@ class ReVerbIndexModifier(
     }
   }
 
-  def addGroup(group: REG, tryLink: Boolean): Unit = {
+  def addGroup(group: REG, tryLink: Boolean): Unit = addDocument(linkIfDue(group, tryLink))
+
+  // the group addGroup adds
+  private def linkIfDue(group: REG, tryLink: Boolean): REG = {
     val size = group.instances.size
 
     var linkedGroup = group
@@ -96,18 +105,131 @@ class ReVerbIndexModifier(
       } else linkedGroup
     }
 
-    val document = ReVerbDocumentConverter.toDocument(linkedGroup)
+    linkedGroup
+  }
+
+  private def addDocument(group: REG): Unit = {
+    val document = ReVerbDocumentConverter.toDocument(group)
     println("Adding: " + ReVerbExtractionGroup.serializeToString(group))
 
     writer.addDocument(document)
   }
 
+  protected[lucene] def newBatch(groups: Seq[REG]): UpdateBatch = new UpdateBatch(groups)
+
+  /**
+    * Updates groups to the index, leaving it as calling updateGroup(_, false) on each of them in turn
+    * would. The documents with the groups' keys are looked up together, once, when the batch is created,
+    * against a searcher refreshed once. update then merges each group, in memory, into what the index
+    * would hold by then, and apply deletes the documents that were merged and adds the results in bulk.
+    * Groups are merged and linked in the same order, with the same linker calls, as updateGroup would.
+    *
+    * Existing documents are found by their "indexKey" term, where updateGroup's identity query finds
+    * them by their norms' words. For an index with one document per key, that finds the same documents,
+    * less other keys' documents that updateGroup deletes and re-adds unchanged.
+    */
+  protected[lucene] class UpdateBatch(groups: Seq[REG]) {
+
+    import ReVerbIndexModifier.LiveGroup
+
+    // the one refresh of the batch, so it sees the previous batch's updates
+    private val searcher = { searcherManager.maybeRefresh; searcherManager.acquire }
+    private var released = false
+
+    // by key, the index's documents, in index order, then the groups this batch has added, in the order it added them
+    private val live = mutable.HashMap.empty[ShardPlacement.Key, Vector[LiveGroup]]
+    private var numAdded = 0
+
+    // keys whose documents this batch replaces
+    private val replacedKeys = mutable.HashSet.empty[ShardPlacement.Key]
+
+    lookup(groups.map(group => ShardPlacement.key(group)).distinct)
+
+    // reads the documents with each of keys, walking the keys' terms in order
+    private def lookup(keys: Seq[ShardPlacement.Key]): Unit = {
+      val sentences = ExtractionGroupFetcher.sentenceStore(searcher)
+      val termDocs = searcher.getIndexReader.termDocs()
+      try {
+        val keyTerms = keys.map(key => (ShardPlacement.keyTerm(key), key)).sortWith(_._1.compareTo(_._1) < 0)
+        keyTerms.foreach { case (term, key) =>
+          val docs = mutable.ArrayBuffer.empty[LiveGroup]
+          termDocs.seek(term)
+          while (termDocs.next()) {
+            val doc = searcher.doc(termDocs.doc, ReVerbDocumentConverter.lazyInstancesSelector)
+            docs += LiveGroup(ReVerbDocumentConverter.fromDocumentLazily(doc, sentences), -1)
+          }
+          live(key) = docs.toVector
+        }
+      } finally {
+        termDocs.close()
+      }
+    }
+
+    // the groups with key, looking them up if the batch hasn't yet
+    private def liveGroups(key: ShardPlacement.Key): Vector[LiveGroup] = {
+      if (!live.contains(key)) lookup(Seq(key))
+      live(key)
+    }
+
+    /** Merges group into the batch as updateGroup(group, false) would merge it into the index. */
+    def update(group: REG): Unit = {
+
+      val key = ShardPlacement.key(group)
+      val existing = liveGroups(key)
+
+      val newKey = group.instances.head.extraction.indexGroupingKey
+
+      val keyedGroups = (group :: existing.map(_.group).toList).groupBy(_.instances.head.extraction.indexGroupingKey)
+
+      val mergedGroups = keyedGroups.map { case (groupingKey, keyGroups) => ReVerbExtractionGroup.mergeGroups(groupingKey, keyGroups) }
+
+      // link everything before changing anything, so a failure leaves the batch as it was
+      val linkedGroups = mergedGroups.toList.map { mergedGroup =>
+        linkIfDue(mergedGroup, mergedGroup.instances.head.extraction.indexGroupingKey.equals(newKey))
+      }
+
+      if (existing.exists(_.isFromIndex)) replacedKeys += key
+      live(key) = Vector.empty
+      linkedGroups foreach { linkedGroup =>
+        val linkedKey = ShardPlacement.key(linkedGroup)
+        live(linkedKey) = liveGroups(linkedKey) :+ LiveGroup(linkedGroup, numAdded)
+        numAdded += 1
+      }
+    }
+
+    /** Deletes the documents the batch replaced and adds its groups, then releases its searcher. */
+    def apply(): Unit = {
+      try {
+        // deletes only apply to documents added before them
+        writer.deleteDocuments(replacedKeys.toSeq.map(ShardPlacement.keyTerm): _*)
+        live.values.flatten.filter(!_.isFromIndex).toSeq.sortBy(_.addedNum).foreach(merged => addDocument(merged.group))
+      } finally {
+        release()
+      }
+    }
+
+    def release(): Unit = if (!released) {
+      searcherManager.release(searcher)
+      released = true
+    }
+  }
+
   def updateAll(groups: Iterator[REG]): Unit = {
 
     var groupsProcessed = 0
 
     groups.grouped(groupsPerCommit).foreach { groupOfGroups =>
-      groupOfGroups.foreach(updateGroup(_, false))
+      if (batched) {
+        val batch = newBatch(groupOfGroups)
+        try {
+          groupOfGroups.foreach(batch.update)
+          batch.apply()
+        } finally {
+          batch.release()
+        }
+      } else {
+        groupOfGroups.foreach(updateGroup(_, false))
+      }
       groupsProcessed += groupOfGroups.size
       writer.commit()
       System.err.println("Groups inserted: %d Index MaxDoc: %d".format(groupsProcessed, writer.maxDoc))
@@ -119,3 +241,11 @@ class ReVerbIndexModifier(
     writer.close
   }
 }
+
+object ReVerbIndexModifier {
+
+  // a group of an UpdateBatch: a document it read from the index, or the addedNum'th group it added
+  private case class LiveGroup(val group: ExtractionGroup[ReVerbExtraction], val addedNum: Int) {
+    def isFromIndex = addedNum < 0
+  }
+}
@@ -20,17 +20,48 @@ import scopt.OptionParser
 
 import scala.io.Source
 
-class ParallelReVerbIndexModifier(val basicModifiers: Seq[ReVerbIndexModifier], groupsPerCommit: Int) extends IndexModifier {
+/**
+ * Adds groups to a sharded index. New groups go to the shard ShardPlacement.default picks for them.
+ * If placed is set, every group in the index is on that shard (it was built by ParallelIndexBuilder
+ * or migrated by ShardMigrator), so updates only touch that shard. Otherwise a group may be on any
+ * shard, and every shard is searched for it.
+ *
+ * If batched is set too, each shard's share of every groupsPerCommit groups is updated as one
+ * ReVerbIndexModifier.UpdateBatch, with the same result as updating the groups one at a time.
+ */
+class ParallelReVerbIndexModifier(val basicModifiers: Seq[ReVerbIndexModifier], groupsPerCommit: Int, val placed: Boolean = false, val batched: Boolean = false) extends IndexModifier {
 
   import ParallelReVerbIndexModifier.loadSubModifier
 
-  def this(indexPaths: Seq[String], ramBufferMb: Int, linesPerCommit: Int) = {
-    this(indexPaths map ParallelReVerbIndexModifier.loadSubModifier(linesPerCommit, ramBufferMb), linesPerCommit)
+  // an unplaced group must be looked for on every shard by its identity query, which batches don't run
+  require(placed || !batched, "batched updates need a placed index")
+
+  def this(indexPaths: Seq[String], ramBufferMb: Int, linesPerCommit: Int, placed: Boolean, batched: Boolean) = {
+    this(indexPaths map ParallelReVerbIndexModifier.loadSubModifier(linesPerCommit, ramBufferMb), linesPerCommit, placed, batched)
   }
 
-  def fetcher = new ParallelExtractionGroupFetcher(basicModifiers.map(_.fetcher))
+  def this(indexPaths: Seq[String], ramBufferMb: Int, linesPerCommit: Int, placed: Boolean) = this(indexPaths, ramBufferMb, linesPerCommit, placed, false)
+
+  def this(indexPaths: Seq[String], ramBufferMb: Int, linesPerCommit: Int) = this(indexPaths, ramBufferMb, linesPerCommit, false)
+
+  private val placement = ShardPlacement.default
+
+  def fetcher = {
+    val parFetcher = new ParallelExtractionGroupFetcher(basicModifiers.map(_.fetcher))
+    if (placed) parFetcher.placement = Some(placement)
+    parFetcher
+  }
+
+  private def homeShard(group: REG) = placement.shard(group, basicModifiers.length)
+
+  private def homeModifier(group: REG) = basicModifiers(homeShard(group))
 
   private def updateGroup(group: REG): Boolean = {
+    if (placed) homeModifier(group).updateGroup(group, onlyIfAlreadyExists = false)
+    else updateGroupOnAnyShard(group)
+  }
+
+  private def updateGroupOnAnyShard(group: REG): Boolean = {
 
     var exception: Option[Exception] = None
 
@@ -49,11 +80,8 @@ class ParallelReVerbIndexModifier(val basicModifiers: Seq[ReVerbIndexModifier],
     }
   }
 
-  private def addToRandomGroup(group: REG): Unit = {
-
-    val randomModifier = basicModifiers(scala.util.Random.nextInt(basicModifiers.length))
-    randomModifier.addGroup(group, true)
-  }
+  // new groups go where a placed index would have them, so a later migration has less to move
+  private def addToHomeShard(group: REG): Unit = homeModifier(group).addGroup(group, true)
 
   def updateAll(groups: Iterator[REG]): Unit = {
 
@@ -61,10 +89,11 @@ class ParallelReVerbIndexModifier(val basicModifiers: Seq[ReVerbIndexModifier],
     var exceptions = 0
     groups.grouped(groupsPerCommit).foreach { groupOfGroups =>
 
-      groupOfGroups.foreach { group =>
+      if (batched) exceptions += updateBatch(groupOfGroups)
+      else groupOfGroups.foreach { group =>
         try {
           val updated = updateGroup(group)
-          if (!updated) addToRandomGroup(group)
+          if (!updated) addToHomeShard(group)
         } catch {
           case e: Exception => { exceptions += 1; e.printStackTrace }
         }
@@ -76,6 +105,30 @@ class ParallelReVerbIndexModifier(val basicModifiers: Seq[ReVerbIndexModifier],
     }
   }
 
+  // updates each shard's groups as one batch, the shards in parallel, returning how many groups failed
+  private def updateBatch(groupOfGroups: Seq[REG]): Int = {
+
+    val shardGroups = groupOfGroups.groupBy(homeShard)
+
+    shardGroups.toSeq.par.map { case (shard, groups) =>
+      var exceptions = 0
+      val batch = basicModifiers(shard).newBatch(groups)
+      try {
+        groups.foreach { group =>
+          try {
+            batch.update(group)
+          } catch {
+            case e: Exception => { exceptions += 1; e.printStackTrace }
+          }
+        }
+        batch.apply()
+      } finally {
+        batch.release()
+      }
+      exceptions
+    }.sum
+  }
+
   def close(): Unit = {
     basicModifiers.foreach { _.close() }
   }
@@ -118,18 +171,22 @@ object ParallelReVerbIndexModifier {
     var inputGroups = false
     var corpus = ""
     var debug = false
+    var placed = false
+    var batched = false
 
     val optionParser = new OptionParser() {
       arg("indexPaths", "Colon-delimited list of paths to indexes", { str => indexPaths = str.split(":") })
       arg("corpus", "The corpus identifier to use, e.g. news", { str => corpus = str })
       opt("linesPerCommit", "Lines added across all indexes between commits", { str => linesPerCommit = str.toInt })
       opt("debug", "produce debug output", { debug = true })
+      opt("placed", "The indexes were built or migrated (see ShardMigrator) with hash placement, so each group is updated on one shard", { placed = true })
+      opt("batched", "Update each shard's share of every linesPerCommit groups together, merging them in memory; needs placed", { batched = true })
     }
 
     // bail if the args are bad
     if (!optionParser.parse(args)) return
 
-    val parModifier = new ParallelReVerbIndexModifier(indexPaths, ramBufferMb, linesPerCommit)
+    val parModifier = new ParallelReVerbIndexModifier(indexPaths, ramBufferMb, linesPerCommit, placed, batched)
 
     val lines = Source.fromInputStream(System.in).getLines
 
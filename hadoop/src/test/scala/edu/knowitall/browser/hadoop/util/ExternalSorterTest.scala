@@ -0,0 +1,51 @@
+package edu.knowitall.browser.hadoop.util
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.FlatSpec
+import org.scalatest.junit.JUnitRunner
+
+import com.google.common.io.Files
+
+@RunWith(classOf[JUnitRunner])
+class ExternalSorterTest extends FlatSpec {
+
+  val random = new Random(0)
+
+  // few enough distinct keys that many pairs share one
+  val pairs = Seq.fill(20000)(("key" + random.nextInt(3000), "value é " + random.nextInt()))
+
+  def sortAll(sorter: ExternalSorter): Seq[(String, String)] = {
+    pairs.foreach { case (key, value) => sorter.add(key, value) }
+    try sorter.sorted.toList finally sorter.close()
+  }
+
+  def assertSorted(sorted: Seq[(String, String)]): Unit = {
+    assert(sorted.map(_._1) === pairs.map(_._1).sorted)
+    assert(sorted.sorted === pairs.sorted)
+  }
+
+  "the external sorter" should "sort in memory when nothing spills" in {
+    val tempDir = Files.createTempDir()
+    val sorter = new ExternalSorter(tempDir, Long.MaxValue)
+    assertSorted(sortAll(sorter))
+    assert(sorter.spills === 0)
+    assert(tempDir.list.isEmpty)
+  }
+
+  it should "merge spilled runs, in several passes if there are too many to open, and delete them" in {
+    val tempDir = Files.createTempDir()
+    val sorter = new ExternalSorter(tempDir, 64 * 1024, maxOpenRuns = 3)
+    assertSorted(sortAll(sorter))
+    assert(sorter.spills > 3)
+    assert(sorter.size === pairs.size)
+    assert(tempDir.list.isEmpty)
+  }
+
+  it should "sort nothing" in {
+    val sorter = new ExternalSorter(Files.createTempDir(), 1024)
+    assert(sorter.sorted.isEmpty)
+    sorter.close()
+  }
+}
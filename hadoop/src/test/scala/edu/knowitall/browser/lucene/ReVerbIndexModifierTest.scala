@@ -77,6 +77,47 @@ class ReVerbIndexModifierTest extends Suite {
     testAll(indexModifier.fetcher, firstHalfGroups)
   }
 
+  @Test
+  def testBatchedUpdatesMatchPerGroup: Unit = {
+
+    val (firstHalfLines, secondHalfLines) = inputLines.splitAt(numGroupsToTest / 2)
+    val secondHalfGroups = secondHalfLines flatMap lineToOptGroup
+
+    // batches assume an index with one document per key, as the modifier keeps it
+    val firstHalfKeyed = (firstHalfLines flatMap lineToOptGroup).groupBy(group => ShardPlacement.key(group)).toList.map { case (key, groups) => ReVerbExtractionGroup.mergeGroups(key, groups) }
+    val indexedLines = firstHalfKeyed map ReVerbExtractionGroup.serializeToString
+
+    // singletons of groups already in the index, and of groups added alongside them, some in the same batch and some not
+    def singletons(groups: Seq[REG]) = groups.flatMap(group => group.instances.map(inst => group.copy(instances = Set(inst))))
+    val updates = new scala.util.Random(0).shuffle(secondHalfGroups ++ singletons(firstHalfKeyed.take(30)) ++ singletons(secondHalfGroups.take(30)))
+
+    def buildAndUpdate(batched: Boolean): Map[REG, Int] = {
+      val ramDir = new RAMDirectory()
+      val indexWriter = new IndexWriter(ramDir, ReVerbIndexBuilder.indexWriterConfig(ramBufferMB = 10))
+      new IndexBuilder(indexWriter, ReVerbIndexBuilder.inputLineConverter(regroup = false), 100).indexAll(indexedLines.iterator)
+      val indexModifier = new ReVerbIndexModifier(indexWriter, None, 100, 100, batched)
+      indexModifier.updateAll(updates.iterator)
+      indexModifier.close()
+      contents(ramDir)
+    }
+
+    val perGroup = buildAndUpdate(batched = false)
+    assert(buildAndUpdate(batched = true) === perGroup)
+    // every key is in one document
+    assert(perGroup.keys.map(group => ShardPlacement.key(group)).size === perGroup.values.sum)
+  }
+
+  // the groups of the live docs in dir, counted
+  def contents(dir: RAMDirectory): Map[REG, Int] = {
+    val reader = IndexReader.open(dir)
+    try {
+      val groups = (0 until reader.maxDoc).filter(!reader.isDeleted(_)).map(docNum => ReVerbDocumentConverter.fromDocument(reader.document(docNum)))
+      groups.groupBy(identity).map { case (group, copies) => (group, copies.size) }
+    } finally {
+      reader.close()
+    }
+  }
+
   def testAll(fetcher: GroupFetcher, groups: Iterable[REG]): Unit = { groups.foreach(testGroup(fetcher, _)) }
 
   // test that each input group can be found in the index
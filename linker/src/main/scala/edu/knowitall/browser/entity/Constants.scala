@@ -16,6 +16,10 @@ object Constants {
   def cachedMapFile(basePath: File) = {
     new File(mainIndexPath(basePath), "cached.sorted")
   }
+  // fbid <=> int dictionary, built from fbid_to_line by FbidDictionaryBuilder.
+  def fbidDictionaryFile(basePath: File) = {
+    new File(mainIndexPath(basePath), "fbid-dictionary.bin")
+  }
   
   // Supporting data for entity linking context matching.
   def batchMatchPath(basePath: File) = {
@@ -3,6 +3,7 @@ package edu.knowitall.browser.entity
 import java.io.File
 
 import edu.knowitall.browser.entity.util.FbTypeLookup
+import edu.knowitall.openie.models.FbidDictionary
 import scala.collection.JavaConversions.seqAsJavaList
 
 /**
@@ -10,11 +11,17 @@ import scala.collection.JavaConversions.seqAsJavaList
   */
 class EntityTyper(val fbLookupTable: FbTypeLookup) {
 
+  // with a global fbid dictionary, every entity's types are loaded into memory up front
   def this(basePath: File) = this(
-    new FbTypeLookup(
-      Constants.typeLookupIndexPath(basePath),
-      Constants.freeBaseTypeEnumFile(basePath)
-    )
+    FbidDictionary.global match {
+      case Some(dictionary) => new FbTypeLookup(
+        Constants.typeLookupIndexPath(basePath),
+        Constants.freeBaseTypeEnumFile(basePath),
+        dictionary)
+      case None => new FbTypeLookup(
+        Constants.typeLookupIndexPath(basePath),
+        Constants.freeBaseTypeEnumFile(basePath))
+    }
   )
     
   /**
@@ -2,6 +2,7 @@ package edu.knowitall.browser.entity.util
 
 
 import edu.knowitall.common.Resource.using
+import edu.knowitall.openie.models.FbidDictionary
 import java.io.File
 import java.io.PrintWriter
 import java.util.ArrayList
@@ -27,8 +28,9 @@ import scala.collection.immutable.TreeMap
 import scala.collection.mutable
 import scala.io.Source
 import scopt.OptionParser
+import org.slf4j.LoggerFactory
 
-class FbTypeLookup(val searcher: IndexSearcher, val typeIntToTypeStringMap: Map[Int, String]) {
+class FbTypeLookup(val searcher: IndexSearcher, val typeIntToTypeStringMap: Map[Int, String], val typeTable: Option[EntityTypeTable]) {
 
   private var timeouts = 0
 
@@ -38,11 +40,29 @@ class FbTypeLookup(val searcher: IndexSearcher, val typeIntToTypeStringMap: Map[
   // typeIntToTypeStringMap could probably just be an indexedSeq for a slight performance gain,
   // but then you have to deal with the chance that some int isn't in the enumeration separately.
 
+  def this(searcher: IndexSearcher, typeIntToTypeStringMap: Map[Int, String]) = this(searcher, typeIntToTypeStringMap, None)
+
   def this(indexFile: File, typeEnumFile: File) =
     this(FbTypeLookup.loadIndex(indexFile), FbTypeLookup.loadEnumFile(typeEnumFile))
 
+  /** Loads every entity's types into memory, keyed by the entity's id in dictionary. */
+  def this(searcher: IndexSearcher, typeIntToTypeStringMap: Map[Int, String], dictionary: FbidDictionary) =
+    this(searcher, typeIntToTypeStringMap, Some(EntityTypeTable.load(searcher, dictionary)))
+
+  def this(indexFile: File, typeEnumFile: File, dictionary: FbidDictionary) =
+    this(FbTypeLookup.loadIndex(indexFile), FbTypeLookup.loadEnumFile(typeEnumFile), dictionary)
+
   def getTypesForEntity(entityFbid: String): List[String] = {
-    getOrElseUpdateCache(entityFbid, getTypesForEntityUncached _)
+    typeTable.flatMap(_.dictionary.id(entityFbid)) match {
+      case Some(entityId) => getTypesForEntity(entityId)
+      case None => getOrElseUpdateCache(entityFbid, getTypesForEntityUncached _)
+    }
+  }
+
+  /** Types for the entity with the given id in the type table's dictionary. Requires a type table. */
+  def getTypesForEntity(entityId: Int): List[String] = {
+    val table = typeTable.getOrElse(throw new IllegalStateException("No entity type table loaded"))
+    table.typeInts(entityId).iterator.flatMap(typeIntToTypeStringMap.get(_)).filter(!badTypes.contains(_)).toList
   }
 
   /** please strip off the /m/ first. */
@@ -69,6 +89,41 @@ class FbTypeLookup(val searcher: IndexSearcher, val typeIntToTypeStringMap: Map[
   }
 }
 
+/**
+  * The type enum ints of every entity in a type lookup index, held in an array indexed by fbid dictionary id,
+  * so looking up an entity's types is an array access rather than an index query.
+  */
+class EntityTypeTable(val dictionary: FbidDictionary, private val types: Array[Array[Int]]) {
+
+  private val noTypes = Array.empty[Int]
+
+  def typeInts(entityId: Int): Array[Int] = {
+    if (entityId < 0 || entityId >= types.length || types(entityId) == null) noTypes
+    else types(entityId)
+  }
+}
+
+object EntityTypeTable {
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  def load(searcher: IndexSearcher, dictionary: FbidDictionary): EntityTypeTable = {
+    val reader = searcher.getIndexReader
+    val types = new Array[Array[Int]](dictionary.size)
+    var missing = 0
+    for (docNum <- 0 until reader.maxDoc; if !reader.isDeleted(docNum)) {
+      val doc = reader.document(docNum)
+      dictionary.id(doc.get("fbid")) match {
+        case Some(entityId) => types(entityId) = doc.get("types").split(",").filter(!_.isEmpty).map(_.toInt)
+        case None => missing += 1
+      }
+      if (docNum % 1000000 == 0) logger.info("Type table entities loaded: %s".format(docNum))
+    }
+    if (missing > 0) logger.warn("%d entities in the type index aren't in the fbid dictionary".format(missing))
+    new EntityTypeTable(dictionary, types)
+  }
+}
+
 /** Convenience struct for helping serialize the lookup table to disk .. */
 @SerialVersionUID(1337L)
 case class FbPair(val entityFbid: String, val typeEnumInts: ArrayList[Int]) {
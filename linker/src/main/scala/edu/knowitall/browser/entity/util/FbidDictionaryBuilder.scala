@@ -0,0 +1,51 @@
+package edu.knowitall.browser.entity.util
+
+import java.io.File
+
+import scala.io.Source
+
+import edu.knowitall.browser.entity.Constants
+import edu.knowitall.common.Resource.using
+import edu.knowitall.common.Timing
+import edu.knowitall.openie.models.FbidDictionary
+
+import scopt.OptionParser
+
+/**
+  * Builds the fbid <=> int dictionary (see FbidDictionary) from the linker's fbid_to_line data,
+  * which has one tab-separated line per entity, fbid first.
+  */
+object FbidDictionaryBuilder {
+
+  val tabRegex = "\t".r
+
+  def fbids(lines: Iterator[String]): Iterator[String] = lines.flatMap { line =>
+    tabRegex.split(line).headOption.map(_.trim.stripPrefix("/m/")).filter(!_.isEmpty)
+  }
+
+  def main(args: Array[String]): Unit = {
+
+    var basePath = ""
+    var inputFile: Option[String] = None
+    var outputFile: Option[String] = None
+
+    val parser = new OptionParser() {
+      arg("basePath", "linker data directory (containing browser-freebase)", { str => basePath = str })
+      opt("input", "fbid_to_line file, default is the one under basePath", { str => inputFile = Some(str) })
+      opt("output", "dictionary file, default is the one under basePath", { str => outputFile = Some(str) })
+    }
+
+    if (!parser.parse(args)) return
+
+    val input = inputFile.map(new File(_)).getOrElse(Constants.fbidToTitleInlinksFile(new File(basePath)))
+    val output = outputFile.map(new File(_)).getOrElse(Constants.fbidDictionaryFile(new File(basePath)))
+
+    System.err.println("Building fbid dictionary from %s".format(input))
+    val (ns, size) = Timing.time {
+      using(Source.fromFile(input, "UTF-8")) { source =>
+        FbidDictionary.write(fbids(source.getLines), output)
+      }
+    }
+    System.err.println("Wrote %d fbids to %s in %s".format(size, output, Timing.Seconds.format(ns)))
+  }
+}
@@ -0,0 +1,187 @@
+package edu.knowitall.openie.models
+
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.Arrays
+
+import org.slf4j.LoggerFactory
+
+/**
+ * A fixed mapping between Freebase ids (without the /m/ prefix) and dense ints 0 until size.
+ *
+ * Ids are assigned in sorted fbid order. The data is laid out as
+ *   magic, version, size, size + 1 offsets into the fbid bytes, then the UTF-8 fbid bytes themselves,
+ * so a dictionary file can be memory mapped and used in place: id to fbid is a slice of the buffer,
+ * and fbid to id is a binary search over it. Lookups only use absolute reads of the buffer, so
+ * a dictionary can be shared between threads.
+ */
+class FbidDictionary private (private val buffer: ByteBuffer) {
+
+  import FbidDictionary.{magic, version, headerBytes}
+
+  require(buffer.getInt(0) == magic, "Not an fbid dictionary")
+  require(buffer.getInt(4) == version, "Unsupported fbid dictionary version: " + buffer.getInt(4))
+
+  val size = buffer.getInt(8)
+
+  private val bytesStart = headerBytes + 4 * (size + 1)
+
+  private def offset(id: Int) = bytesStart + buffer.getInt(headerBytes + 4 * id)
+
+  def contains(id: Int) = id >= 0 && id < size
+
+  /** The fbid for id, which must be in this dictionary. */
+  def fbid(id: Int): String = {
+    require(contains(id), "No such fbid id: " + id)
+    val start = offset(id)
+    val bytes = new Array[Byte](offset(id + 1) - start)
+    var i = 0
+    while (i < bytes.length) {
+      bytes(i) = buffer.get(start + i)
+      i += 1
+    }
+    new String(bytes, "UTF-8")
+  }
+
+  /** The id for fbid, or None if fbid isn't in this dictionary. */
+  def id(fbid: String): Option[Int] = {
+    val key = fbid.getBytes("UTF-8")
+    var low = 0
+    var high = size - 1
+    while (low <= high) {
+      val mid = (low + high) >>> 1
+      val cmp = compareAt(mid, key)
+      if (cmp < 0) low = mid + 1
+      else if (cmp > 0) high = mid - 1
+      else return Some(mid)
+    }
+    None
+  }
+
+  // compares the fbid stored for id with key, byte by byte (unsigned)
+  private def compareAt(id: Int, key: Array[Byte]): Int = {
+    val start = offset(id)
+    val length = offset(id + 1) - start
+    var i = 0
+    while (i < length && i < key.length) {
+      val cmp = (buffer.get(start + i) & 0xff) - (key(i) & 0xff)
+      if (cmp != 0) return cmp
+      i += 1
+    }
+    length - key.length
+  }
+}
+
+object FbidDictionary {
+
+  private val logger = LoggerFactory.getLogger(this.getClass)
+
+  private val magic = 0x46424944 // "FBID"
+  private val version = 1
+  private val headerBytes = 12
+
+  /** Memory maps a dictionary written by write. */
+  def load(file: File): FbidDictionary = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      require(raf.length <= Int.MaxValue, "Fbid dictionary too large to map: " + file)
+      val dictionary = new FbidDictionary(raf.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length))
+      logger.info("Loaded fbid dictionary of size %d from %s".format(dictionary.size, file))
+      dictionary
+    } finally {
+      raf.close() // the mapping stays valid
+    }
+  }
+
+  /** An in-memory dictionary of fbids (duplicates are ignored). */
+  def apply(fbids: Iterable[String]): FbidDictionary = {
+    val bytes = new ByteArrayOutputStream()
+    write(fbids.iterator, bytes)
+    new FbidDictionary(ByteBuffer.wrap(bytes.toByteArray))
+  }
+
+  /** Writes a dictionary of fbids (duplicates are ignored) to file, returning its size. */
+  def write(fbids: Iterator[String], file: File): Int = {
+    val output = new BufferedOutputStream(new FileOutputStream(file))
+    try {
+      write(fbids, output)
+    } finally {
+      output.close()
+    }
+  }
+
+  private def write(fbids: Iterator[String], output: OutputStream): Int = {
+    val sorted = fbids.map(_.getBytes("UTF-8")).toArray
+    Arrays.sort(sorted, unsignedOrdering)
+    val distinct = sorted.iterator.zipWithIndex.filter { case (bytes, i) => i == 0 || unsignedOrdering.compare(sorted(i - 1), bytes) != 0 }.map(_._1).toArray
+
+    val data = new DataOutputStream(output)
+    data.writeInt(magic)
+    data.writeInt(version)
+    data.writeInt(distinct.length)
+    var offset = 0
+    distinct.foreach { bytes =>
+      data.writeInt(offset)
+      offset += bytes.length
+    }
+    data.writeInt(offset)
+    distinct.foreach(bytes => data.write(bytes))
+    data.flush()
+    distinct.length
+  }
+
+  private val unsignedOrdering = new Ordering[Array[Byte]] {
+    def compare(a: Array[Byte], b: Array[Byte]): Int = {
+      var i = 0
+      while (i < a.length && i < b.length) {
+        val cmp = (a(i) & 0xff) - (b(i) & 0xff)
+        if (cmp != 0) return cmp
+        i += 1
+      }
+      a.length - b.length
+    }
+  }
+
+  /** System property naming a dictionary file to load as the global dictionary. */
+  val fileProperty = "openie.fbidDictionary"
+
+  private lazy val fromProperty: Option[FbidDictionary] = Option(System.getProperty(fileProperty)).map(path => load(new File(path)))
+
+  @volatile private var installed: Option[FbidDictionary] = None
+
+  /**
+   * The dictionary shared by everything in this JVM: the one passed to install, if any, else the one
+   * named by the openie.fbidDictionary system property, if set. Code that can work with int entity ids
+   * uses them when this is defined, and falls back to fbid strings when it isn't.
+   */
+  def global: Option[FbidDictionary] = installed orElse fromProperty
+
+  def install(dictionary: FbidDictionary): Unit = {
+    installed = Some(dictionary)
+  }
+}
+
+/** A compact, immutable set of fbid ids, e.g. for stoplists. */
+class FbidSet private (private val ids: Array[Int]) {
+
+  def contains(id: Int): Boolean = Arrays.binarySearch(ids, id) >= 0
+
+  def size = ids.length
+}
+
+object FbidSet {
+
+  val empty = new FbidSet(Array.empty[Int])
+
+  def apply(ids: Iterable[Int]): FbidSet = new FbidSet(ids.toArray.distinct.sorted)
+
+  /** The ids of fbids in dictionary. Fbids missing from the dictionary are dropped. */
+  def apply(fbids: Iterable[String], dictionary: FbidDictionary): FbidSet = apply(fbids.flatMap(dictionary.id))
+}
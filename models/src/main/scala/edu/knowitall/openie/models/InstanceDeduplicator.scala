@@ -2,10 +2,14 @@ package edu.knowitall.openie.models
 
 import java.util.regex.Pattern
 
+import java.util.Arrays
 import java.util.Scanner
 
 import scala.collection.mutable
 
+import edu.knowitall.openie.models.util.LongHashing
+import edu.knowitall.tool.chunk.ChunkedToken
+
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
@@ -19,10 +23,292 @@ object InstanceDeduplicator {
 
   private val window = 3
 
+  /**
+   * Keeps the instances, from most to least confident, that show the tuple in a new context:
+   * a whole-sentence extraction that hasn't been seen, or tokens near the tuple that haven't been seen
+   * (unless at least window of them were seen before in the same positions). See simpleDeduplicate,
+   * which this agrees with; here tokens are 64 bit hashes kept in primitive sets, and the sets and
+   * arrays are reused by each thread, so deduplicating a group allocates little besides its result.
+   */
   def deduplicate(group: REG): REG = {
 
     if (group.instances.size <= 1) return group
 
+    val instances = group.instances.toArray
+    val s = scratch.get
+    s.reset(instances.length)
+    val order = s.sortByConfidence(instances)
+
+    val kept = Set.newBuilder[Instance[ReVerbExtraction]]
+    var i = 0
+    while (i < instances.length) {
+      val inst = instances(order(i))
+      if (isNewContext(inst.extraction, s)) kept += inst
+      i += 1
+    }
+
+    new ExtractionGroup(group.arg1, group.rel, group.arg2, kept.result())
+  }
+
+  private def isNewContext(extr: ReVerbExtraction, s: Scratch): Boolean = {
+
+    val tokens = extr.sentenceTokens
+    val length = tokens.length
+    // we assume that arg1 < rel < arg2 in terms of position, as simpleDeduplicate does
+    val start = extr.arg1Interval.start
+    val end = extr.arg2Interval.end
+
+    if (start == 0 && end >= length - 2) { // -2 for the trailing period!
+      s.wholeSentences.add(sentenceHash(tokens))
+    } else {
+
+      // hash the tokens within window of the tuple, before then after
+      var n = 0
+      var pos = math.max(start - window, 0)
+      while (pos < start && pos < length) {
+        s.tokens(n) = tokenHash(tokens(pos).string)
+        s.positions(n) = positionHash(s.tokens(n), pos)
+        n += 1
+        pos += 1
+      }
+      val numBefore = n
+      pos = math.max(end + 1, 0)
+      while (pos <= end + window && pos < length) {
+        s.tokens(n) = tokenHash(tokens(pos).string)
+        s.positions(n) = positionHash(s.tokens(n), pos)
+        n += 1
+        pos += 1
+      }
+
+      // count repeats before recording any of this instance's positions
+      var numRepeats = 0
+      var j = 0
+      while (j < n) { if (s.seenPositions.contains(s.positions(j))) numRepeats += 1; j += 1 }
+      j = 0
+      while (j < n) { s.seenPositions.add(s.positions(j)); j += 1 }
+
+      if (numRepeats >= window) false
+      else {
+        var addedToken = false
+        j = 0
+        while (j < n) {
+          val added = if (j < numBefore) s.seenBefore.add(s.tokens(j)) else s.seenAfter.add(s.tokens(j))
+          addedToken = added || addedToken
+          j += 1
+        }
+        addedToken
+      }
+    }
+  }
+
+  /**
+   * Near-duplicate removal for groups too large for deduplicate to be worth its cost: keeps the
+   * instances, from most to least confident, whose sentence's 64 bit SimHash signature is more than
+   * maxDistance bits from every kept sentence's. Kept signatures are indexed by their four 16 bit
+   * bands - two signatures within 3 bits agree on at least one band - so each instance is compared
+   * only with the few kept sentences that share a band with it.
+   */
+  def nearDeduplicate(group: REG, maxDistance: Int = 3): REG = {
+
+    require(maxDistance >= 0 && maxDistance < SimHashIndex.numBands, "maxDistance must be between 0 and " + (SimHashIndex.numBands - 1))
+
+    if (group.instances.size <= 1) return group
+
+    val instances = group.instances.toArray
+    val s = scratch.get
+    s.reset(instances.length)
+    val order = s.sortByConfidence(instances)
+    val index = s.simHashIndex
+
+    val kept = Set.newBuilder[Instance[ReVerbExtraction]]
+    try {
+      var i = 0
+      while (i < instances.length) {
+        val inst = instances(order(i))
+        val signature = simHash(inst.extraction.sentenceTokens)
+        if (!index.containsWithin(signature, maxDistance)) {
+          index.add(signature)
+          kept += inst
+        }
+        i += 1
+      }
+    } finally {
+      index.clear()
+    }
+
+    new ExtractionGroup(group.arg1, group.rel, group.arg2, kept.result())
+  }
+
+  /**
+   * Deduplicates groups in parallel. Groups with at least nearDuplicateMinSize instances
+   * get nearDeduplicate instead of deduplicate.
+   */
+  def deduplicateAll(groups: Seq[REG], nearDuplicateMinSize: Int = Int.MaxValue): Seq[REG] = {
+    groups.par.map { group =>
+      if (group.instances.size >= nearDuplicateMinSize) nearDeduplicate(group) else deduplicate(group)
+    }.seq
+  }
+
+  // hack - give wiki extractions a slightly higher confidence in order to prefer while deduping
+  private def hackConf(inst: Instance[ReVerbExtraction]): Double = -(inst.confidence + (if (inst.corpus.equals("wiki")) 0.1 else 0.0))
+
+  // String.toLowerCase lowercases ASCII like this, except in these locales (e.g. Turkish dotless i)
+  private val asciiLowerCase = !Set("tr", "az", "lt").contains(java.util.Locale.getDefault.getLanguage)
+
+  private val fnvOffset = 0xcbf29ce484222325L
+  private val fnvPrime = 0x100000001b3L
+
+  // FNV-1a of str.toLowerCase, continuing from hash, without building the lowercase string when str is ASCII
+  private def hashLowerCase(str: String, hash: Long): Long = {
+    var h = hash
+    var i = 0
+    while (i < str.length) {
+      val c = str.charAt(i)
+      if (c >= 128 || !asciiLowerCase) return hashChars(str.toLowerCase, hash)
+      h = (h ^ (if (c >= 'A' && c <= 'Z') c + 32 else c)) * fnvPrime
+      i += 1
+    }
+    h
+  }
+
+  private def hashChars(str: String, hash: Long): Long = {
+    var h = hash
+    var i = 0
+    while (i < str.length) {
+      h = (h ^ str.charAt(i)) * fnvPrime
+      i += 1
+    }
+    h
+  }
+
+  private def tokenHash(token: String): Long = hashLowerCase(token, fnvOffset)
+
+  private def positionHash(tokenHash: Long, pos: Int): Long = LongHashing.mix(tokenHash + (pos + 1) * 0x9E3779B97F4A7C15L)
+
+  // the hash of the lowercased, space separated sentence
+  private def sentenceHash(tokens: IndexedSeq[ChunkedToken]): Long = {
+    var h = fnvOffset
+    var i = 0
+    while (i < tokens.length) {
+      if (i > 0) h = (h ^ ' ') * fnvPrime
+      h = hashLowerCase(tokens(i).string, h)
+      i += 1
+    }
+    h
+  }
+
+  // each bit is set if more of the sentence's tokens have it set than not
+  private def simHash(tokens: IndexedSeq[ChunkedToken]): Long = {
+    val votes = new Array[Int](64)
+    var i = 0
+    while (i < tokens.length) {
+      val h = LongHashing.mix(tokenHash(tokens(i).string))
+      var bit = 0
+      while (bit < 64) {
+        if (((h >>> bit) & 1L) != 0) votes(bit) += 1 else votes(bit) -= 1
+        bit += 1
+      }
+      i += 1
+    }
+    var signature = 0L
+    var bit = 0
+    while (bit < 64) {
+      if (votes(bit) > 0) signature |= 1L << bit
+      bit += 1
+    }
+    signature
+  }
+
+  private val scratch = new ThreadLocal[Scratch] {
+    override def initialValue = new Scratch()
+  }
+
+  // one thread's sets and buffers, cleared between groups
+  private class Scratch {
+
+    val seenBefore = new LongHashSet()
+    val seenAfter = new LongHashSet()
+    val seenPositions = new LongHashSet()
+    val wholeSentences = new LongHashSet()
+
+    // the hashes of one instance's window tokens, and of those tokens with their positions
+    val tokens = new Array[Long](2 * window)
+    val positions = new Array[Long](2 * window)
+
+    private var order = new Array[Int](64)
+    private var sortBuffer = new Array[Int](64)
+    private var keys = new Array[Double](64)
+
+    lazy val simHashIndex = new SimHashIndex()
+
+    def reset(numInstances: Int): Unit = {
+      seenBefore.clear()
+      seenAfter.clear()
+      seenPositions.clear()
+      wholeSentences.clear()
+      if (order.length < numInstances) {
+        order = new Array[Int](numInstances)
+        sortBuffer = new Array[Int](numInstances)
+        keys = new Array[Double](numInstances)
+      }
+    }
+
+    /** Instance indexes by hackConf, ties in their original order, as a stable sortBy(hackConf) would give. */
+    def sortByConfidence(instances: Array[Instance[ReVerbExtraction]]): Array[Int] = {
+      var i = 0
+      while (i < instances.length) {
+        order(i) = i
+        keys(i) = hackConf(instances(i))
+        i += 1
+      }
+      mergeSort(0, instances.length)
+      order
+    }
+
+    // stable sort of order(from until to) by keys, comparing as Ordering.Double does
+    private def mergeSort(from: Int, to: Int): Unit = {
+      if (to - from <= 16) {
+        var i = from + 1
+        while (i < to) {
+          val idx = order(i)
+          var j = i - 1
+          while (j >= from && java.lang.Double.compare(keys(order(j)), keys(idx)) > 0) {
+            order(j + 1) = order(j)
+            j -= 1
+          }
+          order(j + 1) = idx
+          i += 1
+        }
+      } else {
+        val mid = (from + to) >>> 1
+        mergeSort(from, mid)
+        mergeSort(mid, to)
+        System.arraycopy(order, from, sortBuffer, from, to - from)
+        var left = from
+        var right = mid
+        var k = from
+        while (k < to) {
+          if (right >= to || (left < mid && java.lang.Double.compare(keys(sortBuffer(left)), keys(sortBuffer(right))) <= 0)) {
+            order(k) = sortBuffer(left)
+            left += 1
+          } else {
+            order(k) = sortBuffer(right)
+            right += 1
+          }
+          k += 1
+        }
+      }
+    }
+  }
+
+  /**
+   * The original implementation of deduplicate, kept as its specification: deduplicate must
+   * return the same groups. It allocates tuples, strings and hash sets for every instance.
+   */
+  def simpleDeduplicate(group: REG): REG = {
+
+    if (group.instances.size <= 1) return group
+
     // for each sentence, we want the tokens that are:
     // 1- not tokens from the relation tuple
     // 2- within a window of K from the tuple.
@@ -137,4 +423,138 @@ object InstanceDeduplicator {
     deduped
   }
 
-}
\ No newline at end of file
+}
+
+/** An open addressing set of longs, for hashes. Clearing keeps the table unless it has grown much larger than it needs to be. */
+private[models] final class LongHashSet(initialCapacity: Int = 64) {
+
+  private var table = new Array[Long](initialCapacity)
+  private var mask = initialCapacity - 1
+  private var numKeys = 0
+  // 0 marks an empty slot, so it is tracked separately
+  private var hasZero = false
+
+  require(Integer.bitCount(initialCapacity) == 1, "capacity must be a power of two")
+
+  def size = numKeys + (if (hasZero) 1 else 0)
+
+  def contains(key: Long): Boolean = {
+    if (key == 0) return hasZero
+    var i = (LongHashing.mix(key) & mask).toInt
+    while (table(i) != 0) {
+      if (table(i) == key) return true
+      i = (i + 1) & mask
+    }
+    false
+  }
+
+  /** Adds key, returning whether it was new. */
+  def add(key: Long): Boolean = {
+    if (key == 0) {
+      val added = !hasZero
+      hasZero = true
+      return added
+    }
+    var i = (LongHashing.mix(key) & mask).toInt
+    while (table(i) != 0) {
+      if (table(i) == key) return false
+      i = (i + 1) & mask
+    }
+    table(i) = key
+    numKeys += 1
+    if (numKeys * 2 > table.length) grow()
+    true
+  }
+
+  def clear(): Unit = {
+    if (table.length > initialCapacity && table.length > 8 * size) {
+      table = new Array[Long](initialCapacity)
+      mask = initialCapacity - 1
+    } else if (numKeys > 0) {
+      Arrays.fill(table, 0L)
+    }
+    numKeys = 0
+    hasZero = false
+  }
+
+  private def grow(): Unit = {
+    val old = table
+    table = new Array[Long](old.length * 2)
+    mask = table.length - 1
+    var j = 0
+    while (j < old.length) {
+      val key = old(j)
+      if (key != 0) {
+        var i = (LongHashing.mix(key) & mask).toInt
+        while (table(i) != 0) i = (i + 1) & mask
+        table(i) = key
+      }
+      j += 1
+    }
+  }
+}
+
+/**
+ * SimHash signatures indexed by each of their numBands 16 bit bands. Signatures within
+ * numBands - 1 bits of each other agree on at least one band, so only signatures sharing a band
+ * with a query need to be compared. Meant to be reused: clear empties it in time proportional to its size.
+ */
+private[models] final class SimHashIndex {
+
+  import SimHashIndex._
+
+  // heads(band)(value) is the last signature added with that band value, or -1; next(band)(k) is the one before k
+  private val heads = Array.fill(numBands)(Array.fill(1 << bandBits)(-1))
+  private var next = Array.fill(numBands)(new Array[Int](64))
+  private var signatures = new Array[Long](64)
+  private var size = 0
+
+  private def band(signature: Long, b: Int): Int = ((signature >>> (b * bandBits)) & ((1 << bandBits) - 1)).toInt
+
+  def containsWithin(signature: Long, maxDistance: Int): Boolean = {
+    var b = 0
+    while (b < numBands) {
+      var k = heads(b)(band(signature, b))
+      while (k >= 0) {
+        if (java.lang.Long.bitCount(signatures(k) ^ signature) <= maxDistance) return true
+        k = next(b)(k)
+      }
+      b += 1
+    }
+    false
+  }
+
+  def add(signature: Long): Unit = {
+    if (size == signatures.length) {
+      signatures = Arrays.copyOf(signatures, size * 2)
+      next = next.map(chain => Arrays.copyOf(chain, size * 2))
+    }
+    signatures(size) = signature
+    var b = 0
+    while (b < numBands) {
+      val value = band(signature, b)
+      next(b)(size) = heads(b)(value)
+      heads(b)(value) = size
+      b += 1
+    }
+    size += 1
+  }
+
+  def clear(): Unit = {
+    var k = 0
+    while (k < size) {
+      var b = 0
+      while (b < numBands) {
+        heads(b)(band(signatures(k), b)) = -1
+        b += 1
+      }
+      k += 1
+    }
+    size = 0
+  }
+}
+
+private[models] object SimHashIndex {
+  val numBands = 4
+  val bandBits = 16
+}
@@ -135,7 +135,11 @@ object ReVerbExtractionGroup extends TabSerializer[ExtractionGroup[ReVerbExtract
 
 
 
-  /** Convert index key groups to frontend key groups, keeping entities together. */
+  /**
+    * Convert index key groups to frontend key groups, keeping entities together.
+    * This re-stems every group's first extraction; groups read from an index can be
+    * regrouped from their stored keys instead (see FrontendRegrouper in the backend).
+    */
   def indexGroupingToFrontendGrouping(groups: Iterable[REG]): Iterable[REG] = {
     // Assumes that input is grouped by "index" key. If not, behavior is undefined!
 
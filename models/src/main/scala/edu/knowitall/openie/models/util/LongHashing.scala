@@ -0,0 +1,16 @@
+package edu.knowitall.openie.models.util
+
+/**
+ * Hashing for the primitive long sets and maps used where boxing would cost too much,
+ * e.g. InstanceDeduplicator's hash sets and the sentence store's id table.
+ */
+object LongHashing {
+
+  /** The murmur3 finalizer, so that keys differing in a few bits land far apart in a table. */
+  def mix(key: Long): Long = {
+    var z = key
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L
+    z ^ (z >>> 33)
+  }
+}
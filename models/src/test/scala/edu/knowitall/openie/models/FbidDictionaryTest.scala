@@ -0,0 +1,44 @@
+package edu.knowitall.openie.models
+
+import java.io.File
+
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.junit.runner.RunWith
+import scala.io.Source
+
+@RunWith(classOf[JUnitRunner])
+class FbidDictionaryTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  val fbids = groups.flatMap(group => group.arg1.entity.toSeq ++ group.arg2.entity.toSeq).map(_.fbid).distinct
+
+  "The fbid dictionary" should "map every fbid to a distinct id and back" in {
+    assert(!fbids.isEmpty)
+    val dictionary = FbidDictionary(fbids ++ fbids.take(10))
+    assert(dictionary.size === fbids.size)
+    val ids = fbids.map(fbid => dictionary.id(fbid).get)
+    assert(ids.distinct.size === fbids.size)
+    assert(ids.forall(dictionary.contains))
+    fbids.zip(ids).foreach { case (fbid, id) => assert(dictionary.fbid(id) === fbid) }
+    assert(dictionary.id("not-an-fbid") === None)
+  }
+
+  it should "read back what it wrote to a file" in {
+    val file = File.createTempFile("fbid-dictionary", ".bin")
+    file.deleteOnExit()
+    assert(FbidDictionary.write(fbids.iterator, file) === fbids.size)
+    val loaded = FbidDictionary.load(file)
+    val inMemory = FbidDictionary(fbids)
+    fbids.foreach(fbid => assert(loaded.id(fbid) === inMemory.id(fbid)))
+  }
+
+  "An fbid set" should "contain exactly the ids of its fbids" in {
+    val dictionary = FbidDictionary(fbids)
+    val (inSet, notInSet) = fbids.splitAt(fbids.size / 2)
+    val set = FbidSet(inSet, dictionary)
+    assert(inSet.forall(fbid => set.contains(dictionary.id(fbid).get)))
+    assert(notInSet.forall(fbid => !set.contains(dictionary.id(fbid).get)))
+  }
+}
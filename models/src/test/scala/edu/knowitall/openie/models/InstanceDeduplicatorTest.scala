@@ -0,0 +1,55 @@
+package edu.knowitall.openie.models
+
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.junit.runner.RunWith
+import scala.io.Source
+
+@RunWith(classOf[JUnitRunner])
+class InstanceDeduplicatorTest extends FlatSpec {
+
+  val groups = Source.fromInputStream(Resources.groupsUrl.openStream(), "UTF-8").getLines.flatMap(ReVerbExtractionGroup.deserializeFromString).toList
+
+  // every fixture instance in one group, so there are many instances and many confidence ties
+  val bigGroup = groups.head.copy(instances = groups.flatMap(_.instances).toSet)
+
+  "deduplicate" should "agree with simpleDeduplicate" in {
+    groups.foreach { group =>
+      assert(InstanceDeduplicator.deduplicate(group) === InstanceDeduplicator.simpleDeduplicate(group))
+    }
+  }
+
+  it should "agree with simpleDeduplicate on a large group" in {
+    val deduped = InstanceDeduplicator.deduplicate(bigGroup)
+    assert(deduped === InstanceDeduplicator.simpleDeduplicate(bigGroup))
+    assert(deduped.instances.size < bigGroup.instances.size)
+    // the per-thread buffers must not leak from one group to the next
+    assert(InstanceDeduplicator.deduplicate(bigGroup) === deduped)
+  }
+
+  "deduplicateAll" should "deduplicate each group" in {
+    val multiInstanceGroups = groups.filter(_.instances.size > 1)
+    assert(InstanceDeduplicator.deduplicateAll(multiInstanceGroups) === multiInstanceGroups.map(InstanceDeduplicator.deduplicate))
+  }
+
+  "nearDeduplicate" should "drop repeated sentences and keep the rest" in {
+    val deduped = InstanceDeduplicator.nearDeduplicate(bigGroup, maxDistance = 0)
+    val sentences = bigGroup.instances.toSeq.map(_.extraction.sentenceTokens.map(_.string.toLowerCase).mkString(" ")).distinct
+    assert(deduped.instances.subsetOf(bigGroup.instances))
+    assert(deduped.instances.size <= sentences.size)
+    assert(deduped.instances.map(_.extraction.sentenceTokens.map(_.string.toLowerCase).mkString(" ")).size === deduped.instances.size)
+    assert(InstanceDeduplicator.nearDeduplicate(bigGroup, maxDistance = 3).instances.size <= deduped.instances.size)
+  }
+
+  "a long hash set" should "behave like a set" in {
+    val set = new LongHashSet(4)
+    val keys = Seq(0L, 1L, -1L, Long.MinValue) ++ (1 to 1000).map(_ * 0x9E3779B97F4A7C15L)
+    keys.foreach(key => assert(set.add(key)))
+    keys.foreach(key => assert(!set.add(key)))
+    assert(set.size === keys.size)
+    assert(!set.contains(12345L))
+    set.clear()
+    assert(set.size === 0)
+    keys.foreach(key => assert(!set.contains(key)))
+  }
+}
@@ -23,12 +23,17 @@ object NlpToolsBuild extends Build {
   val specs2 = "org.specs2" %% "specs2" % "1.12.3"
   val scalatest = "org.scalatest" %% "scalatest" % "1.9.1"
 
+  val jmhVersion = "1.9.3"
+
+  // benchmarks are compiled normally, then JMH generates and compiles its harness in this configuration
+  lazy val Jmh = config("jmh") extend(Compile)
+
   lazy val root = Project(id = "openie", base = file(".")) settings (
     crossScalaVersions := buildScalaVersions,
     scalaVersion <<= (crossScalaVersions) { versions => versions.head },
     publish := { },
     publishLocal := { }
-  ) aggregate(models, populator, backend, linker, hadoop)
+  ) aggregate(models, populator, backend, linker, hadoop, benchmarks)
 
   // parent build definition
   val buildSettings = Defaults.defaultSettings ++ Seq (
@@ -112,6 +117,36 @@ object NlpToolsBuild extends Build {
     }
   )) dependsOn(backend, linker)
 
+  // JMH microbenchmarks. Run them (with allocation profiling) with
+  //   sbt "openie-benchmarks/jmh:run [JMH options, e.g. a benchmark regex]"
+  lazy val benchmarks = Project(id = "openie-benchmarks", base = file("benchmarks"), configurations = Configurations.default :+ Jmh, settings = buildSettings ++ jmhSettings ++ Seq(
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+      "org.openjdk.jmh" % "jmh-generator-bytecode" % jmhVersion),
+    publish := { },
+    publishLocal := { }
+  )) dependsOn(models)
+
+  // What the sbt-jmh plugin does, which needs a newer sbt: after compile, run JMH's bytecode generator
+  // over the compiled benchmarks and compile the generated harness and benchmark list in the jmh configuration.
+  lazy val jmhSettings = inConfig(Jmh)(Defaults.configSettings) ++ Seq(
+    sourceGenerators in Jmh <+= (classDirectory in Compile, sourceManaged in Jmh, resourceManaged in Jmh, fullClasspath in Compile, compile in Compile) map {
+      (classes, sources, resources, classpath, _) => {
+        IO.delete(Seq(sources, resources))
+        val loader = sbt.classpath.ClasspathUtilities.toLoader(classpath.files)
+        val generator = loader.loadClass("org.openjdk.jmh.generators.bytecode.JmhBytecodeGenerator")
+        val args = Array(classes.getPath, sources.getPath, resources.getPath, "default")
+        generator.getMethod("main", classOf[Array[String]]).invoke(null, args: AnyRef)
+        (sources ** "*.java").get
+      }
+    },
+    resourceGenerators in Jmh <+= (resourceManaged in Jmh, managedSources in Jmh) map { (resources, _) => (resources ** "*").get.filter(_.isFile) },
+    // JMH itself needs Java 7
+    javacOptions in Jmh := Seq("-source", "1.7", "-target", "1.7"),
+    mainClass in (Jmh, run) := Some("edu.knowitall.openie.models.benchmark.BenchmarkMain"),
+    fork in (Jmh, run) := true
+  )
+
   lazy val linker = Project(id = "openie-linker", base = file("linker"), settings = buildSettings ++ Seq(
     libraryDependencies ++= Seq(
       "edu.washington.cs.knowitall" % "reverb-core" % "1.4.3" excludeAll(ExclusionRule(organization = "jwnl")),